@@ -0,0 +1,240 @@
+package com.unusualapps.whatsappstickers.utils;
+
+import android.content.Context;
+import android.database.sqlite.SQLiteDatabase;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import com.unusualapps.whatsappstickers.identities.StickerPacksContainer;
+import com.unusualapps.whatsappstickers.whatsapp_api.Sticker;
+import com.unusualapps.whatsappstickers.whatsapp_api.StickerPack;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Comprueba el esquema de SqliteCatalogStore: creación, migración desde la versión 1 e importación de contents.json.
+ * Usa su propia base de datos y un contents.json en la caché de la prueba, sin tocar los de la aplicación.
+ */
+@RunWith(AndroidJUnit4.class)
+public class SqliteCatalogStoreTest {
+
+    private static final String DATABASE_NAME = "catalog_test.db";
+
+    private Context context;
+    private File contentFile;
+    private File journalFile;
+
+    @Before
+    public void setUp() {
+        context = InstrumentationRegistry.getTargetContext();
+        context.deleteDatabase(DATABASE_NAME);
+        contentFile = new File(context.getCacheDir(), "catalog_test_contents.json");
+        journalFile = new File(context.getCacheDir(), "catalog_test_contents.journal");
+        contentFile.delete();
+        journalFile.delete();
+    }
+
+    @After
+    public void tearDown() {
+        context.deleteDatabase(DATABASE_NAME);
+        contentFile.delete();
+        journalFile.delete();
+    }
+
+    @Test
+    public void createsSchemaAndImportsJson() throws IOException {
+        writeContentFile(createStickerPack("a", 3), createStickerPack("b", 2));
+        SqliteCatalogStore store = new SqliteCatalogStore(context, DATABASE_NAME, new TestJsonCatalogStore());
+        List<StickerPack> stickerPacks = store.loadStickerPacks();
+        assertEquals(2, stickerPacks.size());
+        assertEquals("a", stickerPacks.get(0).identifier);
+        assertEquals("b", stickerPacks.get(1).identifier);
+        Sticker sticker = stickerPacks.get(0).getStickers().get(2);
+        assertEquals("a_2.webp", sticker.imageFileName);
+        assertEquals(Arrays.asList("😀", "🎉"), sticker.getEmojis());
+        assertEquals(102, sticker.getSize());
+        assertEquals(1002, sticker.getChecksum());
+        assertEquals(7, stickerPacks.get(0).getTrayImageFileChecksum());
+
+        StickerPack stickerPack = store.loadStickerPack("b");
+        assertNotNull(stickerPack);
+        assertEquals(2, stickerPack.getStickers().size());
+        assertNull(store.loadStickerPack("c"));
+        store.close();
+    }
+
+    @Test
+    public void retriesImportWhileContentsJsonCannotBeParsed() throws IOException {
+        StickerPack incomplete = createStickerPack("a", 3);
+        incomplete.publisher = "";
+        writeContentFile(incomplete, createStickerPack("b", 3));
+        SqliteCatalogStore store = new SqliteCatalogStore(context, DATABASE_NAME, new TestJsonCatalogStore());
+        assertTrue(store.loadStickerPacks().isEmpty());
+        store.close();
+
+        //Corregido el archivo, la siguiente apertura lo importa entero.
+        writeContentFile(createStickerPack("a", 3), createStickerPack("b", 3));
+        store = new SqliteCatalogStore(context, DATABASE_NAME, new TestJsonCatalogStore());
+        List<StickerPack> stickerPacks = store.loadStickerPacks();
+        assertEquals(2, stickerPacks.size());
+        assertEquals("Autor", stickerPacks.get(0).publisher);
+        assertEquals(3, stickerPacks.get(1).getStickers().size());
+        store.close();
+    }
+
+    @Test
+    public void importsContentsJsonWithItsJournal() throws IOException {
+        writeContentFile(createStickerPack("a", 3), createStickerPack("b", 3));
+        CatalogJournal.append(journalFile, Arrays.asList(CatalogJournal.removePack("a"), CatalogJournal.addPack(createStickerPack("c", 3))));
+        SqliteCatalogStore store = new SqliteCatalogStore(context, DATABASE_NAME, new TestJsonCatalogStore());
+        List<StickerPack> stickerPacks = store.loadStickerPacks();
+        assertEquals(2, stickerPacks.size());
+        assertEquals("b", stickerPacks.get(0).identifier);
+        assertEquals("c", stickerPacks.get(1).identifier);
+        store.close();
+    }
+
+    @Test
+    public void importsJsonOnlyOnce() throws IOException {
+        writeContentFile(createStickerPack("a", 1));
+        SqliteCatalogStore store = new SqliteCatalogStore(context, DATABASE_NAME, new TestJsonCatalogStore());
+        assertEquals(1, store.loadStickerPacks().size());
+        store.close();
+
+        writeContentFile(createStickerPack("b", 1));
+        store = new SqliteCatalogStore(context, DATABASE_NAME, new TestJsonCatalogStore());
+        List<StickerPack> stickerPacks = store.loadStickerPacks();
+        assertEquals(1, stickerPacks.size());
+        assertEquals("a", stickerPacks.get(0).identifier);
+        store.close();
+    }
+
+    @Test
+    public void upgradesFromVersion1() {
+        SQLiteDatabase db = context.openOrCreateDatabase(DATABASE_NAME, Context.MODE_PRIVATE, null);
+        db.execSQL("CREATE TABLE packs (identifier TEXT PRIMARY KEY, position INTEGER NOT NULL, name TEXT NOT NULL, "
+                + "publisher TEXT NOT NULL, tray_image_file TEXT NOT NULL, publisher_email TEXT, publisher_website TEXT, "
+                + "privacy_policy_website TEXT, license_agreement_website TEXT, android_play_store_link TEXT, "
+                + "ios_app_store_link TEXT, image_data_version TEXT, avoid_cache INTEGER NOT NULL DEFAULT 0)");
+        db.execSQL("CREATE INDEX packs_position ON packs (position)");
+        db.execSQL("CREATE TABLE stickers (pack_identifier TEXT NOT NULL REFERENCES packs (identifier) ON DELETE CASCADE, "
+                + "image_file_name TEXT NOT NULL, position INTEGER NOT NULL, size INTEGER NOT NULL DEFAULT 0, "
+                + "PRIMARY KEY (pack_identifier, image_file_name))");
+        db.execSQL("CREATE INDEX stickers_position ON stickers (pack_identifier, position)");
+        db.execSQL("CREATE TABLE emojis (pack_identifier TEXT NOT NULL, image_file_name TEXT NOT NULL, position INTEGER NOT NULL, "
+                + "emoji TEXT NOT NULL, PRIMARY KEY (pack_identifier, image_file_name, position), "
+                + "FOREIGN KEY (pack_identifier, image_file_name) REFERENCES stickers (pack_identifier, image_file_name) ON DELETE CASCADE)");
+        db.execSQL("CREATE TABLE metadata (key TEXT PRIMARY KEY, value TEXT)");
+        db.execSQL("INSERT INTO packs (identifier, position, name, publisher, tray_image_file, image_data_version) VALUES ('a', 0, 'A', 'P', 'tray.png', '3')");
+        db.execSQL("INSERT INTO stickers (pack_identifier, image_file_name, position, size) VALUES ('a', 'a_0.webp', 0, 100)");
+        db.execSQL("INSERT INTO emojis (pack_identifier, image_file_name, position, emoji) VALUES ('a', 'a_0.webp', 0, '😀')");
+        db.execSQL("INSERT INTO metadata (key, value) VALUES ('json_imported', '1')");
+        db.setVersion(1);
+        db.close();
+
+        SqliteCatalogStore store = new SqliteCatalogStore(context, DATABASE_NAME, new TestJsonCatalogStore());
+        List<StickerPack> stickerPacks = store.loadStickerPacks();
+        assertEquals(1, stickerPacks.size());
+        StickerPack stickerPack = stickerPacks.get(0);
+        assertEquals("3", stickerPack.getImageDataVersion());
+        assertEquals(0, stickerPack.getTrayImageFileSize());
+        assertEquals(0, stickerPack.getTrayImageFileChecksum());
+        assertFalse(stickerPack.isTrayImageFileBroken());
+        Sticker sticker = stickerPack.getStickers().get(0);
+        assertEquals(100, sticker.getSize());
+        assertEquals(0, sticker.getChecksum());
+        assertFalse(sticker.isBroken());
+        assertEquals(Collections.singletonList("😀"), sticker.getEmojis());
+
+        //Las columnas añadidas por la migración se pueden escribir.
+        StickerPack updated = stickerPack.copy();
+        Sticker verified = sticker.copy();
+        verified.setChecksum(42);
+        verified.setBroken(true);
+        updated.setStickers(Collections.singletonList(verified));
+        updated.setTrayImageFileChecksum(7);
+        updated.setTrayImageFileBroken(true);
+        store.commit(Collections.singletonList(CatalogJournal.updatePack(updated)));
+        StickerPack reloaded = store.loadStickerPack("a");
+        assertNotNull(reloaded);
+        assertEquals(7, reloaded.getTrayImageFileChecksum());
+        assertTrue(reloaded.isTrayImageFileBroken());
+        assertEquals(42, reloaded.getStickers().get(0).getChecksum());
+        assertTrue(reloaded.getStickers().get(0).isBroken());
+        store.close();
+    }
+
+    @Test
+    public void appliesAddStickerAndReorderRecords() throws IOException {
+        writeContentFile(createStickerPack("a", 3));
+        SqliteCatalogStore store = new SqliteCatalogStore(context, DATABASE_NAME, new TestJsonCatalogStore());
+        StickerPack stickerPack = store.loadStickerPack("a");
+        assertNotNull(stickerPack);
+        Sticker added = new Sticker("a_3.webp", Collections.singletonList("🎉"));
+        added.setSize(103);
+        stickerPack.setImageDataVersion("2");
+        store.commit(Arrays.asList(CatalogJournal.addSticker(stickerPack, added), new CatalogJournal.Record(CatalogJournal.OP_ADD_STICKER)));
+        StickerPack reloaded = store.loadStickerPack("a");
+        assertNotNull(reloaded);
+        assertEquals("2", reloaded.getImageDataVersion());
+        assertEquals(4, reloaded.getStickers().size());
+        assertEquals("a_3.webp", reloaded.getStickers().get(3).imageFileName);
+        assertEquals(103, reloaded.getStickers().get(3).getSize());
+
+        List<Sticker> reordered = new ArrayList<>(reloaded.getStickers());
+        Collections.reverse(reordered);
+        reloaded.setStickers(reordered);
+        reloaded.setImageDataVersion("3");
+        store.commit(Collections.singletonList(CatalogJournal.reorder(reloaded)));
+        StickerPack reversed = store.loadStickerPack("a");
+        assertNotNull(reversed);
+        assertEquals("3", reversed.getImageDataVersion());
+        assertEquals("a_3.webp", reversed.getStickers().get(0).imageFileName);
+        assertEquals("a_0.webp", reversed.getStickers().get(3).imageFileName);
+        assertEquals(Arrays.asList("😀", "🎉"), reversed.getStickers().get(3).getEmojis());
+        store.close();
+    }
+
+    private static StickerPack createStickerPack(String identifier, int stickerCount) {
+        StickerPack stickerPack = new StickerPack(identifier, "Paquete " + identifier, "Autor", "tray.png", "", "", "", "");
+        stickerPack.setTrayImageFileSize(20);
+        stickerPack.setTrayImageFileChecksum(7);
+        List<Sticker> stickers = new ArrayList<>();
+        for (int i = 0; i < stickerCount; i++) {
+            Sticker sticker = new Sticker(identifier + "_" + i + ".webp", Arrays.asList("😀", "🎉"));
+            sticker.setSize(100 + i);
+            sticker.setChecksum(1000 + i);
+            stickers.add(sticker);
+        }
+        stickerPack.setStickers(stickers);
+        return stickerPack;
+    }
+
+    private void writeContentFile(StickerPack... stickerPacks) throws IOException {
+        StickerPacksManager.writeJson(new StickerPacksContainer("", "", Arrays.asList(stickerPacks)), contentFile);
+    }
+
+    /**
+     * contents.json y su diario en la caché de la prueba, legibles sin permiso de almacenamiento.
+     */
+    private class TestJsonCatalogStore extends JsonCatalogStore {
+        TestJsonCatalogStore() {
+            super(contentFile, journalFile);
+        }
+
+        @Override
+        boolean isReadable(Context context) {
+            return true;
+        }
+    }
+}
@@ -0,0 +1,161 @@
+package com.unusualapps.whatsappstickers.whatsapp_api;
+
+import android.os.Debug;
+import android.os.SystemClock;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+import com.google.gson.Gson;
+import com.unusualapps.whatsappstickers.identities.StickerPacksContainer;
+import org.junit.Assume;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+
+/**
+ * Comprueba que los adaptadores de StickerPackJson escriben lo mismo que la serialización por reflexión y que
+ * ContentFileParser lo lee. La comparación de coste entre ambas solo se ejecuta si se pide con el argumento de
+ * instrumentación benchmark=true, y escribe el resultado en el log sin comprobar nada: los tiempos y las asignaciones
+ * dependen del dispositivo, de ART y del recolector.
+ */
+@RunWith(AndroidJUnit4.class)
+public class StickerPackJsonTest {
+
+    private static final String TAG = "StickerPackJsonTest";
+    private static final String BENCHMARK_ARGUMENT = "benchmark";
+    private static final int ITERATIONS = 200;
+
+    @Test
+    public void writesSameJsonAsReflection() {
+        StickerPacksContainer container = createContainer(10, 30);
+        Gson reflective = new Gson();
+        assertEquals(reflective.toJsonTree(container), StickerPackJson.GSON.toJsonTree(container));
+    }
+
+    @Test
+    public void roundTripsWithContentFileParser() throws IOException {
+        StickerPacksContainer container = createContainer(10, 30);
+        byte[] json = StickerPackJson.GSON.toJson(container).getBytes(StandardCharsets.UTF_8);
+        List<StickerPack> parsed = ContentFileParser.parseStickerPacks(new ByteArrayInputStream(json));
+        assertEquals(container.getStickerPacks().size(), parsed.size());
+        for (int i = 0; i < parsed.size(); i++) {
+            StickerPack expected = container.getStickerPack(i);
+            StickerPack actual = parsed.get(i);
+            assertEquals(expected.identifier, actual.identifier);
+            assertEquals(expected.name, actual.name);
+            assertEquals(expected.getImageDataVersion(), actual.getImageDataVersion());
+            assertEquals(expected.getStickers().size(), actual.getStickers().size());
+            assertEquals(expected.getStickers().get(0).imageFileName, actual.getStickers().get(0).imageFileName);
+            assertEquals(expected.getStickers().get(0).getEmojis(), actual.getStickers().get(0).getEmojis());
+        }
+        StickerPacksContainer read = StickerPackJson.GSON.fromJson(new String(json, StandardCharsets.UTF_8), StickerPacksContainer.class);
+        assertEquals(StickerPackJson.GSON.toJsonTree(container), StickerPackJson.GSON.toJsonTree(read));
+    }
+
+    @Test
+    public void lazyParserMatchesContentFileParser() throws IOException {
+        StickerPacksContainer container = createContainer(10, 30);
+        byte[] json = StickerPackJson.GSON.toJson(container).getBytes(StandardCharsets.UTF_8);
+        List<StickerPack> parsed = ContentFileParser.parseStickerPacks(new ByteArrayInputStream(json));
+        List<StickerPack> lazy = ContentFileParser.parseStickerPacksLazily(new ByteArrayInputStream(json));
+        assertEquals(parsed.size(), lazy.size());
+        for (int i = 0; i < parsed.size(); i++) {
+            List<Sticker> stickers = lazy.get(i).getStickers();
+            assertFalse(((LazyStickerList) stickers).isDecoded());
+            assertEquals(parsed.get(i).getStickers().size(), stickers.size());
+            assertFalse(((LazyStickerList) stickers).isDecoded());
+            assertEquals(parsed.get(i).getStickers().get(29).imageFileName, stickers.get(29).imageFileName);
+            assertEquals(parsed.get(i).getStickers().get(29).getChecksum(), stickers.get(29).getChecksum());
+        }
+    }
+
+    @Test
+    public void lazyParserRejectsMalformedStickersUpFront() throws IOException {
+        String[] malformed = {
+                "[{\"imageFileName\": \"a.png\"}]",
+                "[{\"emojis\": [\"😀\"]}]",
+                "[{\"imageFileName\": \"a.webp\", \"emojis\": [null]}]",
+                "[{\"imageFileName\": \"a.webp\", \"size\": \"grande\"}]",
+                "[{\"imageFileName\": \"a.webp\"}",
+                "{}",
+                "[]"
+        };
+        for (String stickers : malformed) {
+            String json = "{\"stickerPacks\": [{\"identifier\": \"1\", \"name\": \"n\", \"publisher\": \"p\", "
+                    + "\"trayImageFile\": \"tray.png\", \"stickers\": " + stickers + "}]}";
+            try {
+                ContentFileParser.parseStickerPacksLazily(new ByteArrayInputStream(json.getBytes(StandardCharsets.UTF_8)));
+                fail("se aceptó " + stickers);
+            } catch (IllegalStateException expected) {
+                //El error sale al leer el catálogo, no al decodificar la lista después.
+            }
+        }
+    }
+
+    /**
+     * adb shell am instrument -w -e benchmark true -e class com.unusualapps.whatsappstickers.whatsapp_api.StickerPackJsonTest ...
+     */
+    @Test
+    public void benchmark() {
+        Assume.assumeTrue(Boolean.parseBoolean(InstrumentationRegistry.getArguments().getString(BENCHMARK_ARGUMENT)));
+        StickerPacksContainer container = createContainer(30, 30);
+        String json = StickerPackJson.GSON.toJson(container);
+        //Calentamiento, para que las dos variantes se midan ya compiladas.
+        measure(container, json, null, ITERATIONS / 4);
+        measure(container, json, StickerPackJson.GSON, ITERATIONS / 4);
+        long[] reflective = measure(container, json, null, ITERATIONS);
+        long[] streaming = measure(container, json, StickerPackJson.GSON, ITERATIONS);
+        Log.i(TAG, "reflexión: " + reflective[0] / 1000 + " us, " + reflective[1] + " objetos, " + reflective[2] + " bytes por iteración");
+        Log.i(TAG, "streaming: " + streaming[0] / 1000 + " us, " + streaming[1] + " objetos, " + streaming[2] + " bytes por iteración");
+    }
+
+    /**
+     * Serializa y vuelve a leer el contenedor. Con gson null se crea una instancia nueva en cada iteración,
+     * como hacía el código anterior.
+     *
+     * @return nanosegundos, objetos y bytes asignados por iteración
+     */
+    @SuppressWarnings("deprecation")
+    private static long[] measure(StickerPacksContainer container, String json, Gson gson, int iterations) {
+        Debug.resetThreadAllocCount();
+        Debug.resetThreadAllocSize();
+        Debug.startAllocCounting();
+        long start = SystemClock.elapsedRealtimeNanos();
+        for (int i = 0; i < iterations; i++) {
+            Gson instance = gson == null ? new Gson() : gson;
+            instance.toJson(container);
+            instance.fromJson(json, StickerPacksContainer.class);
+        }
+        long elapsed = SystemClock.elapsedRealtimeNanos() - start;
+        Debug.stopAllocCounting();
+        return new long[]{elapsed / iterations, Debug.getThreadAllocCount() / iterations, Debug.getThreadAllocSize() / iterations};
+    }
+
+    private static StickerPacksContainer createContainer(int packCount, int stickerCount) {
+        List<StickerPack> stickerPacks = new ArrayList<>();
+        for (int p = 0; p < packCount; p++) {
+            StickerPack stickerPack = new StickerPack("pack" + p, "Paquete " + p, "Publicador", "tray.png", "correo@ejemplo.com", null, "https://ejemplo.com/privacidad", "https://ejemplo.com/licencia");
+            List<Sticker> stickers = new ArrayList<>();
+            for (int i = 0; i < stickerCount; i++) {
+                Sticker sticker = new Sticker(i + ".webp", Arrays.asList("😀", "🎉"));
+                sticker.setSize(20_000 + i);
+                sticker.setChecksum(0x9e3779b9L + i);
+                stickers.add(sticker);
+            }
+            stickerPack.setStickers(stickers);
+            stickerPack.bumpImageDataVersion();
+            stickerPacks.add(stickerPack);
+        }
+        return new StickerPacksContainer("https://play.google.com/store/apps/details?id=com.unusualapps.whatsappstickers", "", stickerPacks);
+    }
+}
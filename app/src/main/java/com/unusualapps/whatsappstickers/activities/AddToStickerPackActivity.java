@@ -1,12 +1,12 @@
 package com.unusualapps.whatsappstickers.activities;
 
 import android.net.Uri;
+import android.os.AsyncTask;
 import android.support.v7.app.AppCompatActivity;
 import android.os.Bundle;
 import android.widget.Toast;
 import com.unusualapps.whatsappstickers.R;
-import com.unusualapps.whatsappstickers.identities.StickerPacksContainer;
-import com.unusualapps.whatsappstickers.utils.StickerPacksManager;
+import com.unusualapps.whatsappstickers.utils.StickerPacksRepository;
 
 import java.util.ArrayList;
 
@@ -19,7 +19,8 @@ public class AddToStickerPackActivity extends AppCompatActivity {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_add_to_sticker_pack);
         this.stickerUri = this.getIntent().getData();
-        StickerPacksManager.stickerPacksContainer = new StickerPacksContainer("", "", StickerPacksManager.getStickerPacks(this));
+        final StickerPacksRepository repository = StickerPacksRepository.getInstance(this);
+        AsyncTask.THREAD_POOL_EXECUTOR.execute(repository::getSnapshot);
         getSupportActionBar().setDisplayHomeAsUpEnabled(true);
         Toast.makeText(this, stickerUri.getPath(), Toast.LENGTH_LONG).show();
     }
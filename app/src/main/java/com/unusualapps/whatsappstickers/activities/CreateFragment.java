@@ -10,6 +10,8 @@ import android.graphics.Bitmap;
 import android.graphics.Color;
 import android.net.Uri;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
 import android.provider.MediaStore;
 import android.support.annotation.NonNull;
 import android.support.v7.widget.GridLayoutManager;
@@ -28,36 +30,31 @@ import com.unusualapps.whatsappstickers.R;
 import com.unusualapps.whatsappstickers.backgroundRemover.CutOut;
 import com.unusualapps.whatsappstickers.constants.Constants;
 import com.unusualapps.whatsappstickers.utils.FileUtils;
+import com.unusualapps.whatsappstickers.utils.StickerFilesWatcher;
 import com.unusualapps.whatsappstickers.utils.StickerPacksManager;
 
-import java.io.File;
 import java.util.ArrayList;
-import java.util.Objects;
+import java.util.List;
 
 public class CreateFragment extends Fragment {
     ImagesGridAdapter imagesGridAdapter;
     View view;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+    //StickerFilesWatcher mantiene la lista de stickers creados al día; aquí solo se muestra
+    private final StickerFilesWatcher.OnCreatedStickersChangedListener createdStickersListener = stickers -> mainHandler.post(() -> showStickersCreated(stickers));
 
     public CreateFragment() {
         // Required empty public constructor
     }
 
-    private ArrayList<Uri> loadStickersCreated() {
-        String directoryPath = Constants.STICKERS_CREATED_DIRECTORY_PATH;
-        File directory = new File(directoryPath);
-        ArrayList<Uri> images = new ArrayList<>();
-        if (directory.exists()) {
-            File[] stickersImages = directory.listFiles();
-            for (File f : stickersImages) {
-                if (f.isFile() && (f.getName().contains(".png") || f.getName().contains(".PNG"))) {
-                    images.add(Uri.fromFile((f)));
-                }
-            }
-        } else {
-            directory.mkdir();
+    private void showStickersCreated(List<Uri> stickers) {
+        if (imagesGridAdapter == null) {
+            return;
         }
+        imagesGridAdapter.uries = new ArrayList<>(stickers);
+        imagesGridAdapter.notifyDataSetChanged();
         verifyStickersCount();
-        return images;
     }
 
 
@@ -82,12 +79,19 @@ public class CreateFragment extends Fragment {
         RecyclerView gridview = view.findViewById(R.id.stickers_created_grid);
         GridLayoutManager gridLayoutManager = new GridLayoutManager(view.getContext(), 3);
         gridview.setLayoutManager(gridLayoutManager);
-        imagesGridAdapter = new ImagesGridAdapter(view.getContext(), loadStickersCreated());
+        imagesGridAdapter = new ImagesGridAdapter(view.getContext(), new ArrayList<>());
         gridview.setAdapter(imagesGridAdapter);
         verifyStickersCount();
+        StickerFilesWatcher.getInstance(view.getContext()).addCreatedStickersListener(createdStickersListener);
         return view;
     }
 
+    @Override
+    public void onDestroyView() {
+        StickerFilesWatcher.getInstance(view.getContext()).removeCreatedStickersListener(createdStickersListener);
+        super.onDestroyView();
+    }
+
     public void verifyStickersCount() {
         View linearLayout = view.findViewById(R.id.no_stickers_icon);
         if (imagesGridAdapter == null || imagesGridAdapter.getItemCount() == 0) {
@@ -118,10 +122,7 @@ public class CreateFragment extends Fragment {
                     Uri imagePath = Uri.parse(Constants.STICKERS_CREATED_DIRECTORY_PATH + stickerName + ".PNG");
                     StickerPacksManager.createStickerImageFile(imageUri, imagePath, getActivity(), Bitmap.CompressFormat.PNG);
                     addImageToGallery(imagePath.getPath(), getActivity());
-                    imagesGridAdapter.uries = loadStickersCreated();
-                    imagesGridAdapter.notifyDataSetChanged();
                     Toast.makeText(getActivity(), "Sticker creado", Toast.LENGTH_LONG).show();
-                    verifyStickersCount();
                     break;
                 case CutOut.CUTOUT_ACTIVITY_RESULT_ERROR_CODE:
                     Exception ex = CutOut.getError(data);
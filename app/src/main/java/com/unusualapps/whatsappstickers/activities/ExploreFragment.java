@@ -2,13 +2,34 @@ package com.unusualapps.whatsappstickers.activities;
 
 import android.support.v4.app.Fragment;
 import android.os.Bundle;
+import android.support.v7.widget.DividerItemDecoration;
+import android.support.v7.widget.LinearLayoutManager;
+import android.support.v7.widget.RecyclerView;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
 import com.unusualapps.whatsappstickers.R;
+import com.unusualapps.whatsappstickers.utils.BundledStickerPacks;
+import com.unusualapps.whatsappstickers.whatsapp_api.AddStickerPackActivity;
+import com.unusualapps.whatsappstickers.whatsapp_api.StickerPack;
+import com.unusualapps.whatsappstickers.whatsapp_api.StickerPackListAdapter;
+import com.unusualapps.whatsappstickers.whatsapp_api.StickerPackListItemViewHolder;
 
+import java.util.List;
+
+/**
+ * Muestra los paquetes de solo lectura incluidos en el apk. No dependen del almacenamiento externo,
+ * así que la lista está disponible al instante.
+ */
 public class ExploreFragment extends Fragment {
 
+    private LinearLayoutManager layoutManager;
+    private RecyclerView stickersRecyclerView;
+    private StickerPackListAdapter stickerListAdapter;
+    private final StickerPackListAdapter.OnAddButtonClickedListener onAddButtonClickedListener = pack -> {
+        ((AddStickerPackActivity) getActivity()).addStickerPackToWhatsApp(pack.identifier, pack.name);
+    };
+
     public ExploreFragment() {
     }
 
@@ -26,7 +47,29 @@ public class ExploreFragment extends Fragment {
     @Override
     public View onCreateView(LayoutInflater inflater, ViewGroup container,
                              Bundle savedInstanceState) {
-        return inflater.inflate(R.layout.fragment_explore, container, false);
+        View view = inflater.inflate(R.layout.fragment_explore, container, false);
+        List<StickerPack> stickerPacks = BundledStickerPacks.getStickerPacks(view.getContext());
+        layoutManager = new LinearLayoutManager(view.getContext());
+        stickersRecyclerView = view.findViewById(R.id.explore_recycler_list);
+        stickersRecyclerView.setLayoutManager(layoutManager);
+        stickerListAdapter = new StickerPackListAdapter(stickerPacks, onAddButtonClickedListener, null);
+        stickersRecyclerView.setAdapter(stickerListAdapter);
+        stickersRecyclerView.addItemDecoration(new DividerItemDecoration(stickersRecyclerView.getContext(), layoutManager.getOrientation()));
+        stickersRecyclerView.getViewTreeObserver().addOnGlobalLayoutListener(this::recalculateColumnCount);
+        view.findViewById(R.id.explore_empty_text).setVisibility(stickerPacks.isEmpty() ? View.VISIBLE : View.GONE);
+        return view;
+    }
+
+    private void recalculateColumnCount() {
+        if (getActivity() == null) {
+            return;
+        }
+        final int previewSize = getActivity().getResources().getDimensionPixelSize(R.dimen.sticker_pack_list_item_preview_image_size);
+        StickerPackListItemViewHolder viewHolder = (StickerPackListItemViewHolder) stickersRecyclerView.findViewHolderForAdapterPosition(layoutManager.findFirstVisibleItemPosition());
+        if (viewHolder != null) {
+            final int max = Math.max(viewHolder.imageRowView.getMeasuredWidth() / previewSize, 1);
+            stickerListAdapter.setMaxNumberOfStickersInARow(Math.min(StickerPackListAdapter.STICKER_PREVIEW_DISPLAY_LIMIT, max));
+        }
     }
 
 }
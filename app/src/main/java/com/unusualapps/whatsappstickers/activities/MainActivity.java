@@ -1,15 +1,19 @@
 package com.unusualapps.whatsappstickers.activities;
 
+import android.os.AsyncTask;
 import android.os.Build;
 import android.support.v4.app.Fragment;
 import android.support.v4.app.FragmentTransaction;
+import android.content.Context;
 import android.content.Intent;
 import android.os.Bundle;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 import android.support.design.widget.BottomNavigationView;
+import android.view.Menu;
 import android.view.MenuItem;
 import android.view.View;
+import android.widget.Toast;
 import com.facebook.drawee.backends.pipeline.Fresco;
 import com.github.florent37.depth.DepthProvider;
 import com.github.florent37.depth.animations.EnterConfiguration;
@@ -18,10 +22,16 @@ import com.github.florent37.depth.animations.ReduceConfiguration;
 import com.sangcomz.fishbun.define.Define;
 import com.unusualapps.whatsappstickers.R;
 import com.unusualapps.whatsappstickers.backgroundRemover.CutOut;
-import com.unusualapps.whatsappstickers.identities.StickerPacksContainer;
+import com.unusualapps.whatsappstickers.constants.Constants;
+import com.unusualapps.whatsappstickers.utils.StickerFilesWatcher;
 import com.unusualapps.whatsappstickers.utils.StickerPacksManager;
+import com.unusualapps.whatsappstickers.utils.StickerPacksRepository;
+import com.unusualapps.whatsappstickers.utils.StorageSweepJobService;
 import com.unusualapps.whatsappstickers.whatsapp_api.AddStickerPackActivity;
+import com.unusualapps.whatsappstickers.whatsapp_api.StickerContentProvider;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.Objects;
 
 
@@ -38,7 +48,15 @@ public class MainActivity extends AddStickerPackActivity {
         this.initBottomNavigation();
         this.setupFragments();
         setFragmento(myStickersFragment);
-        StickerPacksManager.stickerPacksContainer = new StickerPacksContainer("", "", StickerPacksManager.getStickerPacks(this));
+        final Context applicationContext = getApplicationContext();
+        //Carga el catálogo en segundo plano; las pantallas reciben la instantánea cuando está lista.
+        final StickerPacksRepository repository = StickerPacksRepository.getInstance(applicationContext);
+        AsyncTask.THREAD_POOL_EXECUTOR.execute(repository::getSnapshot);
+        //El catálogo solo lo escribe el proveedor; se le pide que mida los paquetes antiguos.
+        AsyncTask.THREAD_POOL_EXECUTOR.execute(() -> applicationContext.getContentResolver().call(StickerContentProvider.AUTHORITY_URI,
+                StickerContentProvider.METHOD_MEASURE_MISSING_SIZES, null, null));
+        StorageSweepJobService.schedule(applicationContext);
+        StickerFilesWatcher.getInstance(applicationContext).start();
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
             getWindow().getDecorView().setSystemUiVisibility(View.SYSTEM_UI_FLAG_LIGHT_STATUS_BAR);
         }
@@ -62,6 +80,47 @@ public class MainActivity extends AddStickerPackActivity {
         }
     };
 
+    @Override
+    public boolean onCreateOptionsMenu(Menu menu) {
+        getMenuInflater().inflate(R.menu.main_menu, menu);
+        return super.onCreateOptionsMenu(menu);
+    }
+
+    /**
+     * Exporta o importa el catálogo con el formato de contents.json en Constants.CATALOG_EXPORT_FILE_PATH, fuera del
+     * hilo principal.
+     */
+    @Override
+    public boolean onOptionsItemSelected(MenuItem item) {
+        final Context applicationContext = getApplicationContext();
+        final File file = new File(Constants.CATALOG_EXPORT_FILE_PATH);
+        if (item.getItemId() == R.id.action_export_catalog) {
+            AsyncTask.THREAD_POOL_EXECUTOR.execute(() -> {
+                try {
+                    StickerPacksManager.exportToJson(applicationContext, file);
+                    showToast("Paquetes exportados a " + file.getPath());
+                } catch (IOException e) {
+                    showToast("No se pudieron exportar los paquetes");
+                }
+            });
+            return true;
+        } else if (item.getItemId() == R.id.action_import_catalog) {
+            AsyncTask.THREAD_POOL_EXECUTOR.execute(() -> {
+                try {
+                    showToast(StickerPacksManager.importFromJson(applicationContext, file) + " paquetes importados");
+                } catch (IOException | IllegalStateException | IllegalArgumentException e) {
+                    showToast("No se pudieron importar los paquetes de " + file.getPath());
+                }
+            });
+            return true;
+        }
+        return super.onOptionsItemSelected(item);
+    }
+
+    private void showToast(String message) {
+        runOnUiThread(() -> Toast.makeText(this, message, Toast.LENGTH_LONG).show());
+    }
+
     @Override
     public void onActivityResult(int requestCode, int resultCode, Intent data) {
         if (requestCode == CutOut.CUTOUT_ACTIVITY_REQUEST_CODE || requestCode == Define.ALBUM_REQUEST_CODE) {
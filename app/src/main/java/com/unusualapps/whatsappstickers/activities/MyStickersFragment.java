@@ -2,7 +2,10 @@ package com.unusualapps.whatsappstickers.activities;
 
 import android.support.v4.app.Fragment;
 import android.content.Intent;
+import android.os.AsyncTask;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
 import android.support.design.widget.FloatingActionButton;
 import android.support.v4.widget.SwipeRefreshLayout;
 import android.support.v7.widget.DividerItemDecoration;
@@ -13,22 +16,37 @@ import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
 import com.unusualapps.whatsappstickers.R;
-import com.unusualapps.whatsappstickers.utils.StickerPacksManager;
-import com.unusualapps.whatsappstickers.whatsapp_api.StickerPack;
+import com.unusualapps.whatsappstickers.utils.StickerPacksRepository;
 import com.unusualapps.whatsappstickers.whatsapp_api.StickerPackListAdapter;
 import com.unusualapps.whatsappstickers.whatsapp_api.StickerPackListItemViewHolder;
 
-import java.util.List;
+import java.util.Collections;
 
 public class MyStickersFragment extends Fragment {
 
-    private static final int STICKER_PREVIEW_DISPLAY_LIMIT = 5;
     private LinearLayoutManager layoutManager;
     private RecyclerView stickersRecyclerView;
     private final StickerPackListAdapter.OnAddButtonClickedListener onAddButtonClickedListener = pack -> {
         ((MainActivity) getActivity()).addStickerPackToWhatsApp(pack.identifier, pack.name);
     };
     private StickerPackListAdapter stickerListAdapter;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    //Los cambios pueden llegar desde cualquier hilo; el adaptador descarta las versiones que ya ha visto. Cuando el
+    //proveedor (en otro proceso) cambia el catálogo, el repositorio lo recarga en segundo plano y avisa por aquí.
+    private final StickerPacksRepository.OnStickerPacksChangedListener catalogListener = snapshot -> mainHandler.post(() -> submitSnapshot(snapshot));
+    //Hasta la primera instantánea no se sabe si la lista está vacía
+    private boolean snapshotLoaded;
+    private final RecyclerView.AdapterDataObserver emptyStateObserver = new RecyclerView.AdapterDataObserver() {
+        @Override
+        public void onItemRangeInserted(int positionStart, int itemCount) {
+            verifyStickersCount();
+        }
+
+        @Override
+        public void onItemRangeRemoved(int positionStart, int itemCount) {
+            verifyStickersCount();
+        }
+    };
 
     public MyStickersFragment() {
 
@@ -37,19 +55,47 @@ public class MyStickersFragment extends Fragment {
     @Override
     public void onResume() {
         super.onResume();
-        stickerListAdapter.setStickerPackList(StickerPacksManager.getStickerPacks(getActivity()));
-        stickerListAdapter.notifyDataSetChanged();
-        verifyStickersCount();
+        refreshSnapshot(null);
+    }
+
+    /**
+     * Lee la instantánea fuera del hilo principal, porque puede tener que recargar el catálogo, y la envía al adaptador.
+     */
+    private void refreshSnapshot(Runnable onDone) {
+        final StickerPacksRepository repository = StickerPacksRepository.getInstance(getActivity());
+        AsyncTask.THREAD_POOL_EXECUTOR.execute(() -> {
+            StickerPacksRepository.Snapshot snapshot = repository.getSnapshot();
+            mainHandler.post(() -> {
+                submitSnapshot(snapshot);
+                if (onDone != null) {
+                    onDone.run();
+                }
+            });
+        });
+    }
+
+    private void submitSnapshot(StickerPacksRepository.Snapshot snapshot) {
+        if (stickerListAdapter == null) {
+            return;
+        }
+        stickerListAdapter.submitSnapshot(snapshot);
+        if (!snapshotLoaded) {
+            snapshotLoaded = true;
+            verifyStickersCount();
+        }
     }
 
     private View view;
 
+    /**
+     * La lista empieza vacía; la instantánea llega con refreshSnapshot, que la lee fuera del hilo principal.
+     */
     private void initRecyclerView() {
-        List<StickerPack> stickersPacks = StickerPacksManager.stickerPacksContainer.getStickerPacks();
         layoutManager = new GridLayoutManager(view.getContext(), LinearLayoutManager.VERTICAL);
         stickersRecyclerView = view.findViewById(R.id.stickers_recycler_list);
         stickersRecyclerView.setLayoutManager(layoutManager);
-        stickerListAdapter = new StickerPackListAdapter(stickersPacks, onAddButtonClickedListener, this);
+        stickerListAdapter = new StickerPackListAdapter(Collections.emptyList(), onAddButtonClickedListener, this);
+        stickerListAdapter.registerAdapterDataObserver(emptyStateObserver);
 
         stickersRecyclerView.setAdapter(stickerListAdapter);
         stickersRecyclerView.setItemViewCacheSize(20);
@@ -63,12 +109,7 @@ public class MyStickersFragment extends Fragment {
 
     private void initSwipeRefresh() {
         SwipeRefreshLayout swipeRefreshLayout = view.findViewById(R.id.refresh_my_stickers_swiper);
-        swipeRefreshLayout.setOnRefreshListener(() -> {
-            List<StickerPack> stickersPacks = StickerPacksManager.getStickerPacks(getActivity());
-            stickerListAdapter.setStickerPackList(stickersPacks);
-            swipeRefreshLayout.setRefreshing(false);
-            verifyStickersCount();
-        });
+        swipeRefreshLayout.setOnRefreshListener(() -> refreshSnapshot(() -> swipeRefreshLayout.setRefreshing(false)));
     }
 
     private void recalculateColumnCount() {
@@ -77,7 +118,7 @@ public class MyStickersFragment extends Fragment {
         StickerPackListItemViewHolder viewHolder = (StickerPackListItemViewHolder) stickersRecyclerView.findViewHolderForAdapterPosition(firstVisibleItemPosition);
         if (viewHolder != null) {
             final int max = Math.max(viewHolder.imageRowView.getMeasuredWidth() / previewSize, 1);
-            int numColumns = Math.min(STICKER_PREVIEW_DISPLAY_LIMIT, max);
+            int numColumns = Math.min(StickerPackListAdapter.STICKER_PREVIEW_DISPLAY_LIMIT, max);
             stickerListAdapter.setMaxNumberOfStickersInARow(numColumns);
         }
     }
@@ -92,7 +133,7 @@ public class MyStickersFragment extends Fragment {
 
     public void verifyStickersCount() {
         View linearLayout = view.findViewById(R.id.no_stickerspacks_icon);
-        if (stickerListAdapter.getItemCount() == 0) {
+        if (snapshotLoaded && stickerListAdapter.getItemCount() == 0) {
             linearLayout.setVisibility(View.VISIBLE);
         } else {
             linearLayout.setVisibility(View.GONE);
@@ -111,6 +152,16 @@ public class MyStickersFragment extends Fragment {
         this.initButtons();
         this.initSwipeRefresh();
         this.verifyStickersCount();
+        StickerPacksRepository.getInstance(getActivity()).addListener(catalogListener);
         return view;
     }
+
+    @Override
+    public void onDestroyView() {
+        StickerPacksRepository.getInstance(getActivity()).removeListener(catalogListener);
+        stickerListAdapter.unregisterAdapterDataObserver(emptyStateObserver);
+        stickerListAdapter = null;
+        snapshotLoaded = false;
+        super.onDestroyView();
+    }
 }
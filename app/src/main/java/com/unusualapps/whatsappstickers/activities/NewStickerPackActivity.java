@@ -14,22 +14,19 @@ import android.view.View;
 import android.view.ViewGroup;
 import android.widget.*;
 import com.facebook.drawee.view.SimpleDraweeView;
-import com.google.gson.Gson;
 import com.sangcomz.fishbun.FishBun;
 import com.sangcomz.fishbun.adapter.image.impl.GlideAdapter;
 import com.sangcomz.fishbun.define.Define;
 import com.unusualapps.whatsappstickers.R;
-import com.unusualapps.whatsappstickers.constants.Constants;
-import com.unusualapps.whatsappstickers.utils.FileUtils;
 import com.unusualapps.whatsappstickers.utils.StickerPacksManager;
-import com.unusualapps.whatsappstickers.whatsapp_api.Sticker;
 import com.unusualapps.whatsappstickers.whatsapp_api.StickerContentProvider;
 import com.unusualapps.whatsappstickers.whatsapp_api.StickerPack;
 import com.unusualapps.whatsappstickers.whatsapp_api.StickerPackDetailsActivity;
+import com.unusualapps.whatsappstickers.whatsapp_api.StickerPackJson;
+import com.unusualapps.whatsappstickers.whatsapp_api.StickerPackValidator;
 
 import java.util.ArrayList;
 import java.util.List;
-import java.util.Objects;
 
 public class NewStickerPackActivity extends AppCompatActivity {
     ImageAdapter imageAdapter;
@@ -81,7 +78,7 @@ public class NewStickerPackActivity extends AppCompatActivity {
 
         if (item.getItemId() == R.id.save_sticker_pack) {
             if (validateValues()) {
-                Toast.makeText(this, "Tienes que rellenar todos los espacios vacíos", Toast.LENGTH_SHORT).show();
+                Toast.makeText(this, "Tienes que rellenar todos los espacios vacíos y elegir al menos " + StickerPackValidator.STICKER_SIZE_MIN + " stickers", Toast.LENGTH_SHORT).show();
             } else {
                 saveStickerPack(imageAdapter.uries, nameEdit.getText().toString(), authorEdit.getText().toString());
             }
@@ -90,7 +87,7 @@ public class NewStickerPackActivity extends AppCompatActivity {
     }
 
     private boolean validateValues() {
-        return nameEdit.getText().toString().trim().length() == 0 || authorEdit.getText().toString().trim().length() == 0 || imageAdapter.uries.size() == 0;
+        return nameEdit.getText().toString().trim().length() == 0 || authorEdit.getText().toString().trim().length() == 0 || imageAdapter.uries.size() < StickerPackValidator.STICKER_SIZE_MIN;
     }
 
     private void saveStickerPack(List<Uri> uries, String name, String author) {
@@ -106,38 +103,34 @@ public class NewStickerPackActivity extends AppCompatActivity {
                 Intent intent = new Intent(NewStickerPackActivity.this, StickerPackDetailsActivity.class);
                 intent.putExtra(StickerPackDetailsActivity.EXTRA_SHOW_UP_BUTTON, true);
 
-                String identifier = "." + FileUtils.generateRandomIdentifier();
-                StickerPack stickerPack = new StickerPack(identifier, name, author, Objects.requireNonNull(uries.toArray())[0].toString(), "", "", "", "");
+                //Guarda las imágenes de los stickers y el icono de la bandeja en staging y publica la carpeta completa
+                StickerPack stickerPack = StickerPacksManager.createStickerPack(NewStickerPackActivity.this, name, author, uries);
 
-                //Guarda las imágenes de los stickers localmente y obtiene la lista de nuevos stickers para el paquete
-                List<Sticker> stickerList = StickerPacksManager.saveStickerPackFilesLocally(stickerPack.identifier, uries, NewStickerPackActivity.this);
-                stickerPack.setStickers(stickerList);
-
-                //Genera icono de la bandeja de imágenes
-                String stickerPath = Constants.STICKERS_DIRECTORY_PATH + identifier;
-                String trayIconFile = FileUtils.generateRandomIdentifier() + ".png";
-                StickerPacksManager.createStickerPackTrayIconFile(uries.get(0), Uri.parse(stickerPath + "/" + trayIconFile), NewStickerPackActivity.this);
-                stickerPack.trayImageFile = trayIconFile;
-
-                //Guarda el stickerpack creado para escribir en json
-                StickerPacksManager.stickerPacksContainer.addStickerPack(stickerPack);
-                StickerPacksManager.saveStickerPacksToJson(StickerPacksManager.stickerPacksContainer);
+                //Añade el stickerpack al catálogo a través del proveedor, en una sola escritura que notifica a las pantallas
                 insertStickerPackInContentProvider(stickerPack);
 
                 //Comienza nueva actividad con la informacion de stickerpack
                 intent.putExtra(StickerPackDetailsActivity.EXTRA_STICKER_PACK_DATA, stickerPack);
                 startActivity(intent);
                 NewStickerPackActivity.this.finish();
+            } catch (StickerPacksManager.TooFewStickersException e) {
+                //Varias imágenes eran la misma; WhatsApp no acepta el paquete con menos stickers.
+                showError("Solo hay " + e.getStickerCount() + " stickers distintos, elige al menos " + StickerPackValidator.STICKER_SIZE_MIN + " imágenes diferentes");
             } catch (Exception e) {
                 e.printStackTrace();
+                showError("No se pudo crear el paquete de stickers");
             }
             progressDialog.dismiss();
         }).start();
     }
 
+    private void showError(String message) {
+        runOnUiThread(() -> Toast.makeText(this, message, Toast.LENGTH_LONG).show());
+    }
+
     private void insertStickerPackInContentProvider(StickerPack stickerPack) {
         ContentValues contentValues = new ContentValues();
-        contentValues.put("stickerPack", new Gson().toJson(stickerPack));
+        contentValues.put(StickerContentProvider.STICKER_PACK_IN_VALUES, StickerPackJson.GSON.toJson(stickerPack));
         getContentResolver().insert(StickerContentProvider.AUTHORITY_URI, contentValues);
     }
 
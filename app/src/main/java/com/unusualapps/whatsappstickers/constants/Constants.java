@@ -6,5 +6,15 @@ public class Constants {
 
     public final static String STICKERS_DIRECTORY_PATH = Environment.getExternalStorageDirectory() + "/stickerPacks/";
     public final static String STICKERS_CREATED_DIRECTORY_PATH = Environment.getExternalStorageDirectory() + "/stickersCreated/";
+    //Copia del catálogo con el formato de contents.json, para exportarlo e importarlo a mano
+    public final static String CATALOG_EXPORT_FILE_PATH = Environment.getExternalStorageDirectory() + "/stickerPacksExport/contents.json";
     public final static int STICKER_PACK_IDENTIFIER_LENGHT = 20;
+    //Guarda los paquetes nuevos en un único blob con índice (PackBlobStore) en lugar de archivos sueltos
+    public final static boolean PACKED_STICKER_STORAGE = false;
+    //Guarda cada sticker como png sin pérdida y deja que el proveedor genere el webp bajo demanda (StickerTranscoder)
+    public final static boolean KEEP_LOSSLESS_MASTERS = false;
+    //Guarda el catálogo en SQLite (SqliteCatalogStore); contents.json solo se lee para importarlo la primera vez
+    public final static boolean SQLITE_CATALOG = true;
+    //Guarda stickers e iconos una sola vez en objects/, con el hash del contenido como nombre (StickerObjectStore)
+    public final static boolean CONTENT_ADDRESSED_STORAGE = true;
 }
@@ -0,0 +1,105 @@
+package com.unusualapps.whatsappstickers.utils;
+
+import android.content.Context;
+import android.content.res.AssetFileDescriptor;
+import android.util.Log;
+import com.unusualapps.whatsappstickers.whatsapp_api.ContentFileParser;
+import com.unusualapps.whatsappstickers.whatsapp_api.Sticker;
+import com.unusualapps.whatsappstickers.whatsapp_api.StickerPack;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Paquetes de solo lectura incluidos en el apk, en assets/bundled_packs/ con la misma estructura que STICKERS_DIRECTORY_PATH
+ * (un contents.json y una carpeta por paquete). Los archivos no se extraen: el proveedor los sirve con AssetManager.openFd,
+ * que solo funciona con archivos sin comprimir (los webp están en noCompress y aapt no comprime los png).
+ * Mientras el apk no incluya assets/bundled_packs/contents.json no hay paquetes incluidos y la lista queda vacía sin error;
+ * un contents.json sin paquetes sí se considera inválido, como en STICKERS_DIRECTORY_PATH.
+ */
+public class BundledStickerPacks {
+
+    private static final String TAG = "BundledStickerPacks";
+    private static final String ASSETS_DIRECTORY = "bundled_packs";
+
+    private static volatile List<StickerPack> stickerPacks = null;
+    //Se publica antes que stickerPacks, así que está completo en cuanto stickerPacks no es null
+    private static volatile Set<String> identifiers = Collections.emptySet();
+    private static final Map<String, Long> sizes = new ConcurrentHashMap<>();
+
+    /**
+     * Devuelve los paquetes incluidos. Los assets no cambian mientras la aplicación está instalada,
+     * así que contents.json se parsea una sola vez por proceso.
+     */
+    public static List<StickerPack> getStickerPacks(Context context) {
+        List<StickerPack> current = stickerPacks;
+        if (current != null) {
+            return current;
+        }
+        synchronized (BundledStickerPacks.class) {
+            if (stickerPacks == null) {
+                List<StickerPack> loaded = readStickerPacks(context);
+                Set<String> loadedIdentifiers = new HashSet<>();
+                for (StickerPack stickerPack : loaded) {
+                    loadedIdentifiers.add(stickerPack.identifier);
+                }
+                identifiers = Collections.unmodifiableSet(loadedIdentifiers);
+                stickerPacks = Collections.unmodifiableList(loaded);
+            }
+            return stickerPacks;
+        }
+    }
+
+    private static List<StickerPack> readStickerPacks(Context context) {
+        try (InputStream contentsInputStream = context.getAssets().open(ASSETS_DIRECTORY + "/contents.json")) {
+            return ContentFileParser.parseStickerPacksLazily(contentsInputStream);
+        } catch (FileNotFoundException e) {
+            return new ArrayList<>();
+        } catch (IOException | IllegalStateException e) {
+            Log.e(TAG, "contents.json de los paquetes incluidos no es válido", e);
+            return new ArrayList<>();
+        }
+    }
+
+    /**
+     * Indica si el identificador pertenece a un paquete incluido. La primera llamada del proceso lee los paquetes
+     * incluidos si nadie lo ha hecho antes.
+     */
+    public static boolean isBundled(Context context, String identifier) {
+        if (stickerPacks == null) {
+            getStickerPacks(context);
+        }
+        return identifiers.contains(identifier);
+    }
+
+    public static AssetFileDescriptor openAssetFile(Context context, String identifier, String fileName) throws IOException {
+        return context.getAssets().openFd(ASSETS_DIRECTORY + "/" + identifier + "/" + fileName);
+    }
+
+    /**
+     * Tamaño en bytes de los archivos del paquete, tomado de las longitudes de sus entradas en el apk.
+     */
+    public static long getSize(Context context, StickerPack stickerPack) {
+        Long size = sizes.get(stickerPack.identifier);
+        if (size != null) {
+            return size;
+        }
+        long total = getAssetLength(context, stickerPack.identifier, stickerPack.trayImageFile);
+        for (Sticker sticker : stickerPack.getStickers()) {
+            total += getAssetLength(context, stickerPack.identifier, sticker.imageFileName);
+        }
+        sizes.put(stickerPack.identifier, total);
+        return total;
+    }
+
+    private static long getAssetLength(Context context, String identifier, String fileName) {
+        try (AssetFileDescriptor fileDescriptor = openAssetFile(context, identifier, fileName)) {
+            return fileDescriptor.getLength();
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+}
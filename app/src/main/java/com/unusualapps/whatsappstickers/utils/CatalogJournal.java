@@ -0,0 +1,365 @@
+package com.unusualapps.whatsappstickers.utils;
+
+import android.util.Log;
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import com.unusualapps.whatsappstickers.constants.Constants;
+import com.unusualapps.whatsappstickers.whatsapp_api.Sticker;
+import com.unusualapps.whatsappstickers.whatsapp_api.StickerPack;
+import com.unusualapps.whatsappstickers.whatsapp_api.StickerPackJson;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * Diario de cambios del catálogo. Cada mutación se anexa a contents.journal como una línea json y se sincroniza
+ * con disco; contents.json queda como instantánea y el estado real es la instantánea más el diario reproducido.
+ * Cuando el diario crece más que la instantánea se compacta: se reescribe contents.json (tmp, fsync y rename)
+ * y se vacía el diario. Anexar, compactar y vaciar se hace siempre con el cerrojo exclusivo de CatalogVersion, porque
+ * escriben dos procesos.
+ * <p>
+ * Añadir un sticker o reordenar los de un paquete se anotan por separado, sin repetir el paquete entero, para que
+ * el coste de cada cambio no crezca con la biblioteca.
+ * <p>
+ * Las operaciones son idempotentes (añadir reemplaza, borrar lo que no existe no hace nada, un sticker que ya está
+ * no se añade otra vez) para que reproducir un diario que ya estaba incluido en la instantánea, si se cae el proceso
+ * entre el rename y el vaciado, deje el mismo resultado.
+ */
+public class CatalogJournal {
+
+    private static final String TAG = "CatalogJournal";
+    private static final String JOURNAL_FILE_NAME = "contents.journal";
+    //Por debajo de este tamaño nunca se compacta, aunque la instantánea sea más pequeña
+    private static final long MIN_COMPACTION_BYTES = 64 * 1024;
+
+    static final String OP_ADD_PACK = "add_pack";
+    static final String OP_UPDATE_PACK = "update_pack";
+    static final String OP_REMOVE_PACK = "remove_pack";
+    static final String OP_ADD_STICKER = "add_sticker";
+    static final String OP_REORDER = "reorder";
+
+    static class Record {
+        String op;
+        String identifier;
+        StickerPack stickerPack;
+        Sticker sticker;
+        //Nombres de archivo de los stickers del paquete en su orden nuevo
+        List<String> fileNames;
+        String imageDataVersion;
+
+        Record(String op) {
+            this.op = op;
+        }
+    }
+
+    static Record addPack(StickerPack stickerPack) {
+        Record record = new Record(OP_ADD_PACK);
+        record.stickerPack = stickerPack;
+        return record;
+    }
+
+    static Record updatePack(StickerPack stickerPack) {
+        Record record = new Record(OP_UPDATE_PACK);
+        record.stickerPack = stickerPack;
+        return record;
+    }
+
+    static Record removePack(String identifier) {
+        Record record = new Record(OP_REMOVE_PACK);
+        record.identifier = identifier;
+        return record;
+    }
+
+    static Record addSticker(StickerPack stickerPack, Sticker sticker) {
+        Record record = new Record(OP_ADD_STICKER);
+        record.identifier = stickerPack.identifier;
+        record.sticker = sticker;
+        record.imageDataVersion = stickerPack.getImageDataVersion();
+        return record;
+    }
+
+    static Record reorder(StickerPack stickerPack) {
+        Record record = new Record(OP_REORDER);
+        record.identifier = stickerPack.identifier;
+        record.fileNames = new ArrayList<>();
+        for (Sticker sticker : stickerPack.getStickers()) {
+            record.fileNames.add(sticker.imageFileName);
+        }
+        record.imageDataVersion = stickerPack.getImageDataVersion();
+        return record;
+    }
+
+    /**
+     * Registros que llevan de previous a next. Si solo se han añadido stickers al final, o solo ha cambiado su orden,
+     * se anota eso; cualquier otro cambio reescribe el paquete.
+     */
+    static List<Record> describeUpdate(StickerPack previous, StickerPack next) {
+        List<Sticker> before = previous.getStickers();
+        List<Sticker> after = next.getStickers();
+        if (before != null && after != null && haveSameMetadata(previous, next)) {
+            if (after.size() > before.size() && haveSameStickers(before, after.subList(0, before.size()))
+                    && haveNewFileNames(before, after.subList(before.size(), after.size()))) {
+                List<Record> records = new ArrayList<>();
+                for (Sticker sticker : after.subList(before.size(), after.size())) {
+                    records.add(addSticker(next, sticker));
+                }
+                return records;
+            }
+            if (after.size() == before.size() && isPermutation(before, after)) {
+                return Collections.singletonList(reorder(next));
+            }
+        }
+        return Collections.singletonList(updatePack(next));
+    }
+
+    private static boolean haveSameMetadata(StickerPack a, StickerPack b) {
+        return Objects.equals(a.name, b.name) && Objects.equals(a.publisher, b.publisher)
+                && Objects.equals(a.trayImageFile, b.trayImageFile) && Objects.equals(a.publisherEmail, b.publisherEmail)
+                && Objects.equals(a.publisherWebsite, b.publisherWebsite) && Objects.equals(a.privacyPolicyWebsite, b.privacyPolicyWebsite)
+                && Objects.equals(a.licenseAgreementWebsite, b.licenseAgreementWebsite)
+                && Objects.equals(a.getAndroidPlayStoreLink(), b.getAndroidPlayStoreLink())
+                && Objects.equals(a.getIosAppStoreLink(), b.getIosAppStoreLink()) && a.isAvoidCache() == b.isAvoidCache()
+                && a.getTrayImageFileSize() == b.getTrayImageFileSize() && a.getTrayImageFileChecksum() == b.getTrayImageFileChecksum()
+                && a.isTrayImageFileBroken() == b.isTrayImageFileBroken();
+    }
+
+    private static boolean haveSameStickers(List<Sticker> a, List<Sticker> b) {
+        for (int i = 0; i < a.size(); i++) {
+            if (!isSameSticker(a.get(i), b.get(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Un sticker añadido con un nombre que ya está no se anotaría (add_sticker lo ignora), así que no vale.
+     */
+    private static boolean haveNewFileNames(List<Sticker> present, List<Sticker> added) {
+        Set<String> fileNames = new HashSet<>();
+        for (Sticker sticker : present) {
+            fileNames.add(sticker.imageFileName);
+        }
+        for (Sticker sticker : added) {
+            if (!fileNames.add(sticker.imageFileName)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isPermutation(List<Sticker> a, List<Sticker> b) {
+        Map<String, Sticker> byFileName = new HashMap<>();
+        for (Sticker sticker : a) {
+            byFileName.put(sticker.imageFileName, sticker);
+        }
+        if (byFileName.size() != a.size()) {
+            return false;
+        }
+        for (Sticker sticker : b) {
+            Sticker other = byFileName.remove(sticker.imageFileName);
+            if (other == null || !isSameSticker(sticker, other)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isSameSticker(Sticker a, Sticker b) {
+        return Objects.equals(a.imageFileName, b.imageFileName) && Objects.equals(a.getEmojis(), b.getEmojis())
+                && a.getSize() == b.getSize() && a.getChecksum() == b.getChecksum() && a.isBroken() == b.isBroken();
+    }
+
+    public static File getJournalFile() {
+        return new File(Constants.STICKERS_DIRECTORY_PATH + JOURNAL_FILE_NAME);
+    }
+
+    /**
+     * Anexa los registros con una sola sincronización con disco. Si la última línea quedó a medias por una caída,
+     * se cierra con un salto de línea para que los registros nuevos no se mezclen con ella.
+     */
+    static void append(List<Record> records) throws IOException {
+        append(getJournalFile(), records);
+    }
+
+    static void append(File file, List<Record> records) throws IOException {
+        Gson gson = StickerPackJson.GSON;
+        StringBuilder lines = new StringBuilder();
+        for (Record record : records) {
+            lines.append(gson.toJson(record)).append('\n');
+        }
+        byte[] bytes = lines.toString().getBytes(StandardCharsets.UTF_8);
+        try (RandomAccessFile journal = new RandomAccessFile(file, "rw")) {
+            long length = journal.length();
+            if (length > 0) {
+                journal.seek(length - 1);
+                if (journal.read() != '\n') {
+                    journal.write('\n');
+                }
+            }
+            journal.seek(journal.length());
+            journal.write(bytes);
+            journal.getFD().sync();
+        }
+    }
+
+    static boolean needsCompaction(File snapshotFile) {
+        return needsCompaction(getJournalFile(), snapshotFile);
+    }
+
+    static boolean needsCompaction(File journalFile, File snapshotFile) {
+        long journalLength = journalFile.length();
+        return journalLength > MIN_COMPACTION_BYTES && journalLength > snapshotFile.length();
+    }
+
+    /**
+     * Vacía el diario. Solo debe llamarse después de publicar una instantánea que lo incluya.
+     */
+    static void reset() {
+        reset(getJournalFile());
+    }
+
+    static void reset(File file) {
+        if (file.exists() && !file.delete()) {
+            Log.e(TAG, "no se pudo vaciar " + file);
+        }
+    }
+
+    /**
+     * Aplica sobre la lista de la instantánea los registros del diario, en orden. Las líneas que no se pueden
+     * leer (la cola de una escritura interrumpida) se ignoran.
+     */
+    static void replay(List<StickerPack> stickerPacks) {
+        replay(getJournalFile(), stickerPacks);
+    }
+
+    static void replay(File file, List<StickerPack> stickerPacks) {
+        if (!file.exists()) {
+            return;
+        }
+        Gson gson = StickerPackJson.GSON;
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.isEmpty()) {
+                    continue;
+                }
+                Record record;
+                try {
+                    record = gson.fromJson(line, Record.class);
+                } catch (JsonParseException e) {
+                    Log.w(TAG, "registro incompleto en " + file + ", se ignora");
+                    continue;
+                }
+                if (record != null && record.op != null) {
+                    apply(stickerPacks, record);
+                }
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "no se pudo leer " + file, e);
+        }
+    }
+
+    /**
+     * Un registro sin los datos de su operación (una línea bien formada pero incompleta) se ignora.
+     */
+    static void apply(List<StickerPack> stickerPacks, Record record) {
+        if (!hasPayload(record)) {
+            Log.w(TAG, "registro sin datos en el diario: " + record.op);
+            return;
+        }
+        switch (record.op) {
+            case OP_ADD_PACK:
+            case OP_UPDATE_PACK: {
+                int index = indexOf(stickerPacks, record.stickerPack.identifier);
+                if (index >= 0) {
+                    stickerPacks.set(index, record.stickerPack);
+                } else if (OP_ADD_PACK.equals(record.op)) {
+                    stickerPacks.add(record.stickerPack);
+                }
+                break;
+            }
+            case OP_REMOVE_PACK: {
+                int index = indexOf(stickerPacks, record.identifier);
+                if (index >= 0) {
+                    stickerPacks.remove(index);
+                }
+                break;
+            }
+            case OP_ADD_STICKER: {
+                int index = indexOf(stickerPacks, record.identifier);
+                if (index < 0) {
+                    break;
+                }
+                StickerPack stickerPack = stickerPacks.get(index);
+                List<Sticker> stickers = new ArrayList<>(stickerPack.getStickers());
+                for (Sticker sticker : stickers) {
+                    if (sticker.imageFileName.equals(record.sticker.imageFileName)) {
+                        return;
+                    }
+                }
+                stickers.add(record.sticker);
+                //Las instantáneas comparten el paquete, así que se cambia una copia.
+                StickerPack updated = stickerPack.copy();
+                updated.setStickers(stickers);
+                updated.setImageDataVersion(record.imageDataVersion);
+                stickerPacks.set(index, updated);
+                break;
+            }
+            case OP_REORDER: {
+                int index = indexOf(stickerPacks, record.identifier);
+                if (index < 0) {
+                    break;
+                }
+                StickerPack stickerPack = stickerPacks.get(index);
+                Map<String, Sticker> byFileName = new LinkedHashMap<>();
+                for (Sticker sticker : stickerPack.getStickers()) {
+                    byFileName.put(sticker.imageFileName, sticker);
+                }
+                List<Sticker> stickers = new ArrayList<>(byFileName.size());
+                for (String fileName : record.fileNames) {
+                    Sticker sticker = byFileName.remove(fileName);
+                    if (sticker != null) {
+                        stickers.add(sticker);
+                    }
+                }
+                //Los stickers que no aparecen en el registro conservan su orden relativo al final.
+                stickers.addAll(byFileName.values());
+                StickerPack updated = stickerPack.copy();
+                updated.setStickers(stickers);
+                updated.setImageDataVersion(record.imageDataVersion);
+                stickerPacks.set(index, updated);
+                break;
+            }
+            default:
+                Log.w(TAG, "operación desconocida en el diario: " + record.op);
+                break;
+        }
+    }
+
+    static boolean hasPayload(Record record) {
+        switch (record.op) {
+            case OP_ADD_PACK:
+            case OP_UPDATE_PACK:
+                return record.stickerPack != null && record.stickerPack.identifier != null;
+            case OP_REMOVE_PACK:
+                return record.identifier != null;
+            case OP_ADD_STICKER:
+                return record.identifier != null && record.sticker != null && record.sticker.imageFileName != null;
+            case OP_REORDER:
+                return record.identifier != null && record.fileNames != null;
+            default:
+                return true;
+        }
+    }
+
+    private static int indexOf(List<StickerPack> stickerPacks, String identifier) {
+        for (int i = 0; i < stickerPacks.size(); i++) {
+            if (stickerPacks.get(i).identifier.equals(identifier)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,26 @@
+package com.unusualapps.whatsappstickers.utils;
+
+import com.unusualapps.whatsappstickers.whatsapp_api.StickerPack;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Almacenamiento persistente del catálogo detrás de StickerPacksManager.
+ * Las mutaciones se describen con los registros de CatalogJournal.
+ */
+interface CatalogStore {
+
+    List<StickerPack> loadStickerPacks();
+
+    /**
+     * Carga un solo paquete, o null si no existe.
+     */
+    StickerPack loadStickerPack(String identifier);
+
+    /**
+     * Persiste, en orden y de una vez, mutaciones que este proceso ya ha aplicado a su instantánea. Se llama con el
+     * cerrojo de CatalogVersion tomado, así que lo que haya en disco es lo último que ha escrito cualquier proceso.
+     */
+    void commit(List<CatalogJournal.Record> records) throws IOException;
+}
@@ -0,0 +1,142 @@
+package com.unusualapps.whatsappstickers.utils;
+
+import android.os.Process;
+import android.util.Log;
+import com.unusualapps.whatsappstickers.constants.Constants;
+
+import java.io.*;
+import java.nio.channels.FileLock;
+
+/**
+ * Versión del catálogo compartida entre procesos. StickerContentProvider puede ejecutarse en su propio proceso,
+ * así que cada escritura del catálogo sube el número guardado en contents.version y los demás procesos
+ * lo comparan con la versión que tienen cargada.
+ * <p>
+ * commit() escribe el catálogo y sube el número con un FileLock exclusivo tomado, así que dos procesos nunca
+ * escriben a la vez ni publican el mismo número, y devuelve también el valor que había: si no es el que tenía cargado
+ * quien escribe, otro proceso ha cambiado el catálogo entretanto y su instantánea no refleja la versión nueva.
+ * read() lee el archivo cada vez: son 8 bytes, y en almacenamiento externo la fecha de modificación no distingue dos
+ * subidas seguidas.
+ */
+public class CatalogVersion {
+
+    private static final String TAG = "CatalogVersion";
+    private static final String VERSION_FILE_NAME = "contents.version";
+    //El cerrojo va en un archivo aparte: contents.version se reemplaza con un rename y perdería el bloqueo.
+    private static final String LOCK_FILE_NAME = "contents.version.lock";
+
+    //Hilo que tiene el cerrojo; un FileLock no se puede volver a pedir desde el mismo proceso
+    private static Thread lockHolder;
+
+    /**
+     * Resultado de commit(): la versión que había justo antes, leída bajo el cerrojo, y la que se ha publicado.
+     */
+    static final class Change {
+        final long previous;
+        final long version;
+
+        Change(long previous, long version) {
+            this.previous = previous;
+            this.version = version;
+        }
+    }
+
+    interface Write {
+        void run() throws IOException;
+    }
+
+    interface Read<T> {
+        T run() throws IOException;
+    }
+
+    public static File getVersionFile() {
+        return new File(Constants.STICKERS_DIRECTORY_PATH + VERSION_FILE_NAME);
+    }
+
+    /**
+     * Devuelve la versión actual.
+     */
+    public static long read() {
+        return readFile(getVersionFile());
+    }
+
+    /**
+     * Ejecuta write con el cerrojo exclusivo del catálogo y, sin soltarlo, sube la versión. El archivo de versión se
+     * reemplaza con un rename para que ningún lector vea un valor a medias.
+     *
+     * @return la versión anterior y la nueva, o null si write ha terminado pero la versión no se pudo publicar; en ese
+     * caso quien escribe recargará en la siguiente lectura
+     * @throws IOException si no se pudo tomar el cerrojo o write ha fallado; la versión no cambia
+     */
+    static synchronized Change commit(Write write) throws IOException {
+        File file = getVersionFile();
+        //FileLock no excluye a otros hilos del mismo proceso; de eso se encarga synchronized.
+        try (RandomAccessFile lockFile = openLockFile();
+             FileLock ignored = lockFile.getChannel().lock()) {
+            long previous = readFile(file);
+            lockHolder = Thread.currentThread();
+            try {
+                write.run();
+            } finally {
+                lockHolder = null;
+            }
+            try {
+                long version = previous + 1;
+                //Cada proceso escribe su propio temporal, así que nunca publica el de otro a medio escribir.
+                File tmpFile = new File(file.getPath() + "." + Process.myPid() + ".tmp");
+                try (FileOutputStream fileOutput = new FileOutputStream(tmpFile)) {
+                    DataOutputStream output = new DataOutputStream(fileOutput);
+                    output.writeLong(version);
+                    output.flush();
+                    fileOutput.getFD().sync();
+                }
+                if (!tmpFile.renameTo(file)) {
+                    throw new IOException("no se pudo publicar " + file);
+                }
+                return new Change(previous, version);
+            } catch (IOException e) {
+                Log.e(TAG, "no se pudo subir la versión del catálogo", e);
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Ejecuta read con el cerrojo compartido, para que no vea a medias un commit de otro proceso (por ejemplo,
+     * contents.json ya compactado pero el diario sin vaciar). Dentro de un commit (la importación de SQLite lee
+     * contents.json) el cerrojo ya está tomado y read se ejecuta sin más.
+     */
+    static synchronized <T> T readLocked(Read<T> read) throws IOException {
+        if (lockHolder == Thread.currentThread()) {
+            return read.run();
+        }
+        try (RandomAccessFile lockFile = openLockFile();
+             FileLock ignored = lockFile.getChannel().lock(0, Long.MAX_VALUE, true)) {
+            lockHolder = Thread.currentThread();
+            try {
+                return read.run();
+            } finally {
+                lockHolder = null;
+            }
+        }
+    }
+
+    private static RandomAccessFile openLockFile() throws FileNotFoundException {
+        File directory = new File(Constants.STICKERS_DIRECTORY_PATH);
+        if (!directory.exists()) {
+            directory.mkdirs();
+        }
+        return new RandomAccessFile(new File(directory, LOCK_FILE_NAME), "rw");
+    }
+
+    private static long readFile(File file) {
+        if (!file.exists()) {
+            return 0;
+        }
+        try (DataInputStream input = new DataInputStream(new FileInputStream(file))) {
+            return input.readLong();
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,148 @@
+package com.unusualapps.whatsappstickers.utils;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Escritor en segundo plano del catálogo. Las mutaciones se acumulan durante una ventana corta y se persisten
+ * juntas (una transacción o una sola sincronización del diario), y la versión del catálogo se sube una vez por lote,
+ * con el mismo cerrojo entre procesos que la escritura.
+ * flush() es la barrera para quien necesite leer lo que acaba de escribir o vaya a terminar el proceso.
+ * <p>
+ * Si la escritura falla, el lote vuelve a pendientes por delante de lo encolado después y se reintenta pasado
+ * RETRY_DELAY_MS; la versión no se sube ni se ejecutan los callbacks hasta que se guarde.
+ */
+class CatalogWriter {
+
+    private static final String TAG = "CatalogWriter";
+    private static final long COALESCE_WINDOW_MS = 250;
+    private static final long RETRY_DELAY_MS = 1000;
+
+    interface OnPersistedListener {
+        /**
+         * @param change    versiones del catálogo antes y después del lote, o null si no se pudo subir
+         * @param scheduled el lote lo ha guardado el propio escritor (fin de la ventana o reintento) y no una llamada a
+         *                  flush(), así que nadie más avisará del cambio
+         */
+        void onPersisted(CatalogVersion.Change change, boolean scheduled);
+    }
+
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(runnable -> new Thread(runnable, TAG));
+    private final OnPersistedListener onPersistedListener;
+    //Una sola escritura a la vez, en orden. Se toma antes que writeLock, nunca al revés.
+    private final Object commitLock = new Object();
+    //Protege pending, callbacks y committing; no se hace E/S con él tomado
+    private final Object writeLock = new Object();
+
+    private CatalogStore store;
+    private List<CatalogJournal.Record> pending = new ArrayList<>();
+    private List<Runnable> callbacks = new ArrayList<>();
+    //Hay un lote escribiéndose fuera de pending
+    private boolean committing;
+    private ScheduledFuture<?> scheduledFlush;
+
+    CatalogWriter(OnPersistedListener onPersistedListener) {
+        this.onPersistedListener = onPersistedListener;
+    }
+
+    /**
+     * @param record mutación que ya se ha aplicado a la instantánea del repositorio
+     */
+    void enqueue(CatalogStore store, CatalogJournal.Record record) {
+        synchronized (writeLock) {
+            this.store = store;
+            pending.add(record);
+            schedule(COALESCE_WINDOW_MS);
+        }
+    }
+
+    /**
+     * Ejecuta callback en el hilo del escritor cuando lo encolado hasta ahora esté en disco.
+     */
+    void runAfterPersisted(Runnable callback) {
+        synchronized (writeLock) {
+            if (pending.isEmpty() && !committing) {
+                executor.execute(callback);
+            } else {
+                callbacks.add(callback);
+            }
+        }
+    }
+
+    /**
+     * Persiste de inmediato lo pendiente y espera a que termine. Los callbacks se ejecutan después en el hilo
+     * del escritor, para que quien llame con otros cerrojos tomados no los ejecute dentro de ellos.
+     *
+     * @return false si la escritura ha fallado; lo pendiente se conserva y se reintenta más tarde
+     */
+    boolean flush() {
+        return flush(false);
+    }
+
+    private boolean flush(boolean scheduled) {
+        synchronized (commitLock) {
+            final CatalogStore batchStore;
+            final List<CatalogJournal.Record> batch;
+            List<Runnable> batchCallbacks;
+            synchronized (writeLock) {
+                if (scheduledFlush != null) {
+                    scheduledFlush.cancel(false);
+                    scheduledFlush = null;
+                }
+                if (pending.isEmpty()) {
+                    return true;
+                }
+                batchStore = store;
+                batch = pending;
+                batchCallbacks = callbacks;
+                pending = new ArrayList<>();
+                callbacks = new ArrayList<>();
+                committing = true;
+            }
+            final CatalogVersion.Change change;
+            try {
+                change = CatalogVersion.commit(() -> batchStore.commit(batch));
+            } catch (IOException | RuntimeException e) {
+                Log.e(TAG, "no se pudieron guardar " + batch.size() + " cambios del catálogo, se reintentará", e);
+                synchronized (writeLock) {
+                    committing = false;
+                    batch.addAll(pending);
+                    pending = batch;
+                    batchCallbacks.addAll(callbacks);
+                    callbacks = batchCallbacks;
+                    schedule(RETRY_DELAY_MS);
+                }
+                return false;
+            }
+            onPersistedListener.onPersisted(change, scheduled);
+            synchronized (writeLock) {
+                committing = false;
+                //Los registrados durante la escritura sin nada nuevo encolado esperaban a este lote.
+                if (pending.isEmpty() && !callbacks.isEmpty()) {
+                    batchCallbacks.addAll(callbacks);
+                    callbacks = new ArrayList<>();
+                }
+            }
+            for (Runnable callback : batchCallbacks) {
+                executor.execute(callback);
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Debe llamarse con writeLock.
+     */
+    private void schedule(long delayMs) {
+        if (scheduledFlush == null) {
+            scheduledFlush = executor.schedule(() -> flush(true), delayMs, TimeUnit.MILLISECONDS);
+        }
+    }
+}
@@ -12,10 +12,12 @@ import android.provider.OpenableColumns;
 import android.util.Log;
 
 import com.unusualapps.whatsappstickers.constants.Constants;
+import com.unusualapps.whatsappstickers.whatsapp_api.StickerPack;
 
 import java.io.*;
 import java.util.Objects;
 import java.util.Random;
+import java.util.zip.CRC32;
 
 public class FileUtils {
 
@@ -56,6 +58,25 @@ public class FileUtils {
         return byteBuffer.toByteArray();
     }
 
+    /**
+     * CRC32 de los bytes; es la suma que se guarda en el catálogo para cada sticker e icono de bandeja.
+     */
+    public static long crc32(byte[] data) {
+        CRC32 crc = new CRC32();
+        crc.update(data, 0, data.length);
+        return crc.getValue();
+    }
+
+    public static long crc32(InputStream inputStream) throws IOException {
+        CRC32 crc = new CRC32();
+        byte[] buffer = new byte[16 * 1024];
+        int read;
+        while ((read = inputStream.read(buffer)) != -1) {
+            crc.update(buffer, 0, read);
+        }
+        return crc.getValue();
+    }
+
     static void deleteFolder(String path) {
         File dir = new File(path);
         if (dir.exists()) {
@@ -101,24 +122,20 @@ public class FileUtils {
         }
     }
 
-    public static String getFolderSizeLabel(String path) {
-        long size = getFolderSize(new File(path)) / 1024; // Get size and convert bytes into Kb.
-        if (size >= 1024) {
-            return (size / 1024) + " MB";
-        } else {
-            return size + " KB";
+    public static String getStickerPackSizeLabel(Context context, StickerPack stickerPack) {
+        if (BundledStickerPacks.isBundled(context, stickerPack.identifier)) {
+            return getSizeLabel(BundledStickerPacks.getSize(context, stickerPack));
         }
+        //Los tamaños se anotan al escribir cada archivo, así que no hace falta recorrer la carpeta.
+        return getSizeLabel(stickerPack.getStorageSize());
     }
 
-    private static long getFolderSize(File file) {
-        long size = 0;
-        if (file.isDirectory()) {
-            for (File child : file.listFiles()) {
-                size += getFolderSize(child);
-            }
+    public static String getSizeLabel(long bytes) {
+        long size = bytes / 1024; // Get size and convert bytes into Kb.
+        if (size >= 1024) {
+            return (size / 1024) + " MB";
         } else {
-            size = file.length();
+            return size + " KB";
         }
-        return size;
     }
 }
@@ -1,5 +1,6 @@
 package com.unusualapps.whatsappstickers.utils;
 
+import android.content.ContentResolver;
 import android.content.Context;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
@@ -9,10 +10,9 @@ import android.media.ExifInterface;
 import android.net.Uri;
 import android.provider.MediaStore;
 import android.util.Log;
-import com.unusualapps.whatsappstickers.constants.Constants;
+import com.unusualapps.whatsappstickers.BuildConfig;
 
 import java.io.ByteArrayOutputStream;
-import java.io.File;
 import java.io.IOException;
 
 public class ImageUtils {
@@ -39,8 +39,28 @@ public class ImageUtils {
 
     }
 
-    public static Uri getStickerImageAsset(String identifier, String imageFileName) {
-        return Uri.fromFile(new File(Constants.STICKERS_DIRECTORY_PATH + identifier + "/" + imageFileName));
+    /**
+     * Comprueba en disco si el paquete se sirve a través del proveedor. Quien enlaza filas debe usar
+     * StickerPacksRepository.Snapshot.isServedByProvider, que lo resuelve una vez por paquete.
+     */
+    public static Uri getStickerImageAsset(Context context, String identifier, String imageFileName) {
+        return getStickerImageAsset(identifier, imageFileName, isServedByProvider(context, identifier));
+    }
+
+    public static Uri getStickerImageAsset(String identifier, String imageFileName, boolean servedByProvider) {
+        if (servedByProvider) {
+            return new Uri.Builder().scheme(ContentResolver.SCHEME_CONTENT).authority(BuildConfig.CONTENT_PROVIDER_AUTHORITY)
+                    .appendPath("stickers_asset").appendPath(identifier).appendPath(imageFileName).build();
+        }
+        return Uri.fromFile(StickerPacksManager.getStickerFile(identifier, imageFileName));
+    }
+
+    /**
+     * Los paquetes incluidos en el apk, los empaquetados y los guardados con originales sin pérdida no tienen todos
+     * sus webp sueltos; se leen a través del proveedor. La forma de guardar un paquete se decide al crearlo y no cambia.
+     */
+    public static boolean isServedByProvider(Context context, String identifier) {
+        return BundledStickerPacks.isBundled(context, identifier) || PackBlobStore.getIndex(identifier) != null || StickerPacksManager.hasMasters(identifier);
     }
 
     public static Bitmap bytesToBitmap(byte[] bytes) {
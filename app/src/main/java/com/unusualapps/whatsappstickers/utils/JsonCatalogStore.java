@@ -0,0 +1,148 @@
+package com.unusualapps.whatsappstickers.utils;
+
+import android.content.Context;
+import android.util.Log;
+import com.unusualapps.whatsappstickers.identities.StickerPacksContainer;
+import com.unusualapps.whatsappstickers.whatsapp_api.ContentFileParser;
+import com.unusualapps.whatsappstickers.whatsapp_api.StickerPack;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Catálogo guardado como contents.json (instantánea) más contents.journal (cambios posteriores). Las lecturas toman
+ * el cerrojo compartido de CatalogVersion y las escrituras llegan con el exclusivo, así que ningún proceso ve una
+ * compactación a medias ni pisa lo que otro acaba de anexar.
+ * <p>
+ * Un contents.json que existe pero no se puede leer no es un catálogo vacío: mientras siga así no se compacta ni se
+ * reemplaza, para que el error se pueda corregir sin haber perdido la biblioteca.
+ */
+class JsonCatalogStore implements CatalogStore {
+
+    private static final String TAG = "JsonCatalogStore";
+
+    /**
+     * contents.json existe pero no se ha podido leer o no es válido.
+     */
+    static class UnreadableCatalogException extends IOException {
+        UnreadableCatalogException(File file, Throwable cause) {
+            super("no se pudo leer " + file + ": " + cause.getMessage(), cause);
+        }
+    }
+
+    private final File contentFile;
+    private final File journalFile;
+
+    JsonCatalogStore() {
+        this(StickerPacksManager.getContentFile(), CatalogJournal.getJournalFile());
+    }
+
+    JsonCatalogStore(File contentFile, File journalFile) {
+        this.contentFile = contentFile;
+        this.journalFile = journalFile;
+    }
+
+    /**
+     * contents.json está en el almacenamiento externo; sin permiso parecería vacío.
+     */
+    boolean isReadable(Context context) {
+        return RequestPermissionsHelper.verifyPermissions(context);
+    }
+
+    /**
+     * Si contents.json no se puede leer, devuelve solo lo que hay en el diario; para importar o compactar se usa
+     * readCatalog, que en ese caso falla.
+     */
+    @Override
+    public List<StickerPack> loadStickerPacks() {
+        try {
+            return readCatalog();
+        } catch (IOException e) {
+            Log.e(TAG, "el catálogo no se puede leer, solo se muestran los cambios del diario", e);
+            List<StickerPack> stickerPackList = new ArrayList<>();
+            CatalogJournal.replay(journalFile, stickerPackList);
+            return stickerPackList;
+        }
+    }
+
+    /**
+     * @throws UnreadableCatalogException si contents.json existe pero no se puede leer
+     */
+    List<StickerPack> readCatalog() throws IOException {
+        try {
+            return CatalogVersion.readLocked(this::readStickerPacks);
+        } catch (UnreadableCatalogException e) {
+            throw e;
+        } catch (IOException e) {
+            Log.e(TAG, "no se pudo tomar el cerrojo del catálogo, se lee sin él", e);
+            return readStickerPacks();
+        }
+    }
+
+    private List<StickerPack> readStickerPacks() throws UnreadableCatalogException {
+        List<StickerPack> stickerPackList = new ArrayList<>();
+        if (contentFile.exists()) {
+            try (InputStream contentsInputStream = new FileInputStream(contentFile)) {
+                stickerPackList = ContentFileParser.parseStickerPacksLazily(contentsInputStream);
+            } catch (IOException | IllegalStateException e) {
+                throw new UnreadableCatalogException(contentFile, e);
+            }
+        }
+        //contents.json es solo la última instantánea; los cambios posteriores están en el diario.
+        CatalogJournal.replay(journalFile, stickerPackList);
+        return stickerPackList;
+    }
+
+    @Override
+    public StickerPack loadStickerPack(String identifier) {
+        for (StickerPack stickerPack : loadStickerPacks()) {
+            if (stickerPack.identifier.equals(identifier)) {
+                return stickerPack;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Anexa las mutaciones al diario y, si este ha crecido demasiado, compacta. La instantánea nueva se construye con
+     * lo que hay en disco y no con la de este proceso, a la que pueden faltarle los cambios de otro. Si contents.json
+     * no se puede leer no se compacta: el diario sigue creciendo y, si tampoco se puede anexar, el lote falla y
+     * CatalogWriter lo reintenta.
+     */
+    @Override
+    public void commit(List<CatalogJournal.Record> records) throws IOException {
+        try {
+            CatalogJournal.append(journalFile, records);
+        } catch (IOException e) {
+            Log.e(TAG, "no se pudo anexar al diario, se escribe una instantánea", e);
+            List<StickerPack> stickerPacks;
+            try {
+                stickerPacks = readStickerPacks();
+            } catch (UnreadableCatalogException unreadable) {
+                e.addSuppressed(unreadable);
+                throw e;
+            }
+            for (CatalogJournal.Record record : records) {
+                CatalogJournal.apply(stickerPacks, record);
+            }
+            compact(stickerPacks);
+            return;
+        }
+        if (CatalogJournal.needsCompaction(journalFile, contentFile)) {
+            try {
+                compact(readStickerPacks());
+            } catch (UnreadableCatalogException e) {
+                Log.e(TAG, "contents.json no se puede leer, no se compacta el diario", e);
+            }
+        }
+    }
+
+    private void compact(List<StickerPack> stickerPacks) throws IOException {
+        StickerPacksManager.writeJson(new StickerPacksContainer("", "", stickerPacks), contentFile);
+        CatalogJournal.reset(journalFile);
+    }
+}
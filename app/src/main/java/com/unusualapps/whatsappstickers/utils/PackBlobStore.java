@@ -0,0 +1,204 @@
+package com.unusualapps.whatsappstickers.utils;
+
+import android.util.Log;
+import com.unusualapps.whatsappstickers.constants.Constants;
+
+import java.io.*;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32;
+
+/**
+ * Formato opcional de almacenamiento de un paquete: todos sus archivos concatenados en un único stickers.blob
+ * de solo anexado, más un índice stickers.idx con el desplazamiento y la longitud de cada uno.
+ * El proveedor sirve cada sticker como una porción del blob, sin copiar bytes. El índice guarda también el CRC32 de
+ * cada archivo, calculado al copiarlo, para no tener que volver a leer el blob para conocerlo.
+ */
+public class PackBlobStore {
+
+    private static final String TAG = "PackBlobStore";
+    static final String BLOB_FILE_NAME = "stickers.blob";
+    static final String INDEX_FILE_NAME = "stickers.idx";
+    private static final int INDEX_MAGIC = 0x53504b32; // "SPK2"
+    //Formato anterior, sin CRC32; sus entradas se leen con crc32 0
+    private static final int INDEX_MAGIC_V1 = 0x53504b31; // "SPK1"
+
+    private static final Map<String, Index> indexCache = new ConcurrentHashMap<>();
+
+    public static class Entry {
+        public final long offset;
+        public final long length;
+        //0 si el índice es del formato anterior y no lo guardaba
+        public final long crc32;
+
+        Entry(long offset, long length, long crc32) {
+            this.offset = offset;
+            this.length = length;
+            this.crc32 = crc32;
+        }
+    }
+
+    public static class Index {
+        private final Map<String, Entry> entries;
+        private final long lastModified;
+        private final long totalSize;
+        //Porción del blob que ocupan los archivos indexados; lo anterior y lo posterior son copias ya reemplazadas
+        private final long startOffset;
+        private final long endOffset;
+
+        Index(Map<String, Entry> entries, long lastModified) {
+            this.entries = Collections.unmodifiableMap(entries);
+            this.lastModified = lastModified;
+            long size = 0;
+            long start = Long.MAX_VALUE;
+            long end = 0;
+            for (Entry entry : entries.values()) {
+                size += entry.length;
+                start = Math.min(start, entry.offset);
+                end = Math.max(end, entry.offset + entry.length);
+            }
+            this.totalSize = size;
+            this.startOffset = entries.isEmpty() ? 0 : start;
+            this.endOffset = end;
+        }
+
+        public Entry getEntry(String fileName) {
+            return entries.get(fileName);
+        }
+
+        public long getTotalSize() {
+            return totalSize;
+        }
+
+        public long getStartOffset() {
+            return startOffset;
+        }
+
+        public long getEndOffset() {
+            return endOffset;
+        }
+    }
+
+    public static File getBlobFile(String identifier) {
+        return new File(Constants.STICKERS_DIRECTORY_PATH + identifier + "/" + BLOB_FILE_NAME);
+    }
+
+    private static File getIndexFile(String identifier) {
+        return new File(Constants.STICKERS_DIRECTORY_PATH + identifier + "/" + INDEX_FILE_NAME);
+    }
+
+    /**
+     * Devuelve el índice del paquete o null si el paquete se guarda como archivos sueltos.
+     * El índice se mantiene en memoria mientras no cambie la fecha de stickers.idx.
+     */
+    public static Index getIndex(String identifier) {
+        File indexFile = getIndexFile(identifier);
+        long lastModified = indexFile.lastModified();
+        if (lastModified == 0) {
+            indexCache.remove(identifier);
+            return null;
+        }
+        Index index = indexCache.get(identifier);
+        if (index != null && index.lastModified == lastModified) {
+            return index;
+        }
+        try {
+            index = readIndex(indexFile, lastModified);
+            indexCache.put(identifier, index);
+            return index;
+        } catch (IOException e) {
+            Log.e(TAG, "índice dañado en " + indexFile, e);
+            return null;
+        }
+    }
+
+    static Index readIndex(File indexFile, long lastModified) throws IOException {
+        try (DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)))) {
+            int magic = input.readInt();
+            if (magic != INDEX_MAGIC && magic != INDEX_MAGIC_V1) {
+                throw new IOException("formato de índice desconocido");
+            }
+            int count = input.readInt();
+            Map<String, Entry> entries = new HashMap<>(count * 2);
+            for (int i = 0; i < count; i++) {
+                String name = input.readUTF();
+                long offset = input.readLong();
+                long length = input.readLong();
+                long crc32 = magic == INDEX_MAGIC ? input.readLong() : 0;
+                entries.put(name, new Entry(offset, length, crc32));
+            }
+            return new Index(entries, lastModified);
+        }
+    }
+
+    private static void writeIndex(File indexFile, Map<String, Entry> entries) throws IOException {
+        File tmpFile = new File(indexFile.getPath() + ".tmp");
+        try (FileOutputStream fileOutput = new FileOutputStream(tmpFile);
+             DataOutputStream output = new DataOutputStream(new BufferedOutputStream(fileOutput))) {
+            output.writeInt(INDEX_MAGIC);
+            output.writeInt(entries.size());
+            for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+                output.writeUTF(entry.getKey());
+                output.writeLong(entry.getValue().offset);
+                output.writeLong(entry.getValue().length);
+                output.writeLong(entry.getValue().crc32);
+            }
+            output.flush();
+            fileOutput.getFD().sync();
+        }
+        if (!tmpFile.renameTo(indexFile)) {
+            throw new IOException("no se pudo publicar " + indexFile);
+        }
+    }
+
+    /**
+     * Anexa al blob los archivos sueltos del paquete (stickers y bandeja) y los borra una vez indexados.
+     * Los bytes siempre se añaden al final, así que los lectores que ya tienen una porción abierta no se ven afectados.
+     */
+    public static synchronized void packDirectory(String identifier) throws IOException {
+        packDirectory(new File(Constants.STICKERS_DIRECTORY_PATH + identifier));
+        indexCache.remove(identifier);
+    }
+
+    /**
+     * Igual que packDirectory(String) sobre una carpeta cualquiera, como la de staging de un paquete que aún no
+     * está publicado.
+     */
+    static synchronized void packDirectory(File directory) throws IOException {
+        File[] files = directory.listFiles((dir, name) -> name.endsWith(".webp") || name.endsWith(".png"));
+        if (files == null || files.length == 0) {
+            return;
+        }
+        Map<String, Entry> entries = new HashMap<>();
+        File indexFile = new File(directory, INDEX_FILE_NAME);
+        if (indexFile.exists()) {
+            entries.putAll(readIndex(indexFile, indexFile.lastModified()).entries);
+        }
+        File blobFile = new File(directory, BLOB_FILE_NAME);
+        long offset = blobFile.length();
+        byte[] buffer = new byte[16 * 1024];
+        try (FileOutputStream output = new FileOutputStream(blobFile, true)) {
+            for (File file : files) {
+                long length = 0;
+                CRC32 crc = new CRC32();
+                try (InputStream input = new FileInputStream(file)) {
+                    int read;
+                    while ((read = input.read(buffer)) != -1) {
+                        output.write(buffer, 0, read);
+                        crc.update(buffer, 0, read);
+                        length += read;
+                    }
+                }
+                entries.put(file.getName(), new Entry(offset, length, crc.getValue()));
+                offset += length;
+            }
+            output.getFD().sync();
+        }
+        writeIndex(indexFile, entries);
+        for (File file : files) {
+            file.delete();
+        }
+    }
+}
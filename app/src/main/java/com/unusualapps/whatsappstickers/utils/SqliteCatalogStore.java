@@ -0,0 +1,445 @@
+package com.unusualapps.whatsappstickers.utils;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+import android.util.Log;
+import com.unusualapps.whatsappstickers.whatsapp_api.Sticker;
+import com.unusualapps.whatsappstickers.whatsapp_api.StickerContentProvider;
+import com.unusualapps.whatsappstickers.whatsapp_api.StickerPack;
+
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * Catálogo en SQLite, con tablas de paquetes, stickers y emojis indexadas por identificador y nombre de archivo.
+ * La base de datos está en el almacenamiento interno y la comparten el proceso de la aplicación y el del proveedor.
+ * La primera vez que se abre con permiso de almacenamiento importa el catálogo de contents.json y su diario. La
+ * importación es una escritura, así que solo la hace el proceso del proveedor; los demás se la piden con
+ * StickerContentProvider.METHOD_IMPORT_CATALOG.
+ */
+class SqliteCatalogStore extends SQLiteOpenHelper implements CatalogStore {
+
+    private static final String TAG = "SqliteCatalogStore";
+    private static final String DATABASE_NAME = "catalog.db";
+    private static final int DATABASE_VERSION = 4;
+    private static final String JSON_IMPORTED_KEY = "json_imported";
+
+    private static final String PACK_COLUMNS = "identifier, name, publisher, tray_image_file, publisher_email, publisher_website, "
+            + "privacy_policy_website, license_agreement_website, android_play_store_link, ios_app_store_link, image_data_version, avoid_cache, "
+            + "tray_image_file_size, tray_image_file_checksum, tray_image_file_broken";
+
+    private static SqliteCatalogStore instance;
+
+    private final Context context;
+    private final JsonCatalogStore jsonCatalogStore;
+    //false en los procesos que no escriben el catálogo: piden la importación al proveedor
+    private final boolean importsJson;
+    private volatile boolean jsonImported;
+
+    static synchronized SqliteCatalogStore getInstance(Context context) {
+        if (instance == null) {
+            instance = new SqliteCatalogStore(context.getApplicationContext(), DATABASE_NAME, new JsonCatalogStore(),
+                    StickerPacksManager.isCatalogWriterProcess());
+        }
+        return instance;
+    }
+
+    /**
+     * @param jsonCatalogStore catálogo anterior que se importa la primera vez
+     */
+    SqliteCatalogStore(Context context, String databaseName, JsonCatalogStore jsonCatalogStore) {
+        this(context, databaseName, jsonCatalogStore, true);
+    }
+
+    private SqliteCatalogStore(Context context, String databaseName, JsonCatalogStore jsonCatalogStore, boolean importsJson) {
+        super(context, databaseName, null, DATABASE_VERSION);
+        this.context = context;
+        this.jsonCatalogStore = jsonCatalogStore;
+        this.importsJson = importsJson;
+        setWriteAheadLoggingEnabled(true);
+    }
+
+    @Override
+    public void onConfigure(SQLiteDatabase db) {
+        db.setForeignKeyConstraintsEnabled(true);
+    }
+
+    @Override
+    public void onCreate(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE packs (identifier TEXT PRIMARY KEY, position INTEGER NOT NULL, name TEXT NOT NULL, "
+                + "publisher TEXT NOT NULL, tray_image_file TEXT NOT NULL, publisher_email TEXT, publisher_website TEXT, "
+                + "privacy_policy_website TEXT, license_agreement_website TEXT, android_play_store_link TEXT, "
+                + "ios_app_store_link TEXT, image_data_version TEXT, avoid_cache INTEGER NOT NULL DEFAULT 0, "
+                + "tray_image_file_size INTEGER NOT NULL DEFAULT 0, tray_image_file_checksum INTEGER NOT NULL DEFAULT 0, "
+                + "tray_image_file_broken INTEGER NOT NULL DEFAULT 0)");
+        db.execSQL("CREATE INDEX packs_position ON packs (position)");
+        db.execSQL("CREATE TABLE stickers (pack_identifier TEXT NOT NULL REFERENCES packs (identifier) ON DELETE CASCADE, "
+                + "image_file_name TEXT NOT NULL, position INTEGER NOT NULL, size INTEGER NOT NULL DEFAULT 0, "
+                + "checksum INTEGER NOT NULL DEFAULT 0, broken INTEGER NOT NULL DEFAULT 0, PRIMARY KEY (pack_identifier, image_file_name))");
+        db.execSQL("CREATE INDEX stickers_position ON stickers (pack_identifier, position)");
+        db.execSQL("CREATE TABLE emojis (pack_identifier TEXT NOT NULL, image_file_name TEXT NOT NULL, position INTEGER NOT NULL, "
+                + "emoji TEXT NOT NULL, PRIMARY KEY (pack_identifier, image_file_name, position), "
+                + "FOREIGN KEY (pack_identifier, image_file_name) REFERENCES stickers (pack_identifier, image_file_name) ON DELETE CASCADE)");
+        db.execSQL("CREATE TABLE metadata (key TEXT PRIMARY KEY, value TEXT)");
+    }
+
+    @Override
+    public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        if (oldVersion < 2) {
+            db.execSQL("ALTER TABLE packs ADD COLUMN tray_image_file_size INTEGER NOT NULL DEFAULT 0");
+        }
+        if (oldVersion < 3) {
+            db.execSQL("ALTER TABLE packs ADD COLUMN tray_image_file_checksum INTEGER NOT NULL DEFAULT 0");
+            db.execSQL("ALTER TABLE stickers ADD COLUMN checksum INTEGER NOT NULL DEFAULT 0");
+            db.execSQL("ALTER TABLE stickers ADD COLUMN broken INTEGER NOT NULL DEFAULT 0");
+        }
+        if (oldVersion < 4) {
+            db.execSQL("ALTER TABLE packs ADD COLUMN tray_image_file_broken INTEGER NOT NULL DEFAULT 0");
+        }
+    }
+
+    /**
+     * Importa contents.json y su diario una sola vez. Sin permiso de almacenamiento no se puede leer,
+     * así que se vuelve a intentar en la siguiente apertura.
+     */
+    private SQLiteDatabase getDatabase() {
+        SQLiteDatabase db = getWritableDatabase();
+        if (!jsonImported) {
+            synchronized (this) {
+                if (!jsonImported) {
+                    jsonImported = importsJson ? importJsonIfNeeded(db) : requestImport(db);
+                }
+            }
+        }
+        return db;
+    }
+
+    /**
+     * Importa contents.json si nadie lo ha hecho todavía. Si existe pero no se puede leer no se marca como importado,
+     * para no dejar para siempre una biblioteca vacía; se vuelve a intentar en la siguiente apertura.
+     *
+     * @return true si el catálogo ya está importado
+     */
+    private boolean importJsonIfNeeded(SQLiteDatabase db) {
+        if (isJsonImported(db)) {
+            return true;
+        }
+        if (!jsonCatalogStore.isReadable(context)) {
+            return false;
+        }
+        List<StickerPack> stickerPacks;
+        try {
+            stickerPacks = jsonCatalogStore.readCatalog();
+        } catch (IOException e) {
+            Log.e(TAG, "no se pudo leer contents.json, se reintentará la importación", e);
+            return false;
+        }
+        Set<String> identifiers = new HashSet<>();
+        db.beginTransaction();
+        try {
+            //La transacción es exclusiva: si otro proceso ha importado mientras se leía contents.json, aquí ya se ve.
+            if (isJsonImported(db)) {
+                return true;
+            }
+            int position = 0;
+            for (StickerPack stickerPack : stickerPacks) {
+                if (!identifiers.add(stickerPack.identifier)) {
+                    Log.w(TAG, "paquete repetido en contents.json, se importa solo el primero: " + stickerPack.identifier);
+                    continue;
+                }
+                insertStickerPack(db, stickerPack, position++);
+            }
+            db.execSQL("INSERT OR REPLACE INTO metadata (key, value) VALUES (?, ?)", new Object[]{JSON_IMPORTED_KEY, "1"});
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        Log.i(TAG, "importados " + identifiers.size() + " paquetes de contents.json");
+        return true;
+    }
+
+    /**
+     * Importa contents.json desde el proceso del proveedor (StickerContentProvider.METHOD_IMPORT_CATALOG).
+     *
+     * @return true si el catálogo ya está importado
+     */
+    boolean importJson() {
+        getDatabase();
+        return jsonImported;
+    }
+
+    private boolean requestImport(SQLiteDatabase db) {
+        if (isJsonImported(db)) {
+            return true;
+        }
+        if (!jsonCatalogStore.isReadable(context)) {
+            return false;
+        }
+        try {
+            context.getContentResolver().call(StickerContentProvider.AUTHORITY_URI, StickerContentProvider.METHOD_IMPORT_CATALOG, null, null);
+        } catch (RuntimeException e) {
+            Log.e(TAG, "el proveedor no pudo importar contents.json", e);
+            return false;
+        }
+        return isJsonImported(db);
+    }
+
+    private static boolean isJsonImported(SQLiteDatabase db) {
+        try (Cursor cursor = db.rawQuery("SELECT value FROM metadata WHERE key = ?", new String[]{JSON_IMPORTED_KEY})) {
+            return cursor.moveToFirst();
+        }
+    }
+
+    @Override
+    public List<StickerPack> loadStickerPacks() {
+        SQLiteDatabase db = getDatabase();
+        List<StickerPack> stickerPacks = new ArrayList<>();
+        Map<String, StickerPack> byIdentifier = new HashMap<>();
+        try (Cursor cursor = db.rawQuery("SELECT " + PACK_COLUMNS + " FROM packs ORDER BY position", null)) {
+            while (cursor.moveToNext()) {
+                StickerPack stickerPack = readStickerPack(cursor);
+                stickerPacks.add(stickerPack);
+                byIdentifier.put(stickerPack.identifier, stickerPack);
+            }
+        }
+        Map<String, List<Sticker>> stickers = readStickers(db, null);
+        for (StickerPack stickerPack : stickerPacks) {
+            List<Sticker> stickerList = stickers.get(stickerPack.identifier);
+            stickerPack.setStickers(stickerList == null ? new ArrayList<>() : stickerList);
+        }
+        return stickerPacks;
+    }
+
+    @Override
+    public StickerPack loadStickerPack(String identifier) {
+        SQLiteDatabase db = getDatabase();
+        StickerPack stickerPack;
+        try (Cursor cursor = db.rawQuery("SELECT " + PACK_COLUMNS + " FROM packs WHERE identifier = ?", new String[]{identifier})) {
+            if (!cursor.moveToFirst()) {
+                return null;
+            }
+            stickerPack = readStickerPack(cursor);
+        }
+        List<Sticker> stickerList = readStickers(db, identifier).get(identifier);
+        stickerPack.setStickers(stickerList == null ? new ArrayList<>() : stickerList);
+        return stickerPack;
+    }
+
+    private static StickerPack readStickerPack(Cursor cursor) {
+        StickerPack stickerPack = new StickerPack(cursor.getString(0), cursor.getString(1), cursor.getString(2), cursor.getString(3),
+                cursor.getString(4), cursor.getString(5), cursor.getString(6), cursor.getString(7));
+        stickerPack.setAndroidPlayStoreLink(cursor.getString(8));
+        stickerPack.setIosAppStoreLink(cursor.getString(9));
+        stickerPack.setImageDataVersion(cursor.getString(10));
+        stickerPack.setAvoidCache(cursor.getInt(11) != 0);
+        stickerPack.setTrayImageFileSize(cursor.getLong(12));
+        stickerPack.setTrayImageFileChecksum(cursor.getLong(13));
+        stickerPack.setTrayImageFileBroken(cursor.getInt(14) != 0);
+        return stickerPack;
+    }
+
+    /**
+     * Lee los stickers (de un paquete o de todos si identifier es null) con dos consultas ordenadas,
+     * en lugar de una consulta de emojis por sticker.
+     */
+    private static Map<String, List<Sticker>> readStickers(SQLiteDatabase db, String identifier) {
+        String where = identifier == null ? "" : " WHERE pack_identifier = ?";
+        String[] args = identifier == null ? null : new String[]{identifier};
+        Map<String, List<String>> emojis = new HashMap<>();
+        try (Cursor cursor = db.rawQuery("SELECT pack_identifier, image_file_name, emoji FROM emojis" + where
+                + " ORDER BY pack_identifier, image_file_name, position", args)) {
+            while (cursor.moveToNext()) {
+                String key = cursor.getString(0) + "/" + cursor.getString(1);
+                List<String> list = emojis.get(key);
+                if (list == null) {
+                    list = new ArrayList<>(2);
+                    emojis.put(key, list);
+                }
+                list.add(cursor.getString(2));
+            }
+        }
+        Map<String, List<Sticker>> stickers = new HashMap<>();
+        try (Cursor cursor = db.rawQuery("SELECT pack_identifier, image_file_name, size, checksum, broken FROM stickers" + where
+                + " ORDER BY pack_identifier, position", args)) {
+            while (cursor.moveToNext()) {
+                String packIdentifier = cursor.getString(0);
+                List<Sticker> list = stickers.get(packIdentifier);
+                if (list == null) {
+                    list = new ArrayList<>();
+                    stickers.put(packIdentifier, list);
+                }
+                List<String> stickerEmojis = emojis.get(packIdentifier + "/" + cursor.getString(1));
+                Sticker sticker = new Sticker(cursor.getString(1), stickerEmojis == null ? new ArrayList<>() : stickerEmojis);
+                sticker.setSize(cursor.getLong(2));
+                sticker.setChecksum(cursor.getLong(3));
+                sticker.setBroken(cursor.getInt(4) != 0);
+                list.add(sticker);
+            }
+        }
+        return stickers;
+    }
+
+    @Override
+    public void commit(List<CatalogJournal.Record> records) {
+        SQLiteDatabase db = getDatabase();
+        db.beginTransaction();
+        try {
+            for (CatalogJournal.Record record : records) {
+                apply(db, record);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    private static void apply(SQLiteDatabase db, CatalogJournal.Record record) {
+        if (!CatalogJournal.hasPayload(record)) {
+            Log.w(TAG, "registro sin datos: " + record.op);
+            return;
+        }
+        switch (record.op) {
+            case CatalogJournal.OP_ADD_PACK:
+            case CatalogJournal.OP_UPDATE_PACK: {
+                long position = queryPosition(db, record.stickerPack.identifier);
+                if (position < 0) {
+                    if (CatalogJournal.OP_UPDATE_PACK.equals(record.op)) {
+                        break;
+                    }
+                    try (SQLiteStatement statement = db.compileStatement("SELECT COALESCE(MAX(position) + 1, 0) FROM packs")) {
+                        position = statement.simpleQueryForLong();
+                    }
+                }
+                db.delete("packs", "identifier = ?", new String[]{record.stickerPack.identifier});
+                insertStickerPack(db, record.stickerPack, position);
+                break;
+            }
+            case CatalogJournal.OP_REMOVE_PACK:
+                db.delete("packs", "identifier = ?", new String[]{record.identifier});
+                break;
+            case CatalogJournal.OP_ADD_STICKER: {
+                if (queryPosition(db, record.identifier) < 0) {
+                    break;
+                }
+                long position;
+                try (SQLiteStatement statement = db.compileStatement("SELECT COALESCE(MAX(position) + 1, 0) FROM stickers WHERE pack_identifier = ?")) {
+                    statement.bindString(1, record.identifier);
+                    position = statement.simpleQueryForLong();
+                }
+                insertStickers(db, record.identifier, Collections.singletonList(record.sticker), position);
+                updateImageDataVersion(db, record.identifier, record.imageDataVersion);
+                break;
+            }
+            case CatalogJournal.OP_REORDER: {
+                if (queryPosition(db, record.identifier) < 0) {
+                    break;
+                }
+                List<String> fileNames = new ArrayList<>(record.fileNames);
+                Set<String> listed = new HashSet<>(fileNames);
+                try (Cursor cursor = db.rawQuery("SELECT image_file_name FROM stickers WHERE pack_identifier = ? ORDER BY position", new String[]{record.identifier})) {
+                    while (cursor.moveToNext()) {
+                        if (!listed.contains(cursor.getString(0))) {
+                            fileNames.add(cursor.getString(0));
+                        }
+                    }
+                }
+                try (SQLiteStatement statement = db.compileStatement("UPDATE stickers SET position = ? WHERE pack_identifier = ? AND image_file_name = ?")) {
+                    for (int i = 0; i < fileNames.size(); i++) {
+                        statement.bindLong(1, i);
+                        statement.bindString(2, record.identifier);
+                        statement.bindString(3, fileNames.get(i));
+                        statement.executeUpdateDelete();
+                    }
+                }
+                updateImageDataVersion(db, record.identifier, record.imageDataVersion);
+                break;
+            }
+            default:
+                Log.w(TAG, "operación desconocida: " + record.op);
+                break;
+        }
+    }
+
+    private static void updateImageDataVersion(SQLiteDatabase db, String identifier, String imageDataVersion) {
+        try (SQLiteStatement statement = db.compileStatement("UPDATE packs SET image_data_version = ? WHERE identifier = ?")) {
+            bind(statement, 1, imageDataVersion);
+            statement.bindString(2, identifier);
+            statement.executeUpdateDelete();
+        }
+    }
+
+    private static long queryPosition(SQLiteDatabase db, String identifier) {
+        try (Cursor cursor = db.rawQuery("SELECT position FROM packs WHERE identifier = ?", new String[]{identifier})) {
+            return cursor.moveToFirst() ? cursor.getLong(0) : -1;
+        }
+    }
+
+    /**
+     * Quien llama ya ha quitado la fila anterior del paquete, así que cualquier fallo (un campo obligatorio vacío)
+     * lanza una excepción y deshace la transacción en lugar de perder el paquete sin avisar.
+     */
+    private static void insertStickerPack(SQLiteDatabase db, StickerPack stickerPack, long position) {
+        try (SQLiteStatement statement = db.compileStatement("INSERT INTO packs (" + PACK_COLUMNS + ", position) "
+                + "VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)")) {
+            bind(statement, 1, stickerPack.identifier);
+            bind(statement, 2, stickerPack.name);
+            bind(statement, 3, stickerPack.publisher);
+            bind(statement, 4, stickerPack.trayImageFile);
+            bind(statement, 5, stickerPack.publisherEmail);
+            bind(statement, 6, stickerPack.publisherWebsite);
+            bind(statement, 7, stickerPack.privacyPolicyWebsite);
+            bind(statement, 8, stickerPack.licenseAgreementWebsite);
+            bind(statement, 9, stickerPack.getAndroidPlayStoreLink());
+            bind(statement, 10, stickerPack.getIosAppStoreLink());
+            bind(statement, 11, stickerPack.getImageDataVersion());
+            statement.bindLong(12, stickerPack.isAvoidCache() ? 1 : 0);
+            statement.bindLong(13, stickerPack.getTrayImageFileSize());
+            statement.bindLong(14, stickerPack.getTrayImageFileChecksum());
+            statement.bindLong(15, stickerPack.isTrayImageFileBroken() ? 1 : 0);
+            statement.bindLong(16, position);
+            statement.executeInsert();
+        }
+        if (stickerPack.getStickers() != null) {
+            insertStickers(db, stickerPack.identifier, stickerPack.getStickers(), 0);
+        }
+    }
+
+    /**
+     * Un sticker repetido dentro del paquete, o que ya estaba en él, se guarda una sola vez.
+     */
+    private static void insertStickers(SQLiteDatabase db, String identifier, List<Sticker> stickers, long firstPosition) {
+        try (SQLiteStatement stickerStatement = db.compileStatement("INSERT OR IGNORE INTO stickers (pack_identifier, image_file_name, position, size, checksum, broken) VALUES (?, ?, ?, ?, ?, ?)");
+             SQLiteStatement emojiStatement = db.compileStatement("INSERT OR IGNORE INTO emojis (pack_identifier, image_file_name, position, emoji) VALUES (?, ?, ?, ?)")) {
+            long position = firstPosition;
+            for (Sticker sticker : stickers) {
+                stickerStatement.bindString(1, identifier);
+                stickerStatement.bindString(2, sticker.imageFileName);
+                stickerStatement.bindLong(3, position++);
+                stickerStatement.bindLong(4, sticker.getSize());
+                stickerStatement.bindLong(5, sticker.getChecksum());
+                stickerStatement.bindLong(6, sticker.isBroken() ? 1 : 0);
+                if (stickerStatement.executeInsert() == -1 || sticker.getEmojis() == null) {
+                    continue;
+                }
+                for (int i = 0; i < sticker.getEmojis().size(); i++) {
+                    emojiStatement.bindString(1, identifier);
+                    emojiStatement.bindString(2, sticker.imageFileName);
+                    emojiStatement.bindLong(3, i);
+                    emojiStatement.bindString(4, sticker.getEmojis().get(i));
+                    emojiStatement.executeInsert();
+                }
+            }
+        }
+    }
+
+    private static void bind(SQLiteStatement statement, int index, String value) {
+        if (value == null) {
+            statement.bindNull(index);
+        } else {
+            statement.bindString(index, value);
+        }
+    }
+}
@@ -0,0 +1,247 @@
+package com.unusualapps.whatsappstickers.utils;
+
+import android.content.Context;
+import android.net.Uri;
+import android.os.Bundle;
+import android.os.FileObserver;
+import android.util.Log;
+import com.unusualapps.whatsappstickers.constants.Constants;
+import com.unusualapps.whatsappstickers.whatsapp_api.StickerContentProvider;
+import com.unusualapps.whatsappstickers.whatsapp_api.StickerPack;
+
+import java.io.File;
+import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Vigila con FileObserver la carpeta de stickers creados y la de cada paquete del catálogo, para enterarse de lo que
+ * borran o cambian el usuario u otras aplicaciones sin volver a listar carpetas:
+ * <ul>
+ * <li>La lista de stickers creados se lee una vez y después se actualiza con cada evento.</li>
+ * <li>Los cambios en los archivos de un paquete se agrupan durante COALESCE_MS y se envían al proveedor, que es quien
+ * escribe el catálogo (StickerContentProvider.METHOD_RECONCILE_FILES); las pantallas se enteran por su notificación.</li>
+ * </ul>
+ * Los eventos llegan en el hilo de FileObserver y se procesan en un único hilo propio, así que el estado no necesita
+ * cerrojos. Los objetos de objects/ no se vigilan: son cientos de carpetas y su contenido lo comprueba su nombre.
+ */
+public class StickerFilesWatcher {
+
+    private static final String TAG = "StickerFilesWatcher";
+    //Borrar una carpeta genera un evento por archivo; se espera un poco para hacer un solo cambio en el catálogo.
+    private static final long COALESCE_MS = 50;
+    private static final int WATCHED_EVENTS = FileObserver.CLOSE_WRITE | FileObserver.MOVED_TO | FileObserver.DELETE
+            | FileObserver.MOVED_FROM | FileObserver.DELETE_SELF | FileObserver.MOVE_SELF;
+
+    public interface OnCreatedStickersChangedListener {
+        /**
+         * Se llama en el hilo del vigilante; quien actualice vistas debe pasar al hilo principal.
+         */
+        void onCreatedStickersChanged(List<Uri> stickers);
+    }
+
+    private static StickerFilesWatcher instance;
+
+    private final Context context;
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+    private final List<OnCreatedStickersChangedListener> listeners = new CopyOnWriteArrayList<>();
+    private boolean started;
+
+    //Solo se tocan desde executor
+    private final Map<String, FileObserver> packObservers = new HashMap<>();
+    private final Map<String, Set<String>> pendingChanges = new HashMap<>();
+    private final LinkedHashMap<String, Uri> createdStickers = new LinkedHashMap<>();
+    private FileObserver createdObserver;
+    private List<Uri> publishedCreatedStickers;
+
+    public static synchronized StickerFilesWatcher getInstance(Context context) {
+        if (instance == null) {
+            instance = new StickerFilesWatcher(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    private StickerFilesWatcher(Context context) {
+        this.context = context;
+    }
+
+    /**
+     * Empieza a vigilar. Lee la carpeta de stickers creados una sola vez, fuera del hilo principal.
+     */
+    public synchronized void start() {
+        if (started) {
+            return;
+        }
+        started = true;
+        StickerPacksRepository repository = StickerPacksRepository.getInstance(context);
+        executor.execute(() -> {
+            watchCreatedStickers();
+            watchPacks(repository.getSnapshot());
+        });
+        repository.addListener(snapshot -> executor.execute(() -> watchPacks(snapshot)));
+    }
+
+    /**
+     * Añade un listener y le entrega la lista actual en cuanto esté leída.
+     */
+    public void addCreatedStickersListener(OnCreatedStickersChangedListener listener) {
+        listeners.add(listener);
+        executor.execute(() -> {
+            if (publishedCreatedStickers != null && listeners.contains(listener)) {
+                listener.onCreatedStickersChanged(publishedCreatedStickers);
+            }
+        });
+    }
+
+    public void removeCreatedStickersListener(OnCreatedStickersChangedListener listener) {
+        listeners.remove(listener);
+    }
+
+    private void watchCreatedStickers() {
+        File directory = new File(Constants.STICKERS_CREATED_DIRECTORY_PATH);
+        if (!directory.exists()) {
+            directory.mkdirs();
+        }
+        if (createdObserver != null) {
+            createdObserver.stopWatching();
+        }
+        //Se vigila antes de listar: un archivo que aparezca entre medias llega como evento y no se pierde.
+        createdObserver = new FileObserver(directory.getPath(), WATCHED_EVENTS) {
+            @Override
+            public void onEvent(int event, String path) {
+                executor.execute(() -> onCreatedStickerEvent(event & FileObserver.ALL_EVENTS, path));
+            }
+        };
+        createdObserver.startWatching();
+        createdStickers.clear();
+        File[] files = directory.listFiles();
+        if (files != null) {
+            Arrays.sort(files, (a, b) -> Long.compare(a.lastModified(), b.lastModified()));
+            for (File file : files) {
+                if (file.isFile() && isStickerImage(file.getName())) {
+                    createdStickers.put(file.getName(), Uri.fromFile(file));
+                }
+            }
+        }
+        publishCreatedStickers();
+    }
+
+    private void onCreatedStickerEvent(int event, String fileName) {
+        if ((event & (FileObserver.DELETE_SELF | FileObserver.MOVE_SELF)) != 0) {
+            //Han borrado o movido la carpeta entera; se vuelve a crear y a vigilar.
+            watchCreatedStickers();
+            return;
+        }
+        if (fileName == null || !isStickerImage(fileName)) {
+            return;
+        }
+        boolean changed;
+        if ((event & (FileObserver.CLOSE_WRITE | FileObserver.MOVED_TO)) != 0) {
+            changed = !createdStickers.containsKey(fileName);
+            if (changed) {
+                createdStickers.put(fileName, Uri.fromFile(new File(Constants.STICKERS_CREATED_DIRECTORY_PATH + fileName)));
+            }
+        } else {
+            changed = createdStickers.remove(fileName) != null;
+        }
+        if (changed) {
+            publishCreatedStickers();
+        }
+    }
+
+    private void publishCreatedStickers() {
+        publishedCreatedStickers = Collections.unmodifiableList(new ArrayList<>(createdStickers.values()));
+        for (OnCreatedStickersChangedListener listener : listeners) {
+            listener.onCreatedStickersChanged(publishedCreatedStickers);
+        }
+    }
+
+    private static boolean isStickerImage(String fileName) {
+        return fileName.contains(".png") || fileName.contains(".PNG");
+    }
+
+    /**
+     * Vigila la carpeta de cada paquete del catálogo que la tenga y deja de vigilar las de los paquetes que ya no están.
+     */
+    private void watchPacks(StickerPacksRepository.Snapshot snapshot) {
+        Set<String> identifiers = new HashSet<>();
+        for (StickerPack stickerPack : snapshot.getStickerPacks()) {
+            if (BundledStickerPacks.isBundled(context, stickerPack.identifier)) {
+                continue;
+            }
+            identifiers.add(stickerPack.identifier);
+            if (packObservers.containsKey(stickerPack.identifier)) {
+                continue;
+            }
+            File directory = new File(Constants.STICKERS_DIRECTORY_PATH + stickerPack.identifier);
+            if (directory.isDirectory()) {
+                FileObserver observer = newPackObserver(stickerPack.identifier, directory);
+                observer.startWatching();
+                packObservers.put(stickerPack.identifier, observer);
+            }
+        }
+        Iterator<Map.Entry<String, FileObserver>> iterator = packObservers.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<String, FileObserver> entry = iterator.next();
+            if (!identifiers.contains(entry.getKey())) {
+                entry.getValue().stopWatching();
+                iterator.remove();
+            }
+        }
+    }
+
+    private FileObserver newPackObserver(String identifier, File directory) {
+        return new FileObserver(directory.getPath(), WATCHED_EVENTS) {
+            @Override
+            public void onEvent(int event, String path) {
+                executor.execute(() -> onPackEvent(identifier, event & FileObserver.ALL_EVENTS, path));
+            }
+        };
+    }
+
+    private void onPackEvent(String identifier, int event, String fileName) {
+        if ((event & (FileObserver.DELETE_SELF | FileObserver.MOVE_SELF)) != 0) {
+            //Sin la carpeta se comprueban todos los archivos del paquete.
+            FileObserver observer = packObservers.remove(identifier);
+            if (observer != null) {
+                observer.stopWatching();
+            }
+            StickerPack stickerPack = StickerPacksRepository.getInstance(context).getSnapshot().getStickerPack(identifier);
+            if (stickerPack != null) {
+                addPendingChanges(identifier, StickerPacksManager.getFileNames(stickerPack));
+            }
+        } else if (fileName != null) {
+            addPendingChanges(identifier, Collections.singleton(fileName));
+        }
+    }
+
+    private void addPendingChanges(String identifier, Set<String> fileNames) {
+        Set<String> pending = pendingChanges.get(identifier);
+        if (pending == null) {
+            pending = new HashSet<>();
+            pendingChanges.put(identifier, pending);
+            executor.schedule(() -> applyPendingChanges(identifier), COALESCE_MS, TimeUnit.MILLISECONDS);
+        }
+        pending.addAll(fileNames);
+    }
+
+    private void applyPendingChanges(String identifier) {
+        Set<String> fileNames = pendingChanges.remove(identifier);
+        if (fileNames == null) {
+            return;
+        }
+        Bundle extras = new Bundle();
+        extras.putStringArrayList(StickerContentProvider.EXTRA_FILE_NAMES, new ArrayList<>(fileNames));
+        try {
+            Bundle result = context.getContentResolver().call(StickerContentProvider.AUTHORITY_URI,
+                    StickerContentProvider.METHOD_RECONCILE_FILES, identifier, extras);
+            if (result != null && result.getBoolean(StickerContentProvider.EXTRA_CHANGED)) {
+                Log.i(TAG, "paquete " + identifier + " actualizado por cambios en " + fileNames.size() + " archivos");
+            }
+        } catch (RuntimeException e) {
+            Log.e(TAG, "no se pudo actualizar el paquete " + identifier, e);
+        }
+    }
+}
@@ -0,0 +1,141 @@
+package com.unusualapps.whatsappstickers.utils;
+
+import android.util.Log;
+import com.unusualapps.whatsappstickers.constants.Constants;
+
+import java.io.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collection;
+import java.util.regex.Pattern;
+
+/**
+ * Almacén de archivos direccionado por contenido. Cada sticker o icono de bandeja se guarda una sola vez en
+ * objects/xx/&lt;sha256&gt;.webp (o .png) y los paquetes lo referencian por ese nombre, así que el mismo sticker en
+ * varios paquetes no duplica bytes. El nombre sirve además para comprobar la integridad.
+ * <p>
+ * Las referencias se cuentan sobre el catálogo (StickerPacksRepository.Snapshot.getReferenceCount), que es la única
+ * fuente de verdad; un objeto sin referencias se borra solo si nadie lo ha escrito o reutilizado en GRACE_PERIOD_MS,
+ * para no competir con otro proceso que lo esté añadiendo a un paquete en ese momento.
+ */
+public class StickerObjectStore {
+
+    private static final String TAG = "StickerObjectStore";
+    static final String OBJECTS_DIRECTORY_NAME = "objects";
+    static final long GRACE_PERIOD_MS = 60 * 60 * 1000;
+    private static final Pattern OBJECT_NAME = Pattern.compile("[0-9a-f]{64}\\.(webp|png)");
+
+    public static boolean isContentAddressed(String fileName) {
+        return fileName != null && OBJECT_NAME.matcher(fileName).matches();
+    }
+
+    public static File getObjectsDirectory() {
+        return new File(Constants.STICKERS_DIRECTORY_PATH + OBJECTS_DIRECTORY_NAME);
+    }
+
+    /**
+     * Archivo de un objeto a partir de su nombre (hash más extensión).
+     */
+    public static File getFile(String fileName) {
+        return new File(getObjectsDirectory(), fileName.substring(0, 2) + "/" + fileName);
+    }
+
+    /**
+     * Guarda los bytes si todavía no existe un objeto con el mismo contenido y devuelve su nombre. Si ya existe,
+     * solo se actualiza su fecha, que lo protege durante GRACE_PERIOD_MS mientras el paquete que lo usa se guarda;
+     * si estaba dañado, se reescribe.
+     */
+    public static synchronized String put(byte[] data, String extension) throws IOException {
+        String fileName = sha256(data) + extension;
+        File file = getFile(fileName);
+        if (file.exists() && file.length() == data.length && isIntact(fileName)) {
+            file.setLastModified(System.currentTimeMillis());
+            return fileName;
+        }
+        File directory = file.getParentFile();
+        if (!directory.exists() && !directory.mkdirs()) {
+            throw new IOException("no se pudo crear " + directory);
+        }
+        File tmpFile = new File(file.getPath() + ".tmp");
+        try (FileOutputStream output = new FileOutputStream(tmpFile)) {
+            output.write(data);
+            output.getFD().sync();
+        }
+        if (!tmpFile.renameTo(file)) {
+            throw new IOException("no se pudo publicar " + file);
+        }
+        return fileName;
+    }
+
+    /**
+     * Comprueba que el contenido del objeto sigue correspondiendo a su nombre.
+     */
+    public static boolean isIntact(String fileName) {
+        try {
+            return fileName.startsWith(sha256(getFile(fileName)));
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Hash SHA-256 en hexadecimal del contenido de un archivo cualquiera, leído por bloques.
+     */
+    static String sha256(File file) throws IOException {
+        try (InputStream input = new FileInputStream(file)) {
+            MessageDigest digest = newDigest();
+            byte[] buffer = new byte[16 * 1024];
+            int read;
+            while ((read = input.read(buffer)) != -1) {
+                digest.update(buffer, 0, read);
+            }
+            return toHex(digest.digest());
+        }
+    }
+
+    /**
+     * Borra los objetos de fileNames que ya no referencia ningún paquete de snapshot.
+     *
+     * @return bytes liberados
+     */
+    static synchronized long release(Collection<String> fileNames, StickerPacksRepository.Snapshot snapshot) {
+        long freed = 0;
+        long now = System.currentTimeMillis();
+        for (String fileName : fileNames) {
+            if (!isContentAddressed(fileName) || snapshot.getReferenceCount(fileName) > 0) {
+                continue;
+            }
+            File file = getFile(fileName);
+            if (!file.exists() || now - file.lastModified() < GRACE_PERIOD_MS) {
+                continue;
+            }
+            long length = file.length();
+            if (file.delete()) {
+                freed += length;
+            } else {
+                Log.w(TAG, "no se pudo borrar " + file);
+            }
+        }
+        return freed;
+    }
+
+    private static String sha256(byte[] data) {
+        return toHex(newDigest().digest(data));
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte value : bytes) {
+            hex.append(Character.forDigit((value >> 4) & 0xf, 16)).append(Character.forDigit(value & 0xf, 16));
+        }
+        return hex.toString();
+    }
+}
@@ -1,102 +1,823 @@
 package com.unusualapps.whatsappstickers.utils;
 
+import android.content.ContentValues;
 import android.content.Context;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.net.Uri;
 import android.util.Log;
-import com.google.gson.Gson;
 import com.unusualapps.whatsappstickers.constants.Constants;
 import com.unusualapps.whatsappstickers.identities.StickerPacksContainer;
 import com.unusualapps.whatsappstickers.whatsapp_api.ContentFileParser;
 import com.unusualapps.whatsappstickers.whatsapp_api.Sticker;
+import com.unusualapps.whatsappstickers.whatsapp_api.StickerContentProvider;
 import com.unusualapps.whatsappstickers.whatsapp_api.StickerPack;
+import com.unusualapps.whatsappstickers.whatsapp_api.StickerPackJson;
+import com.unusualapps.whatsappstickers.whatsapp_api.StickerPackValidator;
 
 import java.io.*;
-import java.util.ArrayList;
-import java.util.List;
+import java.util.*;
 
 public class StickerPacksManager {
 
-    public static StickerPacksContainer stickerPacksContainer = null;
+    private static final String MASTERS_DIRECTORY_NAME = "masters";
+    static final String STAGING_DIRECTORY_NAME = "staging";
 
+    private static final JsonCatalogStore jsonCatalogStore = new JsonCatalogStore();
+
+    static final CatalogWriter catalogWriter = new CatalogWriter(StickerPacksRepository::onPersisted);
+
+    //Este proceso aloja StickerContentProvider, el único que escribe el catálogo
+    private static volatile boolean catalogWriterProcess;
+
+    /**
+     * Lo llama StickerContentProvider al crearse, antes de que nadie abra el catálogo en su proceso.
+     */
+    public static void setCatalogWriterProcess() {
+        catalogWriterProcess = true;
+    }
+
+    static boolean isCatalogWriterProcess() {
+        return catalogWriterProcess;
+    }
+
+    /**
+     * Importa contents.json al catálogo SQLite si aún no se ha hecho. Solo se llama desde el proveedor
+     * (StickerContentProvider.METHOD_IMPORT_CATALOG).
+     *
+     * @return true si el catálogo ya está importado
+     */
+    public static boolean importJsonCatalog(Context context) {
+        return !Constants.SQLITE_CATALOG || SqliteCatalogStore.getInstance(context).importJson();
+    }
+
+    /**
+     * Guarda las imágenes y devuelve los stickers nuevos. Con el almacén por contenido, dos imágenes iguales dan el
+     * mismo sticker, así que las repetidas se descartan.
+     */
     public static List<Sticker> saveStickerPackFilesLocally(String identifier, List<Uri> stickersUries, Context context) {
-        String stickerPath = Constants.STICKERS_DIRECTORY_PATH + identifier;
+        return saveStickerFilesToDirectory(Constants.STICKERS_DIRECTORY_PATH + identifier, stickersUries, context);
+    }
+
+    private static List<Sticker> saveStickerFilesToDirectory(String stickerPath, List<Uri> stickersUries, Context context) {
         List<Sticker> stickerList = new ArrayList<>();
+        Set<String> fileNames = new HashSet<>();
         File directory = new File(stickerPath);
         if (!directory.exists()) {
             directory.mkdir();
         }
         for (Uri uri : stickersUries) {
-            Sticker sticker = new Sticker(FileUtils.generateRandomIdentifier() + ".webp", null);
-            stickerList.add(sticker);
-            saveStickerFilesLocally(sticker, uri, stickerPath, context);
+            Sticker sticker = saveStickerFilesLocally(uri, stickerPath, context);
+            if (sticker != null && fileNames.add(sticker.imageFileName)) {
+                stickerList.add(sticker);
+            }
         }
         return stickerList;
     }
 
-    private static void saveStickerFilesLocally(Sticker sticker, Uri stickerUri, String stickerPath, Context context) {
-        createStickerImageFile(stickerUri, Uri.parse(stickerPath + "/" + sticker.imageFileName), context, Bitmap.CompressFormat.WEBP);
+    /**
+     * Con KEEP_LOSSLESS_MASTERS solo se guarda un png sin pérdida en masters/; el proveedor genera el webp cuando WhatsApp lo pide.
+     *
+     * Si no, con CONTENT_ADDRESSED_STORAGE el webp va a StickerObjectStore y el sticker se llama como su hash.
+     * El tamaño y el CRC32 del sticker son los de los bytes escritos en disco.
+     *
+     * @return el sticker guardado, o null si no se pudo procesar la imagen
+     */
+    private static Sticker saveStickerFilesLocally(Uri stickerUri, String stickerPath, Context context) {
+        try {
+            if (Constants.KEEP_LOSSLESS_MASTERS) {
+                String fileName = FileUtils.generateRandomIdentifier() + ".webp";
+                File masterFile = new File(stickerPath + "/" + MASTERS_DIRECTORY_NAME + "/" + getMasterFileName(fileName));
+                File mastersDirectory = masterFile.getParentFile();
+                if (!mastersDirectory.exists()) {
+                    mastersDirectory.mkdir();
+                }
+                byte[] data = ImageUtils.compressImageToBytes(stickerUri, 70, 512, 512, context, Bitmap.CompressFormat.PNG);
+                writeFile(masterFile, data);
+                return newSticker(fileName, data);
+            }
+            byte[] data = ImageUtils.compressImageToBytes(stickerUri, 70, 512, 512, context, Bitmap.CompressFormat.WEBP);
+            if (Constants.CONTENT_ADDRESSED_STORAGE) {
+                return newSticker(StickerObjectStore.put(data, ".webp"), data);
+            }
+            String fileName = FileUtils.generateRandomIdentifier() + ".webp";
+            writeFile(new File(stickerPath + "/" + fileName), data);
+            return newSticker(fileName, data);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    private static Sticker newSticker(String fileName, byte[] data) {
+        Sticker sticker = new Sticker(fileName, null);
+        sticker.setSize(data.length);
+        sticker.setChecksum(FileUtils.crc32(data));
+        return sticker;
+    }
+
+    private static void writeFile(File file, byte[] data) throws IOException {
+        try (FileOutputStream output = new FileOutputStream(file)) {
+            output.write(data);
+        }
+    }
+
+    /**
+     * Genera el icono de la bandeja a partir de sourceUri y lo asigna al paquete junto con su tamaño y su CRC32.
+     */
+    public static void saveStickerPackTrayIconLocally(StickerPack stickerPack, Uri sourceUri, Context context) {
+        saveTrayIconToDirectory(stickerPack, Constants.STICKERS_DIRECTORY_PATH + stickerPack.identifier, sourceUri, context);
+    }
+
+    private static void saveTrayIconToDirectory(StickerPack stickerPack, String stickerPath, Uri sourceUri, Context context) {
+        try {
+            byte[] data = ImageUtils.compressImageToBytes(sourceUri, 80, 96, 96, context, Bitmap.CompressFormat.PNG);
+            String trayIconFile;
+            if (Constants.CONTENT_ADDRESSED_STORAGE) {
+                trayIconFile = StickerObjectStore.put(data, ".png");
+            } else {
+                trayIconFile = FileUtils.generateRandomIdentifier() + ".png";
+                writeFile(new File(stickerPath + "/" + trayIconFile), data);
+            }
+            stickerPack.trayImageFile = trayIconFile;
+            stickerPack.setTrayImageFileSize(data.length);
+            stickerPack.setTrayImageFileChecksum(FileUtils.crc32(data));
+            stickerPack.setTrayImageFileBroken(false);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Tras guardar las imágenes quedan menos stickers distintos de los que WhatsApp admite en un paquete.
+     */
+    public static class TooFewStickersException extends IOException {
+        private final int stickerCount;
+
+        TooFewStickersException(int stickerCount) {
+            super("el paquete necesita al menos " + StickerPackValidator.STICKER_SIZE_MIN + " stickers distintos, tiene " + stickerCount);
+            this.stickerCount = stickerCount;
+        }
+
+        public int getStickerCount() {
+            return stickerCount;
+        }
+    }
+
+    /**
+     * Crea los archivos de un paquete nuevo en staging/&lt;identificador&gt; y, cuando están todos escritos y en disco,
+     * mueve la carpeta a su sitio con un único rename. El paquete devuelto todavía no está en el catálogo; se añade
+     * con una sola inserción, así que los lectores solo ven paquetes completos. Si el proceso muere antes, lo que
+     * quede en staging o una carpeta sin paquete en el catálogo lo recoge StorageSweeper, sin coste al arrancar.
+     * Escribe archivos, así que debe llamarse fuera del hilo principal.
+     */
+    public static StickerPack createStickerPack(Context context, String name, String publisher, List<Uri> stickersUries) throws IOException {
+        String identifier = "." + FileUtils.generateRandomIdentifier();
+        File stagingDirectory = new File(Constants.STICKERS_DIRECTORY_PATH + STAGING_DIRECTORY_NAME + "/" + identifier);
+        File directory = new File(Constants.STICKERS_DIRECTORY_PATH + identifier);
+        if (!stagingDirectory.mkdirs()) {
+            throw new IOException("no se pudo crear " + stagingDirectory);
+        }
+        try {
+            StickerPack stickerPack = new StickerPack(identifier, name, publisher, null, "", "", "", "");
+            List<Sticker> stickerList = saveStickerFilesToDirectory(stagingDirectory.getPath(), stickersUries, context);
+            //Las imágenes repetidas se descartan, así que pueden quedar menos de las elegidas.
+            if (stickerList.size() < StickerPackValidator.STICKER_SIZE_MIN) {
+                throw new TooFewStickersException(stickerList.size());
+            }
+            stickerPack.setStickers(stickerList);
+            saveTrayIconToDirectory(stickerPack, stagingDirectory.getPath(), stickersUries.get(0), context);
+            if (stickerPack.trayImageFile == null) {
+                throw new IOException("no se pudo guardar el icono de la bandeja");
+            }
+            if (Constants.PACKED_STICKER_STORAGE) {
+                PackBlobStore.packDirectory(stagingDirectory);
+            }
+            syncFiles(stagingDirectory);
+            if (!stagingDirectory.renameTo(directory)) {
+                throw new IOException("no se pudo publicar " + directory);
+            }
+            return stickerPack;
+        } catch (IOException | RuntimeException e) {
+            FileUtils.deleteFolder(stagingDirectory.getPath());
+            throw e;
+        }
+    }
+
+    /**
+     * Los objetos del almacén por contenido ya se escriben con fsync; los archivos sueltos no, y sin esto el rename
+     * podría llegar al disco antes que su contenido.
+     */
+    private static void syncFiles(File directory) throws IOException {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            if (file.isDirectory()) {
+                syncFiles(file);
+            } else {
+                try (RandomAccessFile output = new RandomAccessFile(file, "rw")) {
+                    output.getFD().sync();
+                }
+            }
+        }
+    }
+
+    /**
+     * Archivo en disco de un sticker o icono de bandeja: el objeto compartido si el nombre es un hash, o el archivo
+     * suelto dentro de la carpeta del paquete.
+     */
+    public static File getStickerFile(String identifier, String fileName) {
+        if (StickerObjectStore.isContentAddressed(fileName)) {
+            return StickerObjectStore.getFile(fileName);
+        }
+        return new File(Constants.STICKERS_DIRECTORY_PATH + identifier + "/" + fileName);
+    }
+
+    public static File getMasterFile(String identifier, String imageFileName) {
+        return new File(Constants.STICKERS_DIRECTORY_PATH + identifier + "/" + MASTERS_DIRECTORY_NAME + "/" + getMasterFileName(imageFileName));
+    }
+
+    static boolean hasMasters(String identifier) {
+        return new File(Constants.STICKERS_DIRECTORY_PATH + identifier + "/" + MASTERS_DIRECTORY_NAME).isDirectory();
+    }
+
+    private static String getMasterFileName(String imageFileName) {
+        int extension = imageFileName.lastIndexOf('.');
+        return (extension < 0 ? imageFileName : imageFileName.substring(0, extension)) + ".png";
+    }
+
+    public static File getContentFile() {
+        return new File(Constants.STICKERS_DIRECTORY_PATH + "contents.json");
+    }
+
+    public static long getContentVersion() {
+        return CatalogVersion.read();
     }
 
     public static List<StickerPack> getStickerPacks(Context context) {
         List<StickerPack> stickerPackList = new ArrayList<>();
 
         if (RequestPermissionsHelper.verifyPermissions(context)) {
-            File contentFile = new File(Constants.STICKERS_DIRECTORY_PATH + "contents.json");
-            try (InputStream contentsInputStream = new FileInputStream(contentFile)) {
-                stickerPackList = ContentFileParser.parseStickerPacks(contentsInputStream);
-            } catch (IOException | IllegalStateException e) {
-                //throw new RuntimeException("contents.json" + " file has some issues: " + e.getMessage(), e);
-                Log.i("Content provider: ", "contents.json" + " file has some issues: " + e.getMessage());
-            }
+            //Lo que este proceso tenga pendiente de escribir debe verse en la lectura.
+            catalogWriter.flush();
+            stickerPackList = getStore(context).loadStickerPacks();
         }
         return stickerPackList;
     }
 
-    public static void saveStickerPacksToJson(StickerPacksContainer container) {
-        String json = new Gson().toJson(container);
-        try {
-            File file = new File(Constants.STICKERS_DIRECTORY_PATH + "/contents.json");
-            Writer output = new BufferedWriter(new FileWriter(file));
-            output.write(json);
-            output.close();
-        } catch (IOException e) {
-            e.printStackTrace();
+    /**
+     * Busca un solo paquete; con el catálogo en SQLite es una consulta por índice que no carga el resto. Con
+     * contents.json no hay índice, así que se usa la instantánea del repositorio, igual que si no se ha podido guardar
+     * lo pendiente.
+     */
+    public static StickerPack getStickerPack(Context context, String identifier) {
+        if (!RequestPermissionsHelper.verifyPermissions(context)) {
+            return null;
         }
+        if (!Constants.SQLITE_CATALOG || !catalogWriter.flush()) {
+            return getRepository(context).getSnapshot().getStickerPack(identifier);
+        }
+        return getStore(context).loadStickerPack(identifier);
     }
 
-    public static void createStickerImageFile(Uri sourceUri, Uri destinyUri, Context context, Bitmap.CompressFormat format) {
-        String destinationFilename = destinyUri.getPath();
+    private static CatalogStore getStore(Context context) {
+        if (Constants.SQLITE_CATALOG) {
+            return SqliteCatalogStore.getInstance(context);
+        }
+        return jsonCatalogStore;
+    }
+
+    /**
+     * Crea una copia del paquete identifier con otro nombre. Con CONTENT_ADDRESSED_STORAGE, los archivos que ya están
+     * en el almacén por contenido solo ganan una referencia en el catálogo, así que la copia no escribe bytes; los demás
+     * (sueltos, en un blob o en el apk) se guardan antes en el almacén, y las copias siguientes tampoco los duplican.
+     * Sin él, la copia escribe sus propios archivos sueltos, como cualquier paquete nuevo. Como escribe el catálogo,
+     * solo se llama desde el proveedor (StickerContentProvider.METHOD_CLONE_PACK).
+     *
+     * @return el paquete nuevo, o null si identifier no existe
+     */
+    public static StickerPack cloneStickerPack(Context context, String identifier, String name) throws IOException {
+        StickerPack original = getRepository(context).getSnapshot().getStickerPack(identifier);
+        if (original == null && BundledStickerPacks.isBundled(context, identifier)) {
+            for (StickerPack stickerPack : BundledStickerPacks.getStickerPacks(context)) {
+                if (stickerPack.identifier.equals(identifier)) {
+                    original = stickerPack;
+                }
+            }
+        }
+        if (original == null) {
+            return null;
+        }
+        String cloneIdentifier = "." + FileUtils.generateRandomIdentifier();
+        StickerPack clone = new StickerPack(cloneIdentifier, name, original.publisher, copyFile(context, identifier, cloneIdentifier, original.trayImageFile),
+                original.publisherEmail, original.publisherWebsite, original.privacyPolicyWebsite, original.licenseAgreementWebsite);
+        clone.setAndroidPlayStoreLink(original.getAndroidPlayStoreLink());
+        clone.setIosAppStoreLink(original.getIosAppStoreLink());
+        clone.setTrayImageFileSize(original.getTrayImageFileSize());
+        clone.setTrayImageFileChecksum(original.getTrayImageFileChecksum());
+        List<Sticker> stickers = new ArrayList<>(original.getStickers().size());
+        for (Sticker sticker : original.getStickers()) {
+            //Los dañados no se copian; sus bytes no son los que se anotaron.
+            if (sticker.isBroken()) {
+                continue;
+            }
+            Sticker copy = sticker.copy();
+            copy.imageFileName = copyFile(context, identifier, cloneIdentifier, sticker.imageFileName);
+            stickers.add(copy);
+        }
+        clone.setStickers(stickers);
+        addStickerPacks(context, Collections.singletonList(clone));
+        return clone;
+    }
+
+    /**
+     * Nombre con el que el paquete cloneIdentifier guarda el archivo fileName del paquete identifier: el del almacén
+     * por contenido (guardándolo antes si no lo está) o, sin CONTENT_ADDRESSED_STORAGE, el de una copia suelta nueva.
+     */
+    private static String copyFile(Context context, String identifier, String cloneIdentifier, String fileName) throws IOException {
+        if (Constants.CONTENT_ADDRESSED_STORAGE) {
+            if (StickerObjectStore.isContentAddressed(fileName)) {
+                return fileName;
+            }
+            return StickerObjectStore.put(readStoredFile(context, identifier, fileName), fileName.substring(fileName.lastIndexOf('.')));
+        }
+        File directory = new File(Constants.STICKERS_DIRECTORY_PATH + cloneIdentifier);
+        if (!directory.exists()) {
+            directory.mkdir();
+        }
+        String copyName = FileUtils.generateRandomIdentifier() + fileName.substring(fileName.lastIndexOf('.'));
+        writeFile(new File(directory, copyName), readStoredFile(context, identifier, fileName));
+        return copyName;
+    }
+
+    /**
+     * Bytes del archivo fileName del paquete identifier, esté en el apk, en su blob, suelto o en el almacén por contenido.
+     */
+    private static byte[] readStoredFile(Context context, String identifier, String fileName) throws IOException {
+        byte[] data;
+        if (BundledStickerPacks.isBundled(context, identifier)) {
+            try (InputStream input = BundledStickerPacks.openAssetFile(context, identifier, fileName).createInputStream()) {
+                data = FileUtils.getBytes(input);
+            }
+        } else {
+            PackBlobStore.Index index = PackBlobStore.getIndex(identifier);
+            PackBlobStore.Entry entry = index == null ? null : index.getEntry(fileName);
+            if (entry != null) {
+                data = new byte[(int) entry.length];
+                try (RandomAccessFile blob = new RandomAccessFile(PackBlobStore.getBlobFile(identifier), "r")) {
+                    blob.seek(entry.offset);
+                    blob.readFully(data);
+                }
+            } else {
+                try (InputStream input = new FileInputStream(getStickerFile(identifier, fileName))) {
+                    data = FileUtils.getBytes(input);
+                }
+            }
+        }
+        return data;
+    }
+
+    public static void addStickerPacks(Context context, List<StickerPack> stickerPacks) {
+        for (StickerPack stickerPack : stickerPacks) {
+            requireComplete(stickerPack);
+        }
+        getRepository(context).mutate(getStore(context), current -> {
+            Set<String> identifiers = new HashSet<>();
+            for (StickerPack stickerPack : current) {
+                identifiers.add(stickerPack.identifier);
+            }
+            List<CatalogJournal.Record> records = new ArrayList<>();
+            for (StickerPack stickerPack : stickerPacks) {
+                if (!identifiers.add(stickerPack.identifier)) {
+                    throw new IllegalStateException("Ya existe un paquete con el identificador " + stickerPack.identifier);
+                }
+                records.add(CatalogJournal.addPack(stickerPack));
+            }
+            current.addAll(stickerPacks);
+            return records;
+        });
+    }
+
+    /**
+     * Reemplaza un paquete. Si cambian sus imágenes y quien llama no ha subido imageDataVersion, se sube aquí en
+     * stickerPack, para que WhatsApp descarte las que tenga en caché. Si solo se han añadido stickers o cambiado su
+     * orden, el catálogo guarda solo eso (CatalogJournal.describeUpdate).
+     */
+    public static boolean updateStickerPack(Context context, StickerPack stickerPack) {
+        requireComplete(stickerPack);
+        StickerPack[] replaced = new StickerPack[1];
+        getRepository(context).mutate(getStore(context), current -> {
+            int index = indexOf(current, stickerPack.identifier);
+            if (index < 0) {
+                return Collections.emptyList();
+            }
+            StickerPack previous = current.get(index);
+            if (previous.getImageDataVersion().equals(stickerPack.getImageDataVersion()) && !haveSameImages(previous, stickerPack)) {
+                stickerPack.bumpImageDataVersion();
+            }
+            replaced[0] = current.set(index, stickerPack);
+            return CatalogJournal.describeUpdate(previous, stickerPack);
+        });
+        if (replaced[0] == null) {
+            return false;
+        }
+        Set<String> fileNames = getFileNames(replaced[0]);
+        fileNames.removeAll(getFileNames(stickerPack));
+        releaseAfterPersisted(context, fileNames);
+        return true;
+    }
+
+    /**
+     * El catálogo exige nombre, autor e icono de bandeja; un paquete sin ellos se rechaza antes de cambiar nada.
+     */
+    private static void requireComplete(StickerPack stickerPack) {
+        if (stickerPack.name == null || stickerPack.publisher == null || stickerPack.trayImageFile == null) {
+            throw new IllegalArgumentException("al paquete " + stickerPack.identifier + " le falta el nombre, el autor o el icono de la bandeja");
+        }
+    }
+
+    private static boolean haveSameImages(StickerPack a, StickerPack b) {
+        if (!Objects.equals(a.trayImageFile, b.trayImageFile) || a.getTrayImageFileChecksum() != b.getTrayImageFileChecksum()
+                || a.getStickers().size() != b.getStickers().size()) {
+            return false;
+        }
+        for (int i = 0; i < a.getStickers().size(); i++) {
+            Sticker sticker = a.getStickers().get(i);
+            Sticker other = b.getStickers().get(i);
+            if (!sticker.imageFileName.equals(other.imageFileName) || sticker.getChecksum() != other.getChecksum()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Ajusta un paquete a cambios hechos desde fuera en sus archivos: los stickers de fileNames que ya no se pueden
+     * leer se quitan, y los que siguen se vuelven a medir y suben imageDataVersion para que WhatsApp no use la caché.
+     * Si no queda ningún sticker, el paquete se borra. StickerFilesWatcher lo pide al proveedor con
+     * StickerContentProvider.METHOD_RECONCILE_FILES.
+     *
+     * @return true si el catálogo ha cambiado
+     */
+    public static boolean reconcileStickerPackFiles(Context context, String identifier, Set<String> fileNames) {
+        boolean[] emptied = new boolean[1];
+        StickerPacksRepository.Snapshot next = getRepository(context).mutate(getStore(context), current -> {
+            int index = indexOf(current, identifier);
+            if (index < 0) {
+                return Collections.emptyList();
+            }
+            StickerPack stickerPack = current.get(index);
+            boolean changed = false;
+            List<Sticker> stickers = new ArrayList<>();
+            for (Sticker sticker : stickerPack.getStickers()) {
+                if (!fileNames.contains(sticker.imageFileName)) {
+                    stickers.add(sticker);
+                    continue;
+                }
+                changed = true;
+                long size = getStoredFileSize(identifier, sticker.imageFileName);
+                if (size > 0) {
+                    //El contenido nuevo es el que vale a partir de ahora.
+                    Sticker measured = sticker.copy();
+                    measured.setSize(size);
+                    measured.setChecksum(getStoredFileChecksum(identifier, sticker.imageFileName));
+                    measured.setBroken(false);
+                    stickers.add(measured);
+                }
+            }
+            long trayImageFileSize = stickerPack.getTrayImageFileSize();
+            long trayImageFileChecksum = stickerPack.getTrayImageFileChecksum();
+            boolean trayImageFileBroken = stickerPack.isTrayImageFileBroken();
+            if (fileNames.contains(stickerPack.trayImageFile)) {
+                changed = true;
+                trayImageFileSize = getStoredFileSize(identifier, stickerPack.trayImageFile);
+                trayImageFileChecksum = getStoredFileChecksum(identifier, stickerPack.trayImageFile);
+                //Sin icono el paquete se conserva, pero queda marcado hasta que se cambie.
+                trayImageFileBroken = trayImageFileSize <= 0;
+            }
+            if (!changed) {
+                return Collections.emptyList();
+            }
+            //Con algún sticker se conserva aunque quede por debajo del mínimo: StickerCatalog no lo ofrece a WhatsApp
+            //hasta que vuelva a tener suficientes.
+            if (stickers.isEmpty()) {
+                emptied[0] = true;
+                return Collections.emptyList();
+            }
+            StickerPack updated = stickerPack.copy();
+            updated.setStickers(stickers);
+            updated.setTrayImageFileSize(trayImageFileSize);
+            updated.setTrayImageFileChecksum(trayImageFileChecksum);
+            updated.setTrayImageFileBroken(trayImageFileBroken);
+            updated.bumpImageDataVersion();
+            current.set(index, updated);
+            return Collections.singletonList(CatalogJournal.updatePack(updated));
+        });
+        if (emptied[0]) {
+            return deleteStickerPack(context, identifier) != null;
+        }
+        return next != null;
+    }
+
+    public static StickerPack deleteStickerPack(Context context, String identifier) {
+        StickerPack[] removed = new StickerPack[1];
+        getRepository(context).mutate(getStore(context), current -> {
+            int index = indexOf(current, identifier);
+            if (index < 0) {
+                return Collections.emptyList();
+            }
+            removed[0] = current.remove(index);
+            return Collections.singletonList(CatalogJournal.removePack(identifier));
+        });
+        if (removed[0] != null) {
+            //Los archivos se borran cuando el catálogo guardado ya no hace referencia al paquete.
+            catalogWriter.runAfterPersisted(() -> FileUtils.deleteFolder(Constants.STICKERS_DIRECTORY_PATH + identifier));
+            releaseAfterPersisted(context, getFileNames(removed[0]));
+        }
+        return removed[0];
+    }
+
+    static Set<String> getFileNames(StickerPack stickerPack) {
+        Set<String> fileNames = new HashSet<>();
+        fileNames.add(stickerPack.trayImageFile);
+        for (Sticker sticker : stickerPack.getStickers()) {
+            fileNames.add(sticker.imageFileName);
+        }
+        return fileNames;
+    }
+
+    /**
+     * Cuando el cambio esté guardado, borra los objetos de fileNames que ya no use ningún paquete.
+     */
+    private static void releaseAfterPersisted(Context context, Set<String> fileNames) {
+        if (fileNames.isEmpty()) {
+            return;
+        }
+        catalogWriter.runAfterPersisted(() -> {
+            long freed = StickerObjectStore.release(fileNames, getRepository(context).getSnapshot());
+            if (freed > 0) {
+                Log.i("StickerPacksManager", "liberados " + freed + " bytes de stickers sin referencias");
+            }
+        });
+    }
+
+    /**
+     * Los catálogos guardados antes de anotar tamaños tienen los stickers y la bandeja a 0. Se miden una vez los
+     * archivos de esos paquetes y se guardan; después las etiquetas de tamaño ya no tocan el disco.
+     * Recorre carpetas, así que debe llamarse fuera del hilo principal. La aplicación lo pide al proveedor con
+     * StickerContentProvider.METHOD_MEASURE_MISSING_SIZES.
+     *
+     * @return true si el catálogo ha cambiado
+     */
+    public static boolean measureMissingSizes(Context context) {
+        return getRepository(context).mutate(getStore(context), current -> {
+            List<CatalogJournal.Record> records = new ArrayList<>();
+            for (int i = 0; i < current.size(); i++) {
+                StickerPack stickerPack = current.get(i);
+                if (stickerPack.getStorageSize() > 0 || BundledStickerPacks.isBundled(context, stickerPack.identifier)) {
+                    continue;
+                }
+                StickerPack measured = stickerPack.copy();
+                List<Sticker> stickers = new ArrayList<>();
+                for (Sticker sticker : stickerPack.getStickers()) {
+                    Sticker copy = sticker.copy();
+                    copy.setSize(getStoredFileSize(stickerPack.identifier, sticker.imageFileName));
+                    stickers.add(copy);
+                }
+                measured.setStickers(stickers);
+                measured.setTrayImageFileSize(getStoredFileSize(stickerPack.identifier, stickerPack.trayImageFile));
+                if (measured.getStorageSize() == 0) {
+                    continue;
+                }
+                current.set(i, measured);
+                records.add(CatalogJournal.updatePack(measured));
+            }
+            return records;
+        }) != null;
+    }
+
+    /**
+     * Tamaño del archivo tal y como está guardado: porción del blob, webp suelto u original sin pérdida.
+     */
+    static long getStoredFileSize(String identifier, String fileName) {
+        PackBlobStore.Index index = PackBlobStore.getIndex(identifier);
+        if (index != null && index.getEntry(fileName) != null) {
+            return index.getEntry(fileName).length;
+        }
+        File file = getStickerFile(identifier, fileName);
+        if (file.exists()) {
+            return file.length();
+        }
+        return getMasterFile(identifier, fileName).length();
+    }
+
+    /**
+     * CRC32 del archivo guardado. En un paquete con blob es el que se anotó en el índice al copiarlo; si el índice es
+     * del formato anterior y no lo tiene, se calcula como readStoredFileChecksum.
+     *
+     * @return la suma, o -1 si el archivo no existe o no se puede leer
+     */
+    static long getStoredFileChecksum(String identifier, String fileName) {
+        PackBlobStore.Index index = PackBlobStore.getIndex(identifier);
+        PackBlobStore.Entry entry = index == null ? null : index.getEntry(fileName);
+        if (entry != null && entry.crc32 != 0) {
+            return entry.crc32;
+        }
+        return readStoredFileChecksum(identifier, fileName);
+    }
+
+    /**
+     * CRC32 calculado leyendo los bytes guardados (la porción del blob, el archivo suelto o el original). Es lo que
+     * usa StickerVerifier, que debe comprobar el contenido y no lo anotado.
+     *
+     * @return la suma, o -1 si el archivo no existe o no se puede leer
+     */
+    static long readStoredFileChecksum(String identifier, String fileName) {
         try {
-            File file = new File(destinationFilename);
-            byte[] bitmapdata = ImageUtils.compressImageToBytes(sourceUri, 70, 512, 512, context, format);
-            FileOutputStream fos = new FileOutputStream(file);
-            fos.write(bitmapdata);
-            fos.flush();
-            fos.close();
+            PackBlobStore.Index index = PackBlobStore.getIndex(identifier);
+            PackBlobStore.Entry entry = index == null ? null : index.getEntry(fileName);
+            if (entry != null) {
+                try (RandomAccessFile blob = new RandomAccessFile(PackBlobStore.getBlobFile(identifier), "r")) {
+                    byte[] data = new byte[(int) entry.length];
+                    blob.seek(entry.offset);
+                    blob.readFully(data);
+                    return FileUtils.crc32(data);
+                }
+            }
+            File file = getStickerFile(identifier, fileName);
+            if (!file.exists()) {
+                file = getMasterFile(identifier, fileName);
+            }
+            try (InputStream input = new FileInputStream(file)) {
+                return FileUtils.crc32(input);
+            }
         } catch (IOException e) {
-            e.printStackTrace();
+            return -1;
         }
     }
 
-    public static void createStickerPackTrayIconFile(Uri sourceUri, Uri destinyUri, Context context) {
+    /**
+     * Guarda el resultado de StickerVerifier: marca como dañados los stickers (y el icono de la bandeja) de broken,
+     * quita la marca a los demás comprobados y anota el CRC32 de los que no lo tenían. No sube imageDataVersion, porque los archivos no han
+     * cambiado; si el paquete ha cambiado desde versión, el resultado ya no vale y se descarta.
+     *
+     * @param checksums CRC32 de los archivos comprobados que están bien
+     * @return true si el catálogo ha cambiado
+     */
+    static boolean recordVerification(Context context, String identifier, String imageDataVersion, Map<String, Long> checksums, Set<String> broken) {
+        return getRepository(context).mutate(getStore(context), current -> {
+            int index = indexOf(current, identifier);
+            if (index < 0 || !current.get(index).getImageDataVersion().equals(imageDataVersion)) {
+                return Collections.emptyList();
+            }
+            StickerPack stickerPack = current.get(index);
+            boolean changed = false;
+            List<Sticker> stickers = new ArrayList<>();
+            for (Sticker sticker : stickerPack.getStickers()) {
+                Long checksum = checksums.get(sticker.imageFileName);
+                boolean isBroken = broken.contains(sticker.imageFileName);
+                if (checksum == null && !isBroken) {
+                    stickers.add(sticker);
+                    continue;
+                }
+                long recorded = sticker.getChecksum() == 0 && checksum != null ? checksum : sticker.getChecksum();
+                if (isBroken == sticker.isBroken() && recorded == sticker.getChecksum()) {
+                    stickers.add(sticker);
+                    continue;
+                }
+                Sticker verified = sticker.copy();
+                verified.setBroken(isBroken);
+                verified.setChecksum(recorded);
+                stickers.add(verified);
+                changed = true;
+            }
+            Long trayImageFileChecksum = checksums.get(stickerPack.trayImageFile);
+            boolean recordTray = stickerPack.getTrayImageFileChecksum() == 0 && trayImageFileChecksum != null;
+            boolean trayImageFileBroken = broken.contains(stickerPack.trayImageFile);
+            boolean markTray = (trayImageFileBroken || trayImageFileChecksum != null) && trayImageFileBroken != stickerPack.isTrayImageFileBroken();
+            if (!changed && !recordTray && !markTray) {
+                return Collections.emptyList();
+            }
+            StickerPack updated = stickerPack.copy();
+            updated.setStickers(stickers);
+            if (recordTray) {
+                updated.setTrayImageFileChecksum(trayImageFileChecksum);
+            }
+            if (markTray) {
+                updated.setTrayImageFileBroken(trayImageFileBroken);
+            }
+            current.set(index, updated);
+            return Collections.singletonList(CatalogJournal.updatePack(updated));
+        }) != null;
+    }
+
+    private static StickerPacksRepository getRepository(Context context) {
+        return StickerPacksRepository.getInstance(context);
+    }
+
+    private static int indexOf(List<StickerPack> stickerPacks, String identifier) {
+        for (int i = 0; i < stickerPacks.size(); i++) {
+            if (stickerPacks.get(i).identifier.equals(identifier)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Espera a que se guarden los cambios pendientes del catálogo.
+     *
+     * @return false si no se han podido guardar; se reintentará en segundo plano
+     */
+    public static boolean flush() {
+        return catalogWriter.flush();
+    }
+
+    /**
+     * Ejecuta callback en segundo plano cuando los cambios encolados hasta ahora estén guardados
+     * y la versión del catálogo ya los refleje.
+     */
+    public static void runAfterPersisted(Runnable callback) {
+        catalogWriter.runAfterPersisted(callback);
+    }
+
+    /**
+     * Exporta el catálogo a un archivo con el formato de contents.json. Solo lee la instantánea, así que vale desde
+     * cualquier proceso; con el catálogo en SQLite es la forma de obtener un contents.json al día.
+     */
+    public static void exportToJson(Context context, File file) throws IOException {
+        File directory = file.getParentFile();
+        if (directory != null && !directory.exists() && !directory.mkdirs()) {
+            throw new IOException("no se pudo crear " + directory);
+        }
+        catalogWriter.flush();
+        writeJson(new StickerPacksContainer("", "", getRepository(context).getSnapshot().getStickerPacks()), file);
+    }
+
+    /**
+     * Importa los paquetes de un archivo con el formato de contents.json. Los que ya existen se ignoran. El catálogo
+     * solo lo escribe el proveedor, así que los nuevos se le envían con un único bulkInsert.
+     *
+     * @return número de paquetes importados
+     */
+    public static int importFromJson(Context context, File file) throws IOException {
+        List<StickerPack> stickerPacks;
+        try (InputStream contentsInputStream = new FileInputStream(file)) {
+            stickerPacks = ContentFileParser.parseStickerPacks(contentsInputStream);
+        } catch (IllegalStateException e) {
+            throw new IOException(file + " no es válido: " + e.getMessage(), e);
+        }
+        StickerPacksRepository.Snapshot snapshot = getRepository(context).getSnapshot();
+        List<ContentValues> values = new ArrayList<>();
+        for (StickerPack stickerPack : stickerPacks) {
+            if (snapshot.indexOf(stickerPack.identifier) < 0 && !BundledStickerPacks.isBundled(context, stickerPack.identifier)) {
+                ContentValues contentValues = new ContentValues();
+                contentValues.put(StickerContentProvider.STICKER_PACK_IN_VALUES, StickerPackJson.GSON.toJson(stickerPack));
+                values.add(contentValues);
+            }
+        }
+        if (values.isEmpty()) {
+            return 0;
+        }
+        return context.getContentResolver().bulkInsert(StickerContentProvider.AUTHORITY_URI, values.toArray(new ContentValues[0]));
+    }
+
+    /**
+     * Escribe el contenedor completo como json. El archivo se escribe aparte, se sincroniza y se publica
+     * con un rename, así que una caída a mitad deja intacto el archivo anterior.
+     */
+    static void writeJson(StickerPacksContainer container, File file) throws IOException {
+        File tmpFile = new File(file.getPath() + ".tmp");
+        try (FileOutputStream fileOutput = new FileOutputStream(tmpFile)) {
+            Writer output = new BufferedWriter(new OutputStreamWriter(fileOutput, "UTF-8"));
+            //Se escribe en streaming, sin construir el json completo en memoria.
+            StickerPackJson.GSON.toJson(container, StickerPacksContainer.class, output);
+            output.flush();
+            fileOutput.getFD().sync();
+        }
+        if (!tmpFile.renameTo(file)) {
+            throw new IOException("no se pudo publicar " + file);
+        }
+    }
+
+    /**
+     * @return bytes escritos, o 0 si no se pudo crear el archivo
+     */
+    public static long createStickerImageFile(Uri sourceUri, Uri destinyUri, Context context, Bitmap.CompressFormat format) {
         String destinationFilename = destinyUri.getPath();
         try {
             File file = new File(destinationFilename);
-            byte[] bitmapdata = ImageUtils.compressImageToBytes(sourceUri, 80, 96, 96, context, Bitmap.CompressFormat.PNG);
+            byte[] bitmapdata = ImageUtils.compressImageToBytes(sourceUri, 70, 512, 512, context, format);
             FileOutputStream fos = new FileOutputStream(file);
             fos.write(bitmapdata);
             fos.flush();
             fos.close();
+            return bitmapdata.length;
         } catch (IOException e) {
             e.printStackTrace();
+            return 0;
         }
     }
-
-    public static void deleteStickerPack(int index) {
-        StickerPack pack = stickerPacksContainer.removeStickerPack(index);
-        FileUtils.deleteFolder(Constants.STICKERS_DIRECTORY_PATH + pack.identifier);
-        saveStickerPacksToJson(stickerPacksContainer);
-    }
 }
\ No newline at end of file
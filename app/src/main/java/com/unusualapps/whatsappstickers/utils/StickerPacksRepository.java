@@ -0,0 +1,318 @@
+package com.unusualapps.whatsappstickers.utils;
+
+import android.content.Context;
+import android.database.ContentObserver;
+import com.unusualapps.whatsappstickers.whatsapp_api.Sticker;
+import com.unusualapps.whatsappstickers.whatsapp_api.StickerContentProvider;
+import com.unusualapps.whatsappstickers.whatsapp_api.StickerPack;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Catálogo en memoria de este proceso. Entrega instantáneas inmutables que se pueden leer desde cualquier hilo sin
+ * bloquear; las mutaciones copian la lista bajo un único cerrojo de escritura, publican una instantánea nueva con la
+ * versión siguiente y avisan a los listeners. CatalogWriter guarda cada mutación en segundo plano.
+ * <p>
+ * contents.version solo se vuelve a leer cuando el proveedor avisa con notifyChange de que ha guardado un cambio; ese
+ * aviso lanza además una única recarga en segundo plano, que llega a los listeners.
+ */
+public class StickerPacksRepository {
+
+    /**
+     * Estado del catálogo en un instante. Ni la lista ni el índice cambian una vez creada.
+     */
+    public static final class Snapshot {
+        private final Context context;
+        private final long version;
+        private final List<StickerPack> stickerPacks;
+        private final Map<String, Integer> positions;
+        //Si las imágenes de cada paquete se leen a través del proveedor; se rellena al consultarlo, fuera del cerrojo de escritura
+        private final Map<String, Boolean> servedByProvider;
+        private volatile Map<String, Integer> referenceCounts;
+
+        /**
+         * @param previous instantánea anterior, de la que se copia cómo se guarda cada paquete que ya estaba; el constructor
+         *                 no mira el disco, porque se llama con el cerrojo de escritura tomado
+         */
+        Snapshot(Context context, long version, List<StickerPack> stickerPacks, Snapshot previous) {
+            this.context = context;
+            this.version = version;
+            this.stickerPacks = Collections.unmodifiableList(stickerPacks);
+            Map<String, Integer> positions = new HashMap<>(stickerPacks.size() * 2);
+            Map<String, Boolean> servedByProvider = new ConcurrentHashMap<>();
+            for (int i = 0; i < stickerPacks.size(); i++) {
+                String identifier = stickerPacks.get(i).identifier;
+                positions.put(identifier, i);
+                Boolean served = previous == null ? null : previous.servedByProvider.get(identifier);
+                if (served != null) {
+                    servedByProvider.put(identifier, served);
+                }
+            }
+            this.positions = positions;
+            this.servedByProvider = servedByProvider;
+        }
+
+        public long getVersion() {
+            return version;
+        }
+
+        public List<StickerPack> getStickerPacks() {
+            return stickerPacks;
+        }
+
+        public int indexOf(String identifier) {
+            Integer position = positions.get(identifier);
+            return position == null ? -1 : position;
+        }
+
+        public StickerPack getStickerPack(String identifier) {
+            Integer position = positions.get(identifier);
+            return position == null ? null : stickerPacks.get(position);
+        }
+
+        /**
+         * Indica si las imágenes del paquete se piden al proveedor (ImageUtils.getStickerImageAsset). Solo se mira el
+         * disco la primera vez que se pregunta por un paquete; las instantáneas siguientes heredan la respuesta.
+         */
+        public boolean isServedByProvider(String identifier) {
+            if (!positions.containsKey(identifier)) {
+                return ImageUtils.isServedByProvider(context, identifier);
+            }
+            Boolean served = servedByProvider.get(identifier);
+            if (served == null) {
+                served = ImageUtils.isServedByProvider(context, identifier);
+                servedByProvider.put(identifier, served);
+            }
+            return served;
+        }
+
+        /**
+         * Número de paquetes que usan el archivo fileName del almacén por contenido. Se calcula la primera vez que se pide.
+         */
+        public int getReferenceCount(String fileName) {
+            Map<String, Integer> counts = referenceCounts;
+            if (counts == null) {
+                counts = new HashMap<>();
+                for (StickerPack stickerPack : stickerPacks) {
+                    Set<String> fileNames = new HashSet<>();
+                    fileNames.add(stickerPack.trayImageFile);
+                    for (Sticker sticker : stickerPack.getStickers()) {
+                        fileNames.add(sticker.imageFileName);
+                    }
+                    for (String name : fileNames) {
+                        if (StickerObjectStore.isContentAddressed(name)) {
+                            Integer count = counts.get(name);
+                            counts.put(name, count == null ? 1 : count + 1);
+                        }
+                    }
+                }
+                referenceCounts = counts;
+            }
+            Integer count = counts.get(fileName);
+            return count == null ? 0 : count;
+        }
+    }
+
+    public interface OnStickerPacksChangedListener {
+        /**
+         * Se llama en el hilo que hizo el cambio (o la recarga); quien actualice vistas debe pasar al hilo principal.
+         */
+        void onStickerPacksChanged(Snapshot snapshot);
+    }
+
+    interface Mutation {
+        /**
+         * Aplica el cambio sobre una copia de la lista y devuelve los registros que lo describen (vacío si no cambia nada).
+         */
+        List<CatalogJournal.Record> apply(List<StickerPack> stickerPacks);
+    }
+
+    private static final String TAG = "StickerPacksRepository";
+
+    private static StickerPacksRepository instance;
+
+    private final Context context;
+    private final Executor reloadExecutor = Executors.newSingleThreadExecutor(runnable -> new Thread(runnable, TAG));
+    //El proveedor ha avisado de un cambio que puede no estar en snapshot; hasta entonces no se lee contents.version
+    private final AtomicBoolean versionChanged = new AtomicBoolean(true);
+    //Hay una recarga en segundo plano encolada o en marcha
+    private final AtomicBoolean reloading = new AtomicBoolean();
+    private final Object writeLock = new Object();
+    private final List<OnStickerPacksChangedListener> listeners = new CopyOnWriteArrayList<>();
+    private volatile Snapshot snapshot;
+    //Versión de CatalogVersion que refleja snapshot; si otro proceso la sube, la siguiente lectura recarga
+    private volatile long catalogVersion = -1;
+    private long nextVersion = 1;
+
+    public static synchronized StickerPacksRepository getInstance(Context context) {
+        if (instance == null) {
+            instance = new StickerPacksRepository(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    private StickerPacksRepository(Context context) {
+        this.context = context;
+        //Sin Handler, onChange llega en un hilo de binder; solo marca el cambio y encola la recarga.
+        context.getContentResolver().registerContentObserver(StickerContentProvider.AUTHORITY_URI, true, new ContentObserver(null) {
+            @Override
+            public void onChange(boolean selfChange) {
+                versionChanged.set(true);
+                if (snapshot != null) {
+                    reloadInBackground();
+                }
+            }
+        });
+    }
+
+    /**
+     * Devuelve la instantánea actual. Solo recarga la primera vez o cuando otro proceso (el del proveedor) ha cambiado
+     * el catálogo; la carga se hace sin cerrojo y se publica solo si nadie ha publicado otra entretanto. Como puede
+     * leer el disco, no debe llamarse desde el hilo principal.
+     */
+    public Snapshot getSnapshot() {
+        while (true) {
+            Snapshot current = snapshot;
+            if (isCurrent(current)) {
+                return current;
+            }
+            //Lo pendiente de este proceso debe verse en la lectura; si no se ha podido guardar, se sigue con lo que hay.
+            if (!StickerPacksManager.flush() && current != null) {
+                return current;
+            }
+            final long version = CatalogVersion.read();
+            List<StickerPack> stickerPacks = StickerPacksManager.getStickerPacks(context);
+            Snapshot loaded;
+            synchronized (writeLock) {
+                if (snapshot != current) {
+                    continue;
+                }
+                loaded = new Snapshot(context, nextVersion++, stickerPacks, current);
+                snapshot = loaded;
+                catalogVersion = version;
+            }
+            notifyListeners(loaded);
+            return loaded;
+        }
+    }
+
+    /**
+     * Devuelve la instantánea actual sin esperar a ninguna carga, o null si todavía no hay ninguna. Si falta o no
+     * refleja el último cambio guardado, se recarga una sola vez en segundo plano y mientras tanto se sigue
+     * devolviendo la que hay.
+     */
+    public Snapshot getCurrentSnapshot() {
+        Snapshot current = snapshot;
+        if (!isCurrent(current)) {
+            reloadInBackground();
+        }
+        return current;
+    }
+
+    /**
+     * Indica si current refleja la versión guardada. contents.version solo se lee si ha llegado un aviso desde la
+     * última comprobación; si no coincide, el aviso se conserva hasta que una recarga la alcance.
+     */
+    private boolean isCurrent(Snapshot current) {
+        if (current == null) {
+            return false;
+        }
+        if (!versionChanged.getAndSet(false)) {
+            return true;
+        }
+        if (catalogVersion == CatalogVersion.read()) {
+            return true;
+        }
+        versionChanged.set(true);
+        return false;
+    }
+
+    /**
+     * Encola una recarga si no hay ya una pendiente. Si llega otro aviso mientras se ejecuta, se vuelve a comprobar
+     * al terminar, para que los listeners acaben recibiendo la última versión.
+     */
+    private void reloadInBackground() {
+        if (!reloading.compareAndSet(false, true)) {
+            return;
+        }
+        reloadExecutor.execute(() -> {
+            do {
+                getSnapshot();
+                reloading.set(false);
+            } while (versionChanged.get() && reloading.compareAndSet(false, true));
+        });
+    }
+
+    public void addListener(OnStickerPacksChangedListener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(OnStickerPacksChangedListener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Aplica una mutación con copia en escritura y la encola en CatalogWriter.
+     *
+     * @return la instantánea publicada, o null si la mutación no cambió nada
+     */
+    Snapshot mutate(CatalogStore store, Mutation mutation) {
+        while (true) {
+            //La posible recarga se hace fuera del cerrojo; si otro publica entretanto, se vuelve a empezar.
+            Snapshot base = getSnapshot();
+            Snapshot next;
+            synchronized (writeLock) {
+                if (snapshot != base) {
+                    continue;
+                }
+                List<StickerPack> stickerPacks = new ArrayList<>(base.getStickerPacks());
+                List<CatalogJournal.Record> records = mutation.apply(stickerPacks);
+                if (records.isEmpty()) {
+                    return null;
+                }
+                next = new Snapshot(context, nextVersion++, stickerPacks, base);
+                snapshot = next;
+                for (CatalogJournal.Record record : records) {
+                    StickerPacksManager.catalogWriter.enqueue(store, record);
+                }
+            }
+            notifyListeners(next);
+            return next;
+        }
+    }
+
+    /**
+     * CatalogWriter ha guardado un lote y subido la versión del catálogo. Si la versión anterior es la que refleja este
+     * proceso, nadie más ha escrito entretanto: lo guardado y lo que quede pendiente salen de la instantánea actual, así
+     * que esta refleja también la versión nueva. Si otro proceso la subió mientras el lote esperaba o se escribía, a la
+     * instantánea le falta su cambio; catalogVersion se deja como estaba y la siguiente lectura recarga.
+     * <p>
+     * Quien llama a flush() avisa después con notifyChange; un lote guardado por el propio escritor (tras un fallo, por
+     * ejemplo) no lo espera nadie, así que el aviso a los demás procesos se da aquí.
+     */
+    static void onPersisted(CatalogVersion.Change change, boolean scheduled) {
+        StickerPacksRepository repository = instance;
+        if (repository == null || change == null) {
+            return;
+        }
+        synchronized (repository.writeLock) {
+            if (repository.catalogVersion == change.previous) {
+                repository.catalogVersion = change.version;
+            }
+        }
+        if (scheduled) {
+            repository.context.getContentResolver().notifyChange(StickerContentProvider.AUTHORITY_URI, null);
+        }
+    }
+
+    private void notifyListeners(Snapshot current) {
+        for (OnStickerPacksChangedListener listener : listeners) {
+            listener.onStickerPacksChanged(current);
+        }
+    }
+}
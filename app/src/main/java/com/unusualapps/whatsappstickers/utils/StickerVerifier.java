@@ -0,0 +1,185 @@
+package com.unusualapps.whatsappstickers.utils;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.SystemClock;
+import android.util.Log;
+import com.unusualapps.whatsappstickers.whatsapp_api.Sticker;
+import com.unusualapps.whatsappstickers.whatsapp_api.StickerContentProvider;
+import com.unusualapps.whatsappstickers.whatsapp_api.StickerPack;
+
+import java.util.*;
+
+/**
+ * Vuelve a leer los archivos de los paquetes y los compara con el tamaño y el CRC32 que se anotaron al escribirlos.
+ * Los stickers que no cuadran se marcan como dañados en el catálogo (Sticker.isBroken), igual que el icono de la
+ * bandeja (StickerPack.isTrayImageFileBroken), para poder repararlos uno a uno en lugar de rechazar el paquete entero.
+ * <p>
+ * Va paquete a paquete, en porciones de tiempo como StorageSweeper. Primero los sospechosos (con cambios vistos por
+ * StickerFilesWatcher), después los que han cambiado desde la última comprobación y por último los que llevan más
+ * tiempo sin comprobarse. La versión y la hora de cada comprobación se guardan en SharedPreferences.
+ * <p>
+ * Escribe el catálogo, así que solo se usa en el proceso del proveedor: desde StorageSweepJobService y desde
+ * StickerContentProvider, que marca los sospechosos.
+ */
+public class StickerVerifier {
+
+    private static final String TAG = "StickerVerifier";
+    private static final String PREFERENCES_NAME = "sticker_verifier";
+    private static final String KEY_SUSPECT = "suspect";
+    //Entradas identificador/imageDataVersion/hora de la última comprobación
+    private static final String KEY_VERIFIED = "verified";
+    private static final long REVERIFY_INTERVAL_MS = 7L * 24 * 60 * 60 * 1000;
+
+    private final Context context;
+    private final SharedPreferences preferences;
+
+    public StickerVerifier(Context context) {
+        this.context = context.getApplicationContext();
+        this.preferences = getPreferences(this.context);
+    }
+
+    private static SharedPreferences getPreferences(Context context) {
+        return context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+    }
+
+    /**
+     * Pide que el paquete se compruebe antes que los demás en la siguiente ejecución.
+     */
+    public static synchronized void markSuspect(Context context, String identifier) {
+        SharedPreferences preferences = getPreferences(context);
+        Set<String> suspect = new HashSet<>(preferences.getStringSet(KEY_SUSPECT, Collections.emptySet()));
+        if (suspect.add(identifier)) {
+            preferences.edit().putStringSet(KEY_SUSPECT, suspect).apply();
+        }
+    }
+
+    /**
+     * Comprueba paquetes hasta que no quede ninguno pendiente o se alcance deadline (en SystemClock.uptimeMillis).
+     * El paquete en curso se termina aunque se pase del plazo, así que cada llamada progresa.
+     *
+     * @return true si no queda ningún paquete por comprobar
+     */
+    public boolean runSlice(long deadline) {
+        if (!RequestPermissionsHelper.verifyPermissions(context)) {
+            return true;
+        }
+        StickerPacksRepository.Snapshot snapshot = StickerPacksRepository.getInstance(context).getSnapshot();
+        Map<String, String[]> verified = readVerified(snapshot);
+        do {
+            StickerPack stickerPack = nextStickerPack(snapshot, verified);
+            if (stickerPack == null) {
+                return true;
+            }
+            verify(stickerPack);
+            verified.put(stickerPack.identifier, new String[]{stickerPack.getImageDataVersion(), String.valueOf(System.currentTimeMillis())});
+            saveVerified(snapshot, verified, stickerPack.identifier);
+        } while (SystemClock.uptimeMillis() < deadline);
+        return false;
+    }
+
+    private StickerPack nextStickerPack(StickerPacksRepository.Snapshot snapshot, Map<String, String[]> verified) {
+        Set<String> suspect = preferences.getStringSet(KEY_SUSPECT, Collections.emptySet());
+        long now = System.currentTimeMillis();
+        StickerPack modified = null;
+        StickerPack oldest = null;
+        long oldestTime = Long.MAX_VALUE;
+        for (StickerPack stickerPack : snapshot.getStickerPacks()) {
+            if (BundledStickerPacks.isBundled(context, stickerPack.identifier)) {
+                continue;
+            }
+            if (suspect.contains(stickerPack.identifier)) {
+                return stickerPack;
+            }
+            String[] entry = verified.get(stickerPack.identifier);
+            if (entry == null || !entry[0].equals(stickerPack.getImageDataVersion())) {
+                if (modified == null) {
+                    modified = stickerPack;
+                }
+                continue;
+            }
+            long time = Long.parseLong(entry[1]);
+            if (now - time >= REVERIFY_INTERVAL_MS && time < oldestTime) {
+                oldest = stickerPack;
+                oldestTime = time;
+            }
+        }
+        return modified != null ? modified : oldest;
+    }
+
+    private void verify(StickerPack stickerPack) {
+        Map<String, Long> checksums = new HashMap<>();
+        Set<String> broken = new HashSet<>();
+        for (Sticker sticker : stickerPack.getStickers()) {
+            long checksum = check(stickerPack.identifier, sticker.imageFileName, sticker.getSize(), sticker.getChecksum());
+            if (checksum < 0) {
+                broken.add(sticker.imageFileName);
+            } else {
+                checksums.put(sticker.imageFileName, checksum);
+            }
+        }
+        if (stickerPack.trayImageFile != null) {
+            long checksum = check(stickerPack.identifier, stickerPack.trayImageFile, stickerPack.getTrayImageFileSize(), stickerPack.getTrayImageFileChecksum());
+            if (checksum < 0) {
+                Log.w(TAG, "icono de bandeja dañado en " + stickerPack.identifier + ": " + stickerPack.trayImageFile);
+                broken.add(stickerPack.trayImageFile);
+            } else {
+                checksums.put(stickerPack.trayImageFile, checksum);
+            }
+        }
+        if (!broken.isEmpty()) {
+            Log.w(TAG, broken.size() + " archivos dañados en " + stickerPack.identifier);
+        }
+        if (StickerPacksManager.recordVerification(context, stickerPack.identifier, stickerPack.getImageDataVersion(), checksums, broken)) {
+            //La aplicación recarga al recibir la notificación, así que se avisa cuando ya está guardado.
+            StickerPacksManager.runAfterPersisted(() -> context.getContentResolver().notifyChange(StickerContentProvider.getStickerPackUri(stickerPack.identifier), null));
+        }
+    }
+
+    /**
+     * @return el CRC32 del archivo, o -1 si falta, no se puede leer o no coincide con lo anotado
+     */
+    private static long check(String identifier, String fileName, long size, long checksum) {
+        if (size > 0 && StickerPacksManager.getStoredFileSize(identifier, fileName) != size) {
+            return -1;
+        }
+        //Sin CRC32 anotado, los objetos del almacén por contenido se comprueban con el hash de su nombre.
+        if (checksum == 0 && StickerObjectStore.isContentAddressed(fileName) && !StickerObjectStore.isIntact(fileName)) {
+            return -1;
+        }
+        long actual = StickerPacksManager.readStoredFileChecksum(identifier, fileName);
+        if (actual < 0 || (checksum != 0 && actual != checksum)) {
+            return -1;
+        }
+        return actual;
+    }
+
+    private Map<String, String[]> readVerified(StickerPacksRepository.Snapshot snapshot) {
+        Map<String, String[]> verified = new HashMap<>();
+        for (String entry : preferences.getStringSet(KEY_VERIFIED, Collections.emptySet())) {
+            String[] parts = entry.split("/");
+            //Las entradas de paquetes borrados se descartan al volver a guardar.
+            if (parts.length == 3 && snapshot.getStickerPack(parts[0]) != null) {
+                verified.put(parts[0], new String[]{parts[1], parts[2]});
+            }
+        }
+        return verified;
+    }
+
+    private void saveVerified(StickerPacksRepository.Snapshot snapshot, Map<String, String[]> verified, String identifier) {
+        Set<String> entries = new HashSet<>();
+        for (Map.Entry<String, String[]> entry : verified.entrySet()) {
+            entries.add(entry.getKey() + "/" + entry.getValue()[0] + "/" + entry.getValue()[1]);
+        }
+        synchronized (StickerVerifier.class) {
+            Set<String> suspect = new HashSet<>();
+            //Igual que en readVerified, los paquetes borrados dejan de figurar como sospechosos.
+            for (String suspectIdentifier : preferences.getStringSet(KEY_SUSPECT, Collections.emptySet())) {
+                if (!suspectIdentifier.equals(identifier) && snapshot.getStickerPack(suspectIdentifier) != null) {
+                    suspect.add(suspectIdentifier);
+                }
+            }
+            preferences.edit().putStringSet(KEY_VERIFIED, entries).putStringSet(KEY_SUSPECT, suspect).apply();
+        }
+    }
+}
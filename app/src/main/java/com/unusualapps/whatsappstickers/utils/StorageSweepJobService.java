@@ -0,0 +1,84 @@
+package com.unusualapps.whatsappstickers.utils;
+
+import android.app.job.JobInfo;
+import android.app.job.JobParameters;
+import android.app.job.JobScheduler;
+import android.app.job.JobService;
+import android.content.ComponentName;
+import android.content.Context;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Ejecuta StorageSweeper y después StickerVerifier una vez al día cuando el dispositivo está inactivo y cargando.
+ * Los dos van en porciones cortas y entre una y otra se comprueba si el sistema ha parado el trabajo; lo que falte
+ * se hace en la siguiente ejecución.
+ * <p>
+ * Se ejecuta en el proceso del proveedor (manifiesto), que es el único que escribe el catálogo: StickerVerifier
+ * guarda ahí lo que encuentra y StorageSweeper decide qué borrar con la misma instantánea que usa el escritor.
+ */
+public class StorageSweepJobService extends JobService {
+
+    private static final String TAG = "StorageSweepJobService";
+    private static final int JOB_ID = 1022;
+    private static final long SLICE_MS = 100;
+    private static final long INTERVAL_MS = 24 * 60 * 60 * 1000;
+
+    private volatile boolean stopped;
+
+    /**
+     * Programa el barrido si no lo está ya. No se guarda entre reinicios, que pediría RECEIVE_BOOT_COMPLETED;
+     * se vuelve a programar al abrir la aplicación.
+     */
+    public static void schedule(Context context) {
+        JobScheduler jobScheduler = (JobScheduler) context.getSystemService(Context.JOB_SCHEDULER_SERVICE);
+        if (jobScheduler == null) {
+            return;
+        }
+        for (JobInfo job : jobScheduler.getAllPendingJobs()) {
+            if (job.getId() == JOB_ID) {
+                return;
+            }
+        }
+        jobScheduler.schedule(new JobInfo.Builder(JOB_ID, new ComponentName(context, StorageSweepJobService.class))
+                .setRequiresDeviceIdle(true)
+                .setRequiresCharging(true)
+                .setPeriodic(INTERVAL_MS)
+                .build());
+    }
+
+    @Override
+    public boolean onStartJob(JobParameters params) {
+        stopped = false;
+        StorageSweeper sweeper = new StorageSweeper(getApplicationContext());
+        StickerVerifier verifier = new StickerVerifier(getApplicationContext());
+        new Thread(() -> {
+            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+            boolean swept = false;
+            while (!stopped && !swept) {
+                swept = sweeper.runSlice(SystemClock.uptimeMillis() + SLICE_MS);
+            }
+            if (swept) {
+                Log.i(TAG, "liberados " + sweeper.getLastFreed() + " bytes, " + sweeper.getTotalFreed() + " en total");
+            }
+            boolean verified = false;
+            while (!stopped && !verified) {
+                verified = verifier.runSlice(SystemClock.uptimeMillis() + SLICE_MS);
+            }
+            if (verified) {
+                jobFinished(params, false);
+            }
+        }, TAG).start();
+        return true;
+    }
+
+    /**
+     * El sistema para el trabajo cuando el dispositivo deja de estar inactivo; el estado ya está guardado.
+     */
+    @Override
+    public boolean onStopJob(JobParameters params) {
+        stopped = true;
+        return true;
+    }
+}
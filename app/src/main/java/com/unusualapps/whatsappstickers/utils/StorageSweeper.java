@@ -0,0 +1,298 @@
+package com.unusualapps.whatsappstickers.utils;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.graphics.BitmapFactory;
+import android.os.SystemClock;
+import android.util.Log;
+import com.unusualapps.whatsappstickers.constants.Constants;
+import com.unusualapps.whatsappstickers.whatsapp_api.StickerPack;
+
+import java.io.File;
+import java.util.*;
+
+/**
+ * Recoge los archivos que ya no usa nadie: recortes temporales de SaveDrawingTask en la caché, carpetas de paquetes
+ * que no llegaron al catálogo, archivos sueltos y objetos sin referencias, y stickers creados vacíos o que no se pueden decodificar.
+ * <p>
+ * Trabaja por porciones de tiempo: runSlice avanza hasta el plazo que se le da y guarda en SharedPreferences la fase
+ * y el último nombre procesado, así que la pasada sigue donde se quedó aunque el sistema pare el trabajo o mate el
+ * proceso. Nada de lo escrito o modificado en la última hora se borra, para no competir con un guardado en curso.
+ */
+public class StorageSweeper {
+
+    private static final String TAG = "StorageSweeper";
+    private static final String PREFERENCES_NAME = "storage_sweeper";
+    private static final String KEY_PHASE = "phase";
+    private static final String KEY_CURSOR = "cursor";
+    private static final String KEY_FREED = "freed";
+    private static final String KEY_LAST_FREED = "last_freed";
+    private static final String KEY_TOTAL_FREED = "total_freed";
+    //Lo guardaban versiones anteriores; se borra al terminar una pasada
+    private static final String KEY_LEGACY_SEEN_HASHES = "seen_hashes";
+
+    private static final int PHASE_TEMP_FILES = 0;
+    private static final int PHASE_PACK_DIRECTORIES = 1;
+    private static final int PHASE_OBJECTS = 2;
+    private static final int PHASE_CREATED_STICKERS = 3;
+    private static final int PHASE_COUNT = 4;
+
+    private static final String TEMP_CUTOUT_PREFIX = "cutout_tmp";
+    private static final long GRACE_PERIOD_MS = StickerObjectStore.GRACE_PERIOD_MS;
+
+    private final Context context;
+    private final SharedPreferences preferences;
+    private int phase;
+    private String cursor;
+    private long freed;
+
+    public StorageSweeper(Context context) {
+        this.context = context.getApplicationContext();
+        this.preferences = this.context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+        this.phase = preferences.getInt(KEY_PHASE, PHASE_TEMP_FILES);
+        this.cursor = preferences.getString(KEY_CURSOR, null);
+        this.freed = preferences.getLong(KEY_FREED, 0);
+    }
+
+    /**
+     * Avanza la pasada hasta que termina o se alcanza deadline (en SystemClock.uptimeMillis). Cada llamada procesa
+     * al menos un elemento, así que siempre progresa.
+     *
+     * @return true si la pasada ha terminado
+     */
+    public boolean runSlice(long deadline) {
+        if (!RequestPermissionsHelper.verifyPermissions(context)) {
+            //Sin permiso no se ven ni los archivos ni el catálogo completo; todo parecería huérfano.
+            return true;
+        }
+        StickerPacksRepository.Snapshot snapshot = StickerPacksRepository.getInstance(context).getSnapshot();
+        //Un catálogo vacío puede ser uno que no se pudo leer; en ese caso no se reconcilia nada contra él.
+        boolean catalogEmpty = snapshot.getStickerPacks().isEmpty();
+        while (phase < PHASE_COUNT) {
+            boolean needsCatalog = phase == PHASE_PACK_DIRECTORIES || phase == PHASE_OBJECTS;
+            File[] items = needsCatalog && catalogEmpty ? new File[0] : listItems(phase);
+            for (File item : items) {
+                if (cursor != null && item.getName().compareTo(cursor) <= 0) {
+                    continue;
+                }
+                sweep(item, snapshot);
+                cursor = item.getName();
+                if (SystemClock.uptimeMillis() >= deadline) {
+                    saveState();
+                    return false;
+                }
+            }
+            phase++;
+            cursor = null;
+        }
+        finishPass();
+        return true;
+    }
+
+    /**
+     * Bytes liberados por la última pasada completa.
+     */
+    public long getLastFreed() {
+        return preferences.getLong(KEY_LAST_FREED, 0);
+    }
+
+    public long getTotalFreed() {
+        return preferences.getLong(KEY_TOTAL_FREED, 0);
+    }
+
+    private File[] listItems(int phase) {
+        File[] items;
+        switch (phase) {
+            case PHASE_TEMP_FILES:
+                items = context.getCacheDir().listFiles(file -> file.isFile() && file.getName().startsWith(TEMP_CUTOUT_PREFIX));
+                break;
+            case PHASE_PACK_DIRECTORIES:
+                items = new File(Constants.STICKERS_DIRECTORY_PATH).listFiles(file -> file.isDirectory() && !file.getName().equals(StickerObjectStore.OBJECTS_DIRECTORY_NAME));
+                break;
+            case PHASE_OBJECTS:
+                items = StickerObjectStore.getObjectsDirectory().listFiles(File::isDirectory);
+                break;
+            default:
+                items = new File(Constants.STICKERS_CREATED_DIRECTORY_PATH).listFiles(File::isFile);
+        }
+        if (items == null) {
+            return new File[0];
+        }
+        //El cursor es un nombre, así que el orden tiene que ser el mismo en cada porción.
+        Arrays.sort(items, (a, b) -> a.getName().compareTo(b.getName()));
+        return items;
+    }
+
+    private void sweep(File item, StickerPacksRepository.Snapshot snapshot) {
+        switch (phase) {
+            case PHASE_TEMP_FILES:
+                if (isOld(item)) {
+                    delete(item);
+                }
+                break;
+            case PHASE_PACK_DIRECTORIES:
+                sweepPackDirectory(item, snapshot);
+                break;
+            case PHASE_OBJECTS:
+                sweepObjectsDirectory(item, snapshot);
+                break;
+            default:
+                sweepCreatedSticker(item);
+        }
+    }
+
+    /**
+     * Una carpeta sin paquete en el catálogo, o una que se quedó en staging, es un paquete a medio guardar; si el
+     * paquete existe, se borran los archivos sueltos y originales que ya no nombra (los que quedan al quitar
+     * stickers o cambiar la bandeja).
+     */
+    private void sweepPackDirectory(File directory, StickerPacksRepository.Snapshot snapshot) {
+        if (directory.getName().equals(StickerPacksManager.STAGING_DIRECTORY_NAME)) {
+            File[] stagedDirectories = directory.listFiles();
+            if (stagedDirectories != null) {
+                for (File stagedDirectory : stagedDirectories) {
+                    deleteFolderIfOld(stagedDirectory);
+                }
+            }
+            return;
+        }
+        StickerPack stickerPack = snapshot.getStickerPack(directory.getName());
+        if (stickerPack == null) {
+            deleteFolderIfOld(directory);
+            return;
+        }
+        Set<String> fileNames = StickerPacksManager.getFileNames(stickerPack);
+        Set<String> masterNames = new HashSet<>();
+        for (String fileName : fileNames) {
+            if (fileName != null) {
+                masterNames.add(StickerPacksManager.getMasterFile(stickerPack.identifier, fileName).getName());
+            }
+        }
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            if (file.isDirectory()) {
+                File[] masters = file.listFiles();
+                if (masters == null) {
+                    continue;
+                }
+                for (File master : masters) {
+                    if (!masterNames.contains(master.getName()) && isOld(master)) {
+                        delete(master);
+                    }
+                }
+            } else if (!fileNames.contains(file.getName()) && !file.getName().equals(PackBlobStore.BLOB_FILE_NAME)
+                    && !file.getName().equals(PackBlobStore.INDEX_FILE_NAME) && isOld(file)) {
+                delete(file);
+            }
+        }
+    }
+
+    /**
+     * Los objetos se borran a través de StickerObjectStore, que comprueba las referencias con el mismo cerrojo que
+     * put; aquí solo se quitan los .tmp de escrituras interrumpidas.
+     */
+    private void sweepObjectsDirectory(File directory, StickerPacksRepository.Snapshot snapshot) {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        List<String> fileNames = new ArrayList<>(files.length);
+        for (File file : files) {
+            if (file.getName().endsWith(".tmp")) {
+                if (isOld(file)) {
+                    delete(file);
+                }
+            } else {
+                fileNames.add(file.getName());
+            }
+        }
+        freed += StickerObjectStore.release(fileNames, snapshot);
+    }
+
+    /**
+     * Los stickers creados son del usuario, así que solo se borran los que dejó una creación que falló: vacíos o
+     * sin una imagen que se pueda decodificar.
+     */
+    private void sweepCreatedSticker(File file) {
+        if (!isOld(file)) {
+            return;
+        }
+        if (file.length() > 0) {
+            BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inJustDecodeBounds = true;
+            BitmapFactory.decodeFile(file.getPath(), options);
+            if (options.outWidth > 0 && options.outHeight > 0) {
+                return;
+            }
+        }
+        long length = file.length();
+        FileUtils.deleteFile(file.getPath(), context);
+        if (!file.exists()) {
+            freed += length;
+        }
+    }
+
+    private static boolean isOld(File file) {
+        return System.currentTimeMillis() - file.lastModified() >= GRACE_PERIOD_MS;
+    }
+
+    private void delete(File file) {
+        long length = file.length();
+        if (file.delete()) {
+            freed += length;
+        } else {
+            Log.w(TAG, "no se pudo borrar " + file);
+        }
+    }
+
+    private void deleteFolderIfOld(File directory) {
+        if (!isOld(directory)) {
+            return;
+        }
+        long length = getLength(directory);
+        FileUtils.deleteFolder(directory.getPath());
+        if (!directory.exists()) {
+            freed += length;
+        }
+    }
+
+    private static long getLength(File file) {
+        if (file.isFile()) {
+            return file.length();
+        }
+        long length = 0;
+        File[] files = file.listFiles();
+        if (files != null) {
+            for (File child : files) {
+                length += getLength(child);
+            }
+        }
+        return length;
+    }
+
+    private void saveState() {
+        preferences.edit()
+                .putInt(KEY_PHASE, phase)
+                .putString(KEY_CURSOR, cursor)
+                .putLong(KEY_FREED, freed)
+                .apply();
+    }
+
+    private void finishPass() {
+        Log.i(TAG, "pasada terminada, liberados " + freed + " bytes");
+        preferences.edit()
+                .putLong(KEY_LAST_FREED, freed)
+                .putLong(KEY_TOTAL_FREED, getTotalFreed() + freed)
+                .remove(KEY_PHASE)
+                .remove(KEY_CURSOR)
+                .remove(KEY_FREED)
+                .remove(KEY_LEGACY_SEEN_HASHES)
+                .apply();
+        phase = PHASE_TEMP_FILES;
+        cursor = null;
+        freed = 0;
+    }
+}
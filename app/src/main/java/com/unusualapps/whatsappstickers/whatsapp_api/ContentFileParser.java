@@ -12,10 +12,10 @@ import android.support.annotation.NonNull;
 import android.text.TextUtils;
 import android.util.JsonReader;
 
-import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 public class ContentFileParser {
@@ -74,6 +74,11 @@ public class ContentFileParser {
         String publisherWebsite = null;
         String privacyPolicyWebsite = null;
         String licenseAgreementWebsite = null;
+        String imageDataVersion = StickerPack.DEFAULT_IMAGE_DATA_VERSION;
+        boolean avoidCache = false;
+        long trayImageFileSize = 0;
+        long trayImageFileChecksum = 0;
+        boolean trayImageFileBroken = false;
         List<Sticker> stickerList = null;
         while (reader.hasNext()) {
             String key = reader.nextName();
@@ -90,6 +95,15 @@ public class ContentFileParser {
                 case "trayImageFile":
                     trayImageFile = reader.nextString();
                     break;
+                case "trayImageFileSize":
+                    trayImageFileSize = reader.nextLong();
+                    break;
+                case "trayImageFileChecksum":
+                    trayImageFileChecksum = reader.nextLong();
+                    break;
+                case "trayImageFileBroken":
+                    trayImageFileBroken = reader.nextBoolean();
+                    break;
                 case "publisherEmail":
                     publisherEmail = reader.nextString();
                     break;
@@ -102,6 +116,12 @@ public class ContentFileParser {
                 case "licenseAgreementWebsite":
                     licenseAgreementWebsite = reader.nextString();
                     break;
+                case "imageDataVersion":
+                    imageDataVersion = reader.nextString();
+                    break;
+                case "avoidCache":
+                    avoidCache = reader.nextBoolean();
+                    break;
                 case "stickers":
                     stickerList = readStickers(reader);
                     break;
@@ -109,6 +129,21 @@ public class ContentFileParser {
                     reader.skipValue();
             }
         }
+        if (stickerList == null || stickerList.size() == 0) {
+            throw new IllegalStateException("La lista de stickers está vacía");
+        }
+        reader.endObject();
+        final StickerPack stickerPack = createStickerPack(identifier, name, publisher, trayImageFile, publisherEmail, publisherWebsite, privacyPolicyWebsite, licenseAgreementWebsite, imageDataVersion, avoidCache);
+        stickerPack.setStickers(stickerList);
+        stickerPack.setTrayImageFileSize(trayImageFileSize);
+        stickerPack.setTrayImageFileChecksum(trayImageFileChecksum);
+        stickerPack.setTrayImageFileBroken(trayImageFileBroken);
+        return stickerPack;
+    }
+
+    @NonNull
+    private static StickerPack createStickerPack(String identifier, String name, String publisher, String trayImageFile, String publisherEmail, String publisherWebsite,
+                                                 String privacyPolicyWebsite, String licenseAgreementWebsite, String imageDataVersion, boolean avoidCache) throws IllegalStateException {
         if (TextUtils.isEmpty(identifier)) {
             throw new IllegalStateException("Identificador no puede estar vacío");
         }
@@ -121,18 +156,385 @@ public class ContentFileParser {
         if (TextUtils.isEmpty(trayImageFile)) {
             throw new IllegalStateException("tray_image_file no puede estar vacío");
         }
-        if (stickerList == null || stickerList.size() == 0) {
-            throw new IllegalStateException("La lista de stickers está vacía");
-        }
         if (identifier.contains("..") || identifier.contains("/")) {
             throw new IllegalStateException("El identificador no debe contener .. o / para evitar el cruce de directorios");
         }
-        reader.endObject();
         final StickerPack stickerPack = new StickerPack(identifier, name, publisher, trayImageFile, publisherEmail, publisherWebsite, privacyPolicyWebsite, licenseAgreementWebsite);
-        stickerPack.setStickers(stickerList);
+        stickerPack.setImageDataVersion(TextUtils.isEmpty(imageDataVersion) ? StickerPack.DEFAULT_IMAGE_DATA_VERSION : imageDataVersion);
+        stickerPack.setAvoidCache(avoidCache);
         return stickerPack;
     }
 
+    /**
+     * Modo perezoso: en una primera pasada solo se leen los campos de cabecera de cada paquete y se anota el tramo
+     * de bytes de su array "stickers", que se decodifica la primera vez que se accede a getStickers().
+     * Listar paquetes o buscar uno solo no paga el coste de construir todos los stickers y emojis.
+     */
+    @NonNull
+    public static List<StickerPack> parseStickerPacksLazily(@NonNull InputStream contentsInputStream) throws IOException, IllegalStateException {
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        final byte[] buffer = new byte[16 * 1024];
+        int read;
+        while ((read = contentsInputStream.read(buffer)) != -1) {
+            output.write(buffer, 0, read);
+        }
+        return new HeaderScanner(output.toByteArray()).readStickerPacks();
+    }
+
+    @NonNull
+    static List<Sticker> decodeStickers(@NonNull byte[] contents, int start, int end) throws IllegalStateException {
+        try (JsonReader reader = new JsonReader(new InputStreamReader(new ByteArrayInputStream(contents, start, end - start), StandardCharsets.UTF_8))) {
+            return readStickers(reader);
+        } catch (IOException e) {
+            throw new IllegalStateException("no se pudieron leer los stickers: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Recorre el json byte a byte sin construir los stickers; solo decodifica las cadenas de la cabecera.
+     */
+    private static final class HeaderScanner {
+        private final byte[] contents;
+        private int position;
+
+        HeaderScanner(byte[] contents) {
+            this.contents = contents;
+        }
+
+        List<StickerPack> readStickerPacks() throws IllegalStateException {
+            List<StickerPack> stickerPackList = new ArrayList<>();
+            String androidPlayStoreLink = null;
+            String iosAppStoreLink = null;
+            expect('{');
+            while (nextMember('}')) {
+                String key = readName();
+                if ("androidPlayStoreLink".equals(key)) {
+                    androidPlayStoreLink = readString();
+                } else if ("iosAppStoreLink".equals(key)) {
+                    iosAppStoreLink = readString();
+                } else if ("stickerPacks".equals(key)) {
+                    expect('[');
+                    while (nextMember(']')) {
+                        stickerPackList.add(readStickerPack());
+                    }
+                } else {
+                    throw new IllegalStateException("campo desconocido en json: " + key);
+                }
+            }
+            if (stickerPackList.size() == 0) {
+                throw new IllegalStateException("La lista de stickers no puede estar vacía");
+            }
+            for (StickerPack stickerPack : stickerPackList) {
+                stickerPack.setAndroidPlayStoreLink(androidPlayStoreLink);
+                stickerPack.setIosAppStoreLink(iosAppStoreLink);
+            }
+            return stickerPackList;
+        }
+
+        private StickerPack readStickerPack() {
+            String identifier = null;
+            String name = null;
+            String publisher = null;
+            String trayImageFile = null;
+            String publisherEmail = null;
+            String publisherWebsite = null;
+            String privacyPolicyWebsite = null;
+            String licenseAgreementWebsite = null;
+            String imageDataVersion = StickerPack.DEFAULT_IMAGE_DATA_VERSION;
+            boolean avoidCache = false;
+            long trayImageFileSize = 0;
+            long trayImageFileChecksum = 0;
+            boolean trayImageFileBroken = false;
+            long totalSize = -1;
+            int stickersStart = -1;
+            int stickersEnd = -1;
+            int stickerCount = 0;
+            expect('{');
+            while (nextMember('}')) {
+                String key = readName();
+                switch (key) {
+                    case "identifier":
+                        identifier = readString();
+                        break;
+                    case "name":
+                        name = readString();
+                        break;
+                    case "publisher":
+                        publisher = readString();
+                        break;
+                    case "trayImageFile":
+                        trayImageFile = readString();
+                        break;
+                    case "trayImageFileSize":
+                        trayImageFileSize = readLong();
+                        break;
+                    case "trayImageFileChecksum":
+                        trayImageFileChecksum = readLong();
+                        break;
+                    case "trayImageFileBroken":
+                        trayImageFileBroken = readBoolean();
+                        break;
+                    case "totalSize":
+                        totalSize = readLong();
+                        break;
+                    case "publisherEmail":
+                        publisherEmail = readString();
+                        break;
+                    case "publisherWebsite":
+                        publisherWebsite = readString();
+                        break;
+                    case "privacyPolicyWebsite":
+                        privacyPolicyWebsite = readString();
+                        break;
+                    case "licenseAgreementWebsite":
+                        licenseAgreementWebsite = readString();
+                        break;
+                    case "imageDataVersion":
+                        imageDataVersion = readString();
+                        break;
+                    case "avoidCache":
+                        avoidCache = readBoolean();
+                        break;
+                    case "stickers":
+                        skipWhitespace();
+                        stickersStart = position;
+                        stickerCount = readStickers();
+                        stickersEnd = position;
+                        break;
+                    default:
+                        skipValue();
+                }
+            }
+            if (stickerCount == 0) {
+                throw new IllegalStateException("La lista de stickers está vacía");
+            }
+            final StickerPack stickerPack = createStickerPack(identifier, name, publisher, trayImageFile, publisherEmail, publisherWebsite, privacyPolicyWebsite, licenseAgreementWebsite, imageDataVersion, avoidCache);
+            //Sin totalSize (json anterior) se suma la primera vez que se pida, decodificando la lista.
+            //Se copia solo el tramo del array para no retener el json entero mientras no se decodifique.
+            stickerPack.setStickers(new LazyStickerList(Arrays.copyOfRange(contents, stickersStart, stickersEnd), stickerCount), totalSize);
+            stickerPack.setTrayImageFileSize(trayImageFileSize);
+            stickerPack.setTrayImageFileChecksum(trayImageFileChecksum);
+            stickerPack.setTrayImageFileBroken(trayImageFileBroken);
+            return stickerPack;
+        }
+
+        /**
+         * Recorre el array "stickers" comprobando lo mismo que readStickers, para que decodificarlo más tarde
+         * no pueda fallar fuera de la lectura del catálogo.
+         *
+         * @return el número de stickers
+         */
+        private int readStickers() {
+            int count = 0;
+            expect('[');
+            while (nextMember(']')) {
+                String imageFile = null;
+                expect('{');
+                while (nextMember('}')) {
+                    String key = readName();
+                    switch (key) {
+                        case "imageFileName":
+                            imageFile = readString();
+                            break;
+                        case "emojis":
+                            expect('[');
+                            while (nextMember(']')) {
+                                if (readString() == null) {
+                                    throw syntaxError("emoji nulo");
+                                }
+                            }
+                            break;
+                        case "size":
+                        case "checksum":
+                            readLong();
+                            break;
+                        case "broken":
+                            readBoolean();
+                            break;
+                        default:
+                            skipValue();
+                    }
+                }
+                checkStickerImageFile(imageFile);
+                count++;
+            }
+            return count;
+        }
+
+        /**
+         * Lee el nombre de un miembro y los dos puntos que lo siguen.
+         */
+        private String readName() {
+            String name = readString();
+            if (name == null) {
+                throw syntaxError("se esperaba un nombre");
+            }
+            expect(':');
+            return name;
+        }
+
+        /**
+         * Avanza hasta el siguiente miembro de un objeto o array, consumiendo la coma que lo separa del anterior.
+         * Devuelve false (y consume el cierre) cuando no quedan más.
+         */
+        private boolean nextMember(char close) {
+            skipWhitespace();
+            byte current = peek();
+            if (current == close) {
+                position++;
+                return false;
+            }
+            if (current == ',') {
+                position++;
+                skipWhitespace();
+            }
+            return true;
+        }
+
+        private String readString() {
+            skipWhitespace();
+            if (peek() == 'n') {
+                expectLiteral("null");
+                return null;
+            }
+            expect('"');
+            StringBuilder builder = new StringBuilder();
+            int runStart = position;
+            while (true) {
+                byte current = peek();
+                if (current == '"') {
+                    builder.append(new String(contents, runStart, position - runStart, StandardCharsets.UTF_8));
+                    position++;
+                    return builder.toString();
+                }
+                if (current != '\\') {
+                    position++;
+                    continue;
+                }
+                builder.append(new String(contents, runStart, position - runStart, StandardCharsets.UTF_8));
+                position++;
+                byte escaped = peek();
+                position++;
+                switch (escaped) {
+                    case 'b':
+                        builder.append('\b');
+                        break;
+                    case 'f':
+                        builder.append('\f');
+                        break;
+                    case 'n':
+                        builder.append('\n');
+                        break;
+                    case 'r':
+                        builder.append('\r');
+                        break;
+                    case 't':
+                        builder.append('\t');
+                        break;
+                    case 'u':
+                        if (position + 4 > contents.length) {
+                            throw syntaxError("secuencia \\u incompleta");
+                        }
+                        builder.append((char) Integer.parseInt(new String(contents, position, 4, StandardCharsets.US_ASCII), 16));
+                        position += 4;
+                        break;
+                    default:
+                        builder.append((char) escaped);
+                        break;
+                }
+                runStart = position;
+            }
+        }
+
+        private boolean readBoolean() {
+            skipWhitespace();
+            if (peek() == 't') {
+                expectLiteral("true");
+                return true;
+            }
+            expectLiteral("false");
+            return false;
+        }
+
+        private long readLong() {
+            skipWhitespace();
+            int start = position;
+            while (position < contents.length && "{}[],: \t\r\n".indexOf(contents[position]) < 0) {
+                position++;
+            }
+            try {
+                return Long.parseLong(new String(contents, start, position - start, StandardCharsets.US_ASCII));
+            } catch (NumberFormatException e) {
+                throw syntaxError("se esperaba un número");
+            }
+        }
+
+        private void skipValue() {
+            skipWhitespace();
+            byte current = peek();
+            if (current == '"') {
+                readString();
+            } else if (current == '{' || current == '[') {
+                int depth = 0;
+                do {
+                    current = peek();
+                    if (current == '"') {
+                        readString();
+                        continue;
+                    }
+                    if (current == '{' || current == '[') {
+                        depth++;
+                    } else if (current == '}' || current == ']') {
+                        depth--;
+                    }
+                    position++;
+                } while (depth > 0);
+            } else {
+                while (position < contents.length && "{}[],: \t\r\n".indexOf(contents[position]) < 0) {
+                    position++;
+                }
+            }
+        }
+
+        private void expect(char expected) {
+            skipWhitespace();
+            if (peek() != expected) {
+                throw syntaxError("se esperaba '" + expected + "'");
+            }
+            position++;
+        }
+
+        private void expectLiteral(String literal) {
+            for (int i = 0; i < literal.length(); i++) {
+                if (peek() != literal.charAt(i)) {
+                    throw syntaxError("se esperaba " + literal);
+                }
+                position++;
+            }
+        }
+
+        private byte peek() {
+            if (position >= contents.length) {
+                throw syntaxError("fin inesperado");
+            }
+            return contents[position];
+        }
+
+        private void skipWhitespace() {
+            while (position < contents.length && isWhitespace(contents[position])) {
+                position++;
+            }
+        }
+
+        private static boolean isWhitespace(byte value) {
+            return value == ' ' || value == '\t' || value == '\n' || value == '\r';
+        }
+
+        private IllegalStateException syntaxError(String message) {
+            return new IllegalStateException("json no válido en la posición " + position + ": " + message);
+        }
+    }
+
     @NonNull
     private static List<Sticker> readStickers(@NonNull JsonReader reader) throws IOException, IllegalStateException {
         reader.beginArray();
@@ -142,6 +544,9 @@ public class ContentFileParser {
             reader.beginObject();
             String imageFile = null;
             List<String> emojis = new ArrayList<>(LIMIT_EMOJI_COUNT);
+            long size = 0;
+            long checksum = 0;
+            boolean broken = false;
             while (reader.hasNext()) {
                 final String key = reader.nextName();
                 if ("imageFileName".equals(key)) {
@@ -153,26 +558,40 @@ public class ContentFileParser {
                         emojis.add(emoji);
                     }
                     reader.endArray();
+                } else if ("size".equals(key)) {
+                    size = reader.nextLong();
+                } else if ("checksum".equals(key)) {
+                    checksum = reader.nextLong();
+                } else if ("broken".equals(key)) {
+                    broken = reader.nextBoolean();
                 } else {
                     //throw new IllegalStateException("unknown field in json: " + key);
                     reader.skipValue();
                 }
             }
             reader.endObject();
-            if (TextUtils.isEmpty(imageFile)) {
-                throw new IllegalStateException("Sticker image_file no puede estar vacío");
-            }
-            if (!imageFile.endsWith(".webp")) {
-                throw new IllegalStateException("\n" +
-                        "El archivo de imagen para los stickers debe ser un archivo webp, el archivo de imagen es: " + imageFile);
-            }
-            if (imageFile.contains("..") || imageFile.contains("/")) {
-                throw new IllegalStateException("\n" +
-                        "El nombre del archivo no debe contener .. o / para evitar el recorrido del directorio, el archivo de imagen es:" + imageFile);
-            }
-            stickerList.add(new Sticker(imageFile, emojis));
+            checkStickerImageFile(imageFile);
+            Sticker sticker = new Sticker(imageFile, emojis);
+            sticker.setSize(size);
+            sticker.setChecksum(checksum);
+            sticker.setBroken(broken);
+            stickerList.add(sticker);
         }
         reader.endArray();
         return stickerList;
     }
+
+    private static void checkStickerImageFile(String imageFile) throws IllegalStateException {
+        if (TextUtils.isEmpty(imageFile)) {
+            throw new IllegalStateException("Sticker image_file no puede estar vacío");
+        }
+        if (!imageFile.endsWith(".webp")) {
+            throw new IllegalStateException("\n" +
+                    "El archivo de imagen para los stickers debe ser un archivo webp, el archivo de imagen es: " + imageFile);
+        }
+        if (imageFile.contains("..") || imageFile.contains("/")) {
+            throw new IllegalStateException("\n" +
+                    "El nombre del archivo no debe contener .. o / para evitar el recorrido del directorio, el archivo de imagen es:" + imageFile);
+        }
+    }
 }
@@ -0,0 +1,115 @@
+package com.unusualapps.whatsappstickers.whatsapp_api;
+
+import android.os.ParcelFileDescriptor;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Caché en disco, de tamaño acotado, de los webp generados a partir de los originales sin pérdida.
+ * Al superar el límite se borran los archivos usados hace más tiempo (fecha de modificación, que se actualiza en cada acierto).
+ */
+final class DerivedAssetCache {
+
+    private static final String TAG = "DerivedAssetCache";
+
+    private final File directory;
+    private final long maxBytes;
+    private long currentBytes = -1;
+
+    DerivedAssetCache(@NonNull File directory, long maxBytes) {
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Abre el archivo dentro del bloqueo: un trim() de otro hilo no puede borrarlo entre la comprobación y la apertura,
+     * y una vez abierto el descriptor sigue siendo válido aunque se borre después.
+     */
+    @Nullable
+    synchronized ParcelFileDescriptor get(@NonNull String key) {
+        final File file = new File(directory, key);
+        if (!file.exists()) {
+            return null;
+        }
+        final ParcelFileDescriptor descriptor;
+        try {
+            descriptor = ParcelFileDescriptor.open(file, ParcelFileDescriptor.MODE_READ_ONLY);
+        } catch (FileNotFoundException e) {
+            Log.w(TAG, "no se pudo abrir " + key, e);
+            return null;
+        }
+        //noinspection ResultOfMethodCallIgnored
+        file.setLastModified(System.currentTimeMillis());
+        return descriptor;
+    }
+
+    synchronized void put(@NonNull String key, @NonNull byte[] bytes) {
+        if (!directory.exists() && !directory.mkdirs()) {
+            Log.w(TAG, "no se pudo crear " + directory);
+            return;
+        }
+        final File file = new File(directory, key);
+        final File tmpFile = new File(directory, key + ".tmp");
+        try (FileOutputStream output = new FileOutputStream(tmpFile)) {
+            output.write(bytes);
+        } catch (IOException e) {
+            Log.w(TAG, "no se pudo guardar " + key, e);
+            //noinspection ResultOfMethodCallIgnored
+            tmpFile.delete();
+            return;
+        }
+        final long previousLength = file.length();
+        if (!tmpFile.renameTo(file)) {
+            //noinspection ResultOfMethodCallIgnored
+            tmpFile.delete();
+            return;
+        }
+        if (currentBytes < 0) {
+            currentBytes = computeSize();
+        } else {
+            currentBytes += bytes.length - previousLength;
+        }
+        if (currentBytes > maxBytes) {
+            trim();
+        }
+    }
+
+    private long computeSize() {
+        long size = 0;
+        final File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                size += file.length();
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Borra los archivos menos usados hasta quedar en el 90% del límite, para no recortar en cada escritura.
+     */
+    private void trim() {
+        final File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        Arrays.sort(files, (a, b) -> Long.compare(a.lastModified(), b.lastModified()));
+        final long target = maxBytes * 9 / 10;
+        for (File file : files) {
+            if (currentBytes <= target) {
+                break;
+            }
+            final long length = file.length();
+            if (file.delete()) {
+                currentBytes -= length;
+            }
+        }
+    }
+}
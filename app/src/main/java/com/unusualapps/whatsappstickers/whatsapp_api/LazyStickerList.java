@@ -0,0 +1,54 @@
+package com.unusualapps.whatsappstickers.whatsapp_api;
+
+import android.support.annotation.NonNull;
+
+import java.util.AbstractList;
+import java.util.List;
+import java.util.RandomAccess;
+
+/**
+ * Lista de stickers de un paquete que se decodifica la primera vez que se accede a ella, a partir de la copia
+ * del array "stickers" que validó ContentFileParser.parseStickerPacksLazily. El tamaño se conoce sin decodificar.
+ */
+final class LazyStickerList extends AbstractList<Sticker> implements RandomAccess {
+
+    private final int size;
+    //Se suelta al decodificar
+    private byte[] json;
+    private volatile List<Sticker> stickers;
+
+    LazyStickerList(@NonNull byte[] json, int size) {
+        this.json = json;
+        this.size = size;
+    }
+
+    boolean isDecoded() {
+        return stickers != null;
+    }
+
+    @NonNull
+    private List<Sticker> decode() {
+        List<Sticker> current = stickers;
+        if (current == null) {
+            synchronized (this) {
+                current = stickers;
+                if (current == null) {
+                    current = ContentFileParser.decodeStickers(json, 0, json.length);
+                    stickers = current;
+                    json = null;
+                }
+            }
+        }
+        return current;
+    }
+
+    @Override
+    public Sticker get(int index) {
+        return decode().get(index);
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+}
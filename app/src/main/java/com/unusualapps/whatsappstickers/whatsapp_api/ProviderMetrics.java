@@ -0,0 +1,153 @@
+package com.unusualapps.whatsappstickers.whatsapp_api;
+
+import android.database.MatrixCursor;
+import android.support.annotation.NonNull;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Contadores e histogramas de latencia de StickerContentProvider. Todo se actualiza sin bloqueos desde los hilos
+ * de binder; la lectura (ruta de depuración del proveedor) puede ver valores de distintos instantes.
+ */
+final class ProviderMetrics {
+
+    static final int KIND_METADATA = 0;
+    static final int KIND_SINGLE_PACK = 1;
+    static final int KIND_STICKER_LIST = 2;
+    static final int KIND_STICKER_ASSET = 3;
+    static final int KIND_TRAY_ICON = 4;
+    private static final String[] KIND_NAMES = {"metadata", "single_pack", "sticker_list", "sticker_asset", "tray_icon"};
+
+    static final int OP_QUERY = 0;
+    static final int OP_OPEN_FILE = 1;
+    static final int OP_GET_TYPE = 2;
+    private static final String[] OP_NAMES = {"query", "open_file", "get_type"};
+
+    //Cubo i: latencias en [2^i, 2^(i+1)) microsegundos; el último acumula todo lo que es mayor.
+    private static final int BUCKET_COUNT = 24;
+
+    static final String[] COLUMNS = {"metric", "value"};
+
+    //Todo se indexa por (operación, tipo) para que getType no se mezcle con openFile del mismo tipo de URI.
+    private static final int SLOT_COUNT = OP_NAMES.length * KIND_NAMES.length;
+
+    private final AtomicLongArray calls = new AtomicLongArray(SLOT_COUNT);
+    private final AtomicLongArray histograms = new AtomicLongArray(SLOT_COUNT * BUCKET_COUNT);
+    private final AtomicLongArray totalNanos = new AtomicLongArray(SLOT_COUNT);
+    private final AtomicLong bytesServed = new AtomicLong();
+    private final AtomicLong catalogHits = new AtomicLong();
+    private final AtomicLong catalogReloads = new AtomicLong();
+    private final AtomicLong catalogMutations = new AtomicLong();
+
+    void record(int op, int kind, long nanos) {
+        final int slot = slotOf(op, kind);
+        calls.incrementAndGet(slot);
+        totalNanos.addAndGet(slot, nanos);
+        histograms.incrementAndGet(slot * BUCKET_COUNT + bucketOf(nanos / 1000));
+    }
+
+    private static int slotOf(int op, int kind) {
+        return op * KIND_NAMES.length + kind;
+    }
+
+    void recordBytesServed(long bytes) {
+        bytesServed.addAndGet(bytes);
+    }
+
+    void recordCatalogHit() {
+        catalogHits.incrementAndGet();
+    }
+
+    void recordCatalogReload() {
+        catalogReloads.incrementAndGet();
+    }
+
+    void recordCatalogMutation() {
+        catalogMutations.incrementAndGet();
+    }
+
+    private static int bucketOf(long micros) {
+        if (micros <= 0) {
+            return 0;
+        }
+        return Math.min(BUCKET_COUNT - 1, 63 - Long.numberOfLeadingZeros(micros));
+    }
+
+    /**
+     * Percentil aproximado (límite superior del cubo) en microsegundos.
+     */
+    private long percentileMicros(int slot, double percentile) {
+        long count = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            count += histograms.get(slot * BUCKET_COUNT + i);
+        }
+        if (count == 0) {
+            return 0;
+        }
+        long target = (long) Math.ceil(count * percentile);
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += histograms.get(slot * BUCKET_COUNT + i);
+            if (seen >= target) {
+                return 1L << (i + 1);
+            }
+        }
+        return 1L << BUCKET_COUNT;
+    }
+
+    @NonNull
+    MatrixCursor toCursor() {
+        final MatrixCursor cursor = new MatrixCursor(COLUMNS);
+        for (int op = 0; op < OP_NAMES.length; op++) {
+            for (int kind = 0; kind < KIND_NAMES.length; kind++) {
+                final long value = calls.get(slotOf(op, kind));
+                if (value > 0) {
+                    cursor.addRow(new Object[]{OP_NAMES[op] + "." + KIND_NAMES[kind] + ".calls", value});
+                }
+            }
+        }
+        for (int op = 0; op < OP_NAMES.length; op++) {
+            for (int kind = 0; kind < KIND_NAMES.length; kind++) {
+                final int slot = slotOf(op, kind);
+                final String prefix = "latency." + OP_NAMES[op] + "." + KIND_NAMES[kind];
+                long count = 0;
+                for (int i = 0; i < BUCKET_COUNT; i++) {
+                    final long bucket = histograms.get(slot * BUCKET_COUNT + i);
+                    if (bucket > 0) {
+                        cursor.addRow(new Object[]{prefix + ".lt_" + (1L << (i + 1)) + "us", bucket});
+                    }
+                    count += bucket;
+                }
+                if (count > 0) {
+                    cursor.addRow(new Object[]{prefix + ".avg_us", totalNanos.get(slot) / count / 1000});
+                    cursor.addRow(new Object[]{prefix + ".p50_us", percentileMicros(slot, 0.5)});
+                    cursor.addRow(new Object[]{prefix + ".p99_us", percentileMicros(slot, 0.99)});
+                }
+            }
+        }
+        final long hits = catalogHits.get();
+        final long reloads = catalogReloads.get();
+        cursor.addRow(new Object[]{"bytes_served", bytesServed.get()});
+        cursor.addRow(new Object[]{"catalog.hits", hits});
+        cursor.addRow(new Object[]{"catalog.reloads", reloads});
+        cursor.addRow(new Object[]{"catalog.mutations", catalogMutations.get()});
+        cursor.addRow(new Object[]{"catalog.hit_ratio_pct", hits + reloads == 0 ? 0 : hits * 100 / (hits + reloads)});
+        return cursor;
+    }
+
+    /**
+     * Vuelca las métricas en un archivo de texto (metric=value por línea) para analizarlas fuera del dispositivo.
+     */
+    void dump(@NonNull File file) throws IOException {
+        try (MatrixCursor cursor = toCursor(); Writer writer = new FileWriter(file)) {
+            while (cursor.moveToNext()) {
+                writer.write(cursor.getString(0) + "=" + cursor.getLong(1) + "\n");
+            }
+        }
+    }
+}
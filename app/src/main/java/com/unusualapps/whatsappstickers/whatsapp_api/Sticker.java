@@ -17,6 +17,10 @@ public class Sticker implements Parcelable {
     public String imageFileName;
     List<String> emojis;
     long size;
+    //CRC32 de los bytes guardados, 0 si no se conoce
+    long checksum;
+    //El verificador encontró el archivo dañado o sin leer
+    boolean broken;
 
     public Sticker(String imageFileName, List<String> emojis) {
         this.imageFileName = imageFileName;
@@ -27,6 +31,8 @@ public class Sticker implements Parcelable {
         imageFileName = in.readString();
         emojis = in.createStringArrayList();
         size = in.readLong();
+        checksum = in.readLong();
+        broken = in.readByte() != 0;
     }
 
     public static final Creator<Sticker> CREATOR = new Creator<Sticker>() {
@@ -41,10 +47,45 @@ public class Sticker implements Parcelable {
         }
     };
 
+    public List<String> getEmojis() {
+        return emojis;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
     public void setSize(long size) {
         this.size = size;
     }
 
+    public long getChecksum() {
+        return checksum;
+    }
+
+    public void setChecksum(long checksum) {
+        this.checksum = checksum;
+    }
+
+    public boolean isBroken() {
+        return broken;
+    }
+
+    public void setBroken(boolean broken) {
+        this.broken = broken;
+    }
+
+    /**
+     * Copia para cambiar un sticker sin tocar la instancia que comparten las instantáneas del catálogo.
+     */
+    public Sticker copy() {
+        Sticker copy = new Sticker(imageFileName, emojis);
+        copy.size = size;
+        copy.checksum = checksum;
+        copy.broken = broken;
+        return copy;
+    }
+
     @Override
     public int describeContents() {
         return 0;
@@ -55,5 +96,7 @@ public class Sticker implements Parcelable {
         dest.writeString(imageFileName);
         dest.writeStringList(emojis);
         dest.writeLong(size);
+        dest.writeLong(checksum);
+        dest.writeByte((byte) (broken ? 1 : 0));
     }
 }
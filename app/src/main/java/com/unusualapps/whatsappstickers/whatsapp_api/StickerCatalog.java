@@ -0,0 +1,241 @@
+package com.unusualapps.whatsappstickers.whatsapp_api;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.text.TextUtils;
+import com.unusualapps.whatsappstickers.utils.PackBlobStore;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Vista inmutable del catálogo de stickers para StickerContentProvider, con las filas de los cursores y el índice de
+ * archivos precalculados. Se deriva de una instantánea de StickerPacksRepository y solo se reconstruye cuando esta
+ * cambia; los paquetes que siguen siendo el mismo objeto conservan sus datos precalculados.
+ * <p>
+ * WhatsApp rechaza los paquetes con menos de StickerPackValidator.STICKER_SIZE_MIN stickers, así que un paquete que
+ * se queda por debajo al descontar los dañados o los borrados no se ofrece (ni metadatos, ni stickers, ni archivos)
+ * hasta que vuelva a tener suficientes.
+ */
+final class StickerCatalog {
+
+    static final int ASSET_NONE = 0;
+    static final int ASSET_STICKER = 1;
+    static final int ASSET_TRAY_ICON = 2;
+
+    static final StickerCatalog EMPTY = new StickerCatalog(new ArrayList<>(), Collections.emptyMap(), -1);
+
+    private final List<StickerPack> stickerPacks;
+    private final Map<String, StickerPack> packsByIdentifier;
+    private final Map<String, PackEntry> entriesByIdentifier;
+    private volatile List<Object[]> metadataRows;
+    private final long version;
+
+    private StickerCatalog(@NonNull List<StickerPack> stickerPacks, @NonNull Map<String, PackEntry> previousEntries, long version) {
+        this.stickerPacks = Collections.unmodifiableList(new ArrayList<>(stickerPacks));
+        this.packsByIdentifier = new HashMap<>(stickerPacks.size() * 2);
+        this.entriesByIdentifier = new HashMap<>(stickerPacks.size() * 2);
+        for (StickerPack stickerPack : stickerPacks) {
+            packsByIdentifier.put(stickerPack.identifier, stickerPack);
+            PackEntry entry = previousEntries.get(stickerPack.identifier);
+            if (entry == null || entry.stickerPack != stickerPack) {
+                entry = new PackEntry(stickerPack);
+            }
+            entriesByIdentifier.put(stickerPack.identifier, entry);
+        }
+        this.version = version;
+    }
+
+    /**
+     * @param version versión de la instantánea del repositorio de la que sale la lista, o -1 si no sale de ninguna
+     */
+    @NonNull
+    static StickerCatalog create(@NonNull List<StickerPack> stickerPacks, long version) {
+        return new StickerCatalog(stickerPacks, Collections.emptyMap(), version);
+    }
+
+    /**
+     * Catálogo con otra lista de paquetes. Los que ya estaban (el mismo objeto) conservan sus filas precalculadas.
+     */
+    @NonNull
+    StickerCatalog withStickerPacks(@NonNull List<StickerPack> stickerPacks, long version) {
+        return new StickerCatalog(stickerPacks, entriesByIdentifier, version);
+    }
+
+    @NonNull
+    List<StickerPack> getStickerPacks() {
+        return stickerPacks;
+    }
+
+    @Nullable
+    StickerPack getStickerPack(@NonNull String identifier) {
+        return packsByIdentifier.get(identifier);
+    }
+
+    /**
+     * Indica si el archivo pertenece al paquete y si es un sticker o el icono de la bandeja, en tiempo constante.
+     */
+    int resolveAsset(@NonNull String identifier, @NonNull String fileName) {
+        final PackEntry entry = getServableEntry(identifier);
+        if (entry == null) {
+            return ASSET_NONE;
+        }
+        if (fileName.equals(entry.trayImageFile)) {
+            return ASSET_TRAY_ICON;
+        }
+        return entry.getStickerFiles().contains(fileName) ? ASSET_STICKER : ASSET_NONE;
+    }
+
+    /**
+     * Filas de metadatos de todos los paquetes, en el orden de StickerContentProvider.PACK_COLUMNS.
+     * Se construyen una sola vez por versión del catálogo y no deben modificarse.
+     */
+    @NonNull
+    List<Object[]> getMetadataRows() {
+        List<Object[]> rows = metadataRows;
+        if (rows == null) {
+            rows = new ArrayList<>(stickerPacks.size());
+            for (StickerPack stickerPack : stickerPacks) {
+                final PackEntry entry = entriesByIdentifier.get(stickerPack.identifier);
+                if (entry.isServable()) {
+                    rows.add(entry.metadataRow);
+                }
+            }
+            rows = Collections.unmodifiableList(rows);
+            metadataRows = rows;
+        }
+        return rows;
+    }
+
+    @Nullable
+    Object[] getMetadataRow(@NonNull String identifier) {
+        final PackEntry entry = getServableEntry(identifier);
+        return entry == null ? null : entry.metadataRow;
+    }
+
+    /**
+     * Filas de stickers de un paquete, en el orden de StickerContentProvider.STICKER_COLUMNS.
+     */
+    @NonNull
+    List<Object[]> getStickerRows(@NonNull String identifier) {
+        final PackEntry entry = getServableEntry(identifier);
+        return entry == null ? Collections.emptyList() : entry.getStickerRows();
+    }
+
+    /**
+     * Índice del blob del paquete, o null si se guarda como archivos sueltos (o viene en el apk). Se resuelve una sola
+     * vez por paquete: un cambio del paquete crea otro objeto y, con él, otra entrada.
+     */
+    @Nullable
+    PackBlobStore.Index getBlobIndex(@NonNull String identifier) {
+        final PackEntry entry = entriesByIdentifier.get(identifier);
+        return entry == null ? null : entry.getBlobIndex();
+    }
+
+    @Nullable
+    private PackEntry getServableEntry(@NonNull String identifier) {
+        final PackEntry entry = entriesByIdentifier.get(identifier);
+        return entry == null || !entry.isServable() ? null : entry;
+    }
+
+    long getVersion() {
+        return version;
+    }
+
+    /**
+     * Datos precalculados de un paquete. Las filas de stickers se generan la primera vez que se piden;
+     * si dos hilos coinciden ambos calculan el mismo resultado inmutable. Los stickers que StickerVerifier marcó
+     * como dañados no se listan ni se sirven, hasta que se reparen.
+     */
+    private static final class PackEntry {
+        final StickerPack stickerPack;
+        final String trayImageFile;
+        final Object[] metadataRow;
+        private volatile Set<String> stickerFiles;
+        private volatile List<Object[]> stickerRows;
+        private volatile PackBlobStore.Index blobIndex;
+        private volatile boolean blobIndexResolved;
+
+        PackEntry(@NonNull StickerPack stickerPack) {
+            this.stickerPack = stickerPack;
+            this.trayImageFile = stickerPack.trayImageFile;
+            this.metadataRow = new Object[]{
+                    stickerPack.identifier,
+                    stickerPack.name,
+                    stickerPack.publisher,
+                    stickerPack.trayImageFile,
+                    stickerPack.androidPlayStoreLink,
+                    stickerPack.iosAppStoreLink,
+                    stickerPack.publisherEmail,
+                    stickerPack.publisherWebsite,
+                    stickerPack.privacyPolicyWebsite,
+                    stickerPack.licenseAgreementWebsite,
+                    stickerPack.getImageDataVersion(),
+                    stickerPack.isAvoidCache() ? 1 : 0
+            };
+        }
+
+        @Nullable
+        PackBlobStore.Index getBlobIndex() {
+            if (!blobIndexResolved) {
+                blobIndex = PackBlobStore.getIndex(stickerPack.identifier);
+                blobIndexResolved = true;
+            }
+            return blobIndex;
+        }
+
+        /**
+         * Con menos stickers que el mínimo ni siquiera hace falta mirar cuáles están dañados.
+         */
+        boolean isServable() {
+            final List<Sticker> stickers = stickerPack.getStickers();
+            return stickers != null && stickers.size() >= StickerPackValidator.STICKER_SIZE_MIN
+                    && getStickerFiles().size() >= StickerPackValidator.STICKER_SIZE_MIN;
+        }
+
+        @NonNull
+        Set<String> getStickerFiles() {
+            Set<String> files = stickerFiles;
+            if (files == null) {
+                final List<Sticker> stickers = stickerPack.getStickers();
+                files = new HashSet<>(stickers == null ? 0 : stickers.size() * 2);
+                if (stickers != null) {
+                    for (Sticker sticker : stickers) {
+                        if (!sticker.isBroken()) {
+                            files.add(sticker.imageFileName);
+                        }
+                    }
+                }
+                files = Collections.unmodifiableSet(files);
+                stickerFiles = files;
+            }
+            return files;
+        }
+
+        @NonNull
+        List<Object[]> getStickerRows() {
+            List<Object[]> rows = stickerRows;
+            if (rows == null) {
+                final List<Sticker> stickers = stickerPack.getStickers();
+                rows = new ArrayList<>(stickers == null ? 0 : stickers.size());
+                if (stickers != null) {
+                    for (Sticker sticker : stickers) {
+                        if (sticker.isBroken()) {
+                            continue;
+                        }
+                        final String emojis = sticker.emojis == null ? "" : TextUtils.join(",", sticker.emojis);
+                        rows.add(new Object[]{sticker.imageFileName, emojis});
+                    }
+                }
+                rows = Collections.unmodifiableList(rows);
+                stickerRows = rows;
+            }
+            return rows;
+        }
+    }
+}
@@ -13,19 +13,26 @@ import android.content.res.AssetFileDescriptor;
 import android.database.Cursor;
 import android.database.MatrixCursor;
 import android.net.Uri;
+import android.os.Binder;
+import android.os.Bundle;
 import android.os.ParcelFileDescriptor;
+import android.os.Process;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 import android.text.TextUtils;
-import com.google.gson.Gson;
 import com.unusualapps.whatsappstickers.BuildConfig;
 import com.unusualapps.whatsappstickers.constants.Constants;
+import com.unusualapps.whatsappstickers.utils.BundledStickerPacks;
+import com.unusualapps.whatsappstickers.utils.PackBlobStore;
 import com.unusualapps.whatsappstickers.utils.RequestPermissionsHelper;
 import com.unusualapps.whatsappstickers.utils.StickerPacksManager;
+import com.unusualapps.whatsappstickers.utils.StickerPacksRepository;
+import com.unusualapps.whatsappstickers.utils.StickerVerifier;
 
 import java.io.*;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Objects;
 
@@ -44,10 +51,48 @@ public class StickerContentProvider extends ContentProvider {
     public static final String PUBLISHER_WEBSITE = "sticker_pack_publisher_website";
     public static final String PRIVACY_POLICY_WEBSITE = "sticker_pack_privacy_policy_website";
     public static final String LICENSE_AGREENMENT_WEBSITE = "sticker_pack_license_agreement_website";
+    public static final String IMAGE_DATA_VERSION = "image_data_version";
+    public static final String AVOID_CACHE = "whatsapp_will_not_cache_stickers";
 
     public static final String STICKER_FILE_NAME_IN_QUERY = "sticker_file_name";
     public static final String STICKER_FILE_EMOJI_IN_QUERY = "sticker_emoji";
     public static final String CONTENT_FILE_NAME = "contents.json";
+    public static final String STICKER_PACK_IN_VALUES = "stickerPack";
+
+    /**
+     * Métodos de call() con los que el proceso de la aplicación pide cambios del catálogo que calcula el propio proveedor.
+     * METHOD_RECONCILE_FILES recibe el identificador del paquete como arg y los nombres cambiados en EXTRA_FILE_NAMES;
+     * METHOD_CLONE_PACK, el del paquete que se copia como arg y el nombre de la copia en EXTRA_NAME, y devuelve el
+     * identificador nuevo en EXTRA_IDENTIFIER. Todos devuelven EXTRA_CHANGED.
+     */
+    public static final String METHOD_RECONCILE_FILES = "reconcile_files";
+    public static final String METHOD_MEASURE_MISSING_SIZES = "measure_missing_sizes";
+    public static final String METHOD_CLONE_PACK = "clone_pack";
+    public static final String METHOD_IMPORT_CATALOG = "import_catalog";
+    public static final String EXTRA_FILE_NAMES = "file_names";
+    public static final String EXTRA_NAME = "name";
+    public static final String EXTRA_IDENTIFIER = "identifier";
+    public static final String EXTRA_CHANGED = "changed";
+    public static final String EXTRA_IMPORTED = "imported";
+
+    /**
+     * Orden de las columnas de las filas precalculadas en StickerCatalog.
+     */
+    static final String[] PACK_COLUMNS = new String[]{
+            STICKER_PACK_IDENTIFIER_IN_QUERY,
+            STICKER_PACK_NAME_IN_QUERY,
+            STICKER_PACK_PUBLISHER_IN_QUERY,
+            STICKER_PACK_ICON_IN_QUERY,
+            ANDROID_APP_DOWNLOAD_LINK_IN_QUERY,
+            IOS_APP_DOWNLOAD_LINK_IN_QUERY,
+            PUBLISHER_EMAIL,
+            PUBLISHER_WEBSITE,
+            PRIVACY_POLICY_WEBSITE,
+            LICENSE_AGREENMENT_WEBSITE,
+            IMAGE_DATA_VERSION,
+            AVOID_CACHE
+    };
+    static final String[] STICKER_COLUMNS = new String[]{STICKER_FILE_NAME_IN_QUERY, STICKER_FILE_EMOJI_IN_QUERY};
 
     public static Uri AUTHORITY_URI = new Uri.Builder().scheme(ContentResolver.SCHEME_CONTENT).authority(BuildConfig.CONTENT_PROVIDER_AUTHORITY).appendPath(StickerContentProvider.METADATA).build();
 
@@ -66,17 +111,14 @@ public class StickerContentProvider extends ContentProvider {
     static final String STICKERS_ASSET = "stickers_asset";
     private static final int STICKERS_ASSET_CODE = 4;
 
-    private static final int STICKER_PACK_TRAY_ICON_CODE = 5;
-
-    private List<StickerPack> stickerPackList;
-
-    @Override
-    public boolean onCreate() {
+    static final String DEBUG_METRICS = "debug/metrics";
+    private static final int DEBUG_METRICS_CODE = 5;
+    private static final String DEBUG_METRICS_DUMP_PARAM = "dump";
+    private static final String DEBUG_METRICS_FILE_NAME = "provider_metrics.txt";
+    private static final String DERIVED_CACHE_DIRECTORY_NAME = "derived";
 
+    static {
         final String authority = BuildConfig.CONTENT_PROVIDER_AUTHORITY;
-        if (!authority.startsWith(Objects.requireNonNull(getContext()).getPackageName())) {
-            throw new IllegalStateException("tu autoridad (" + authority + ") para el proveedor de contenido debe comenzar con el nombre de su paquete: " + getContext().getPackageName());
-        }
 
         //Llamada para obtener los metadatos de los paquetes de stickers.
         MATCHER.addURI(authority, METADATA, METADATA_CODE);
@@ -87,48 +129,135 @@ public class StickerContentProvider extends ContentProvider {
         //Obtiene la lista de stickers para un paquete de stickers, * representa el identificador.
         MATCHER.addURI(authority, STICKERS + "/*", STICKERS_CODE);
 
-        for (StickerPack stickerPack : getStickerPackList()) {
-            MATCHER.addURI(authority, STICKERS_ASSET + "/" + stickerPack.identifier + "/" + stickerPack.trayImageFile, STICKER_PACK_TRAY_ICON_CODE);
-            for (Sticker sticker : stickerPack.getStickers()) {
-                MATCHER.addURI(authority, STICKERS_ASSET + "/" + stickerPack.identifier + "/" + sticker.imageFileName, STICKERS_ASSET_CODE);
-            }
+        //Stickers e iconos de bandeja: identificador/archivo. Se validan contra el índice del catálogo al abrirlos.
+        MATCHER.addURI(authority, STICKERS_ASSET + "/*/*", STICKERS_ASSET_CODE);
+
+        //Métricas de acceso, solo en compilaciones de depuración. ?dump=true las guarda además en un archivo.
+        if (BuildConfig.DEBUG) {
+            MATCHER.addURI(authority, DEBUG_METRICS, DEBUG_METRICS_CODE);
+        }
+    }
+
+    private final Object catalogLock = new Object();
+    private volatile StickerCatalog catalog = StickerCatalog.EMPTY;
+    private final StickerPrefetcher prefetcher = new StickerPrefetcher();
+    private final ProviderMetrics metrics = new ProviderMetrics();
+    //Se crea en el primer webp que falte, para no tocar el disco en onCreate
+    private volatile StickerTranscoder transcoder;
+    //Catálogo con solo los paquetes incluidos, para cuando no hay permiso de almacenamiento
+    private volatile StickerCatalog bundledCatalog;
+
+    @Override
+    public boolean onCreate() {
 
+        final String authority = BuildConfig.CONTENT_PROVIDER_AUTHORITY;
+        if (!authority.startsWith(Objects.requireNonNull(getContext()).getPackageName())) {
+            throw new IllegalStateException("tu autoridad (" + authority + ") para el proveedor de contenido debe comenzar con el nombre de su paquete: " + getContext().getPackageName());
         }
+        StickerPacksManager.setCatalogWriterProcess();
+        //El catálogo se carga en la primera consulta, así el arranque del proveedor no depende del tamaño de la biblioteca.
         return true;
     }
 
     @Override
     public Cursor query(@NonNull Uri uri, @Nullable String[] projection, String selection,
                         String[] selectionArgs, String sortOrder) {
-        stickerPackList = StickerPacksManager.getStickerPacks(getContext());
+        final long start = System.nanoTime();
         final int code = MATCHER.match(uri);
+        final Cursor cursor;
+        final int kind;
         if (code == METADATA_CODE) {
-            return getPackForAllStickerPacks(uri);
+            cursor = getPackForAllStickerPacks(uri, projection);
+            kind = ProviderMetrics.KIND_METADATA;
         } else if (code == METADATA_CODE_FOR_SINGLE_PACK) {
-            return getCursorForSingleStickerPack(uri);
+            cursor = getCursorForSingleStickerPack(uri, projection);
+            kind = ProviderMetrics.KIND_SINGLE_PACK;
         } else if (code == STICKERS_CODE) {
-            return getStickersForAStickerPack(uri);
+            cursor = getStickersForAStickerPack(uri, projection);
+            kind = ProviderMetrics.KIND_STICKER_LIST;
+        } else if (code == DEBUG_METRICS_CODE) {
+            return getMetricsCursor(uri);
         } else {
             throw new IllegalArgumentException("URI desconocida: " + uri);
         }
+        metrics.record(ProviderMetrics.OP_QUERY, kind, System.nanoTime() - start);
+        return cursor;
     }
 
     @Nullable
     @Override
     public ParcelFileDescriptor openFile(@NonNull Uri uri, @NonNull String mode) {
         final int matchCode = MATCHER.match(uri);
-        if (matchCode == STICKERS_ASSET_CODE || matchCode == STICKER_PACK_TRAY_ICON_CODE) {
-            ParcelFileDescriptor parcelFileDescriptor = null;
+        if (matchCode == STICKERS_ASSET_CODE) {
+            final long start = System.nanoTime();
+            //Las peticiones de archivos que no existen también cuentan en el histograma.
             try {
-                parcelFileDescriptor = ParcelFileDescriptor.open(getImageAsset(uri), ParcelFileDescriptor.MODE_READ_ONLY);
-            } catch (FileNotFoundException e) {
-                e.printStackTrace();
+                final File file = getImageAsset(uri);
+                if (file == null) {
+                    return null;
+                }
+                ParcelFileDescriptor parcelFileDescriptor = null;
+                try {
+                    parcelFileDescriptor = ParcelFileDescriptor.open(file, ParcelFileDescriptor.MODE_READ_ONLY);
+                    metrics.recordBytesServed(parcelFileDescriptor.getStatSize());
+                } catch (FileNotFoundException e) {
+                    parcelFileDescriptor = openTranscodedAsset(uri);
+                    if (parcelFileDescriptor == null) {
+                        e.printStackTrace();
+                    }
+                }
+                return parcelFileDescriptor;
+            } finally {
+                metrics.record(ProviderMetrics.OP_OPEN_FILE, getAssetMetricsKind(uri), System.nanoTime() - start);
             }
-            return new ParcelFileDescriptor(parcelFileDescriptor);
         }
         return null;
     }
 
+    /**
+     * Los paquetes guardados con PackBlobStore se sirven como porciones del blob (desplazamiento y longitud del índice,
+     * que StickerCatalog resuelve una vez por paquete) y los incluidos en el apk como porciones del propio apk; el resto se abre con openFile. WhatsApp pide los archivos con openAssetFileDescriptor, que llega aquí.
+     */
+    @Nullable
+    @Override
+    public AssetFileDescriptor openAssetFile(@NonNull Uri uri, @NonNull String mode) throws FileNotFoundException {
+        if (MATCHER.match(uri) == STICKERS_ASSET_CODE) {
+            final long start = System.nanoTime();
+            final List<String> pathSegments = uri.getPathSegments();
+            final StickerCatalog current = pathSegments.size() == 3 ? getCatalog(pathSegments.get(1)) : StickerCatalog.EMPTY;
+            if (pathSegments.size() == 3 && current.resolveAsset(pathSegments.get(1), pathSegments.get(2)) != StickerCatalog.ASSET_NONE) {
+                if (BundledStickerPacks.isBundled(Objects.requireNonNull(getContext()), pathSegments.get(1))) {
+                    final AssetFileDescriptor assetFileDescriptor;
+                    try {
+                        assetFileDescriptor = BundledStickerPacks.openAssetFile(Objects.requireNonNull(getContext()), pathSegments.get(1), pathSegments.get(2));
+                    } catch (IOException e) {
+                        metrics.record(ProviderMetrics.OP_OPEN_FILE, getAssetMetricsKind(uri), System.nanoTime() - start);
+                        throw new FileNotFoundException("no se pudo abrir " + uri + ": " + e.getMessage());
+                    }
+                    metrics.recordBytesServed(assetFileDescriptor.getLength());
+                    metrics.record(ProviderMetrics.OP_OPEN_FILE, getAssetMetricsKind(uri), System.nanoTime() - start);
+                    return assetFileDescriptor;
+                }
+                final PackBlobStore.Index index = current.getBlobIndex(pathSegments.get(1));
+                final PackBlobStore.Entry entry = index == null ? null : index.getEntry(pathSegments.get(2));
+                if (entry != null) {
+                    final ParcelFileDescriptor blob;
+                    try {
+                        blob = ParcelFileDescriptor.open(PackBlobStore.getBlobFile(pathSegments.get(1)), ParcelFileDescriptor.MODE_READ_ONLY);
+                    } catch (FileNotFoundException e) {
+                        metrics.record(ProviderMetrics.OP_OPEN_FILE, getAssetMetricsKind(uri), System.nanoTime() - start);
+                        throw e;
+                    }
+                    metrics.recordBytesServed(entry.length);
+                    metrics.record(ProviderMetrics.OP_OPEN_FILE, getAssetMetricsKind(uri), System.nanoTime() - start);
+                    return new AssetFileDescriptor(blob, entry.offset, entry.length);
+                }
+            }
+        }
+        final ParcelFileDescriptor parcelFileDescriptor = openFile(uri, mode);
+        return parcelFileDescriptor == null ? null : new AssetFileDescriptor(parcelFileDescriptor, 0, AssetFileDescriptor.UNKNOWN_LENGTH);
+    }
+
     @Override
     public String getType(@NonNull Uri uri) {
         final int matchCode = MATCHER.match(uri);
@@ -140,85 +269,219 @@ public class StickerContentProvider extends ContentProvider {
             case STICKERS_CODE:
                 return "vnd.android.cursor.dir/vnd." + BuildConfig.CONTENT_PROVIDER_AUTHORITY + "." + STICKERS;
             case STICKERS_ASSET_CODE:
-                return "image/webp";
-            case STICKER_PACK_TRAY_ICON_CODE:
-                return "image/png";
+                final long start = System.nanoTime();
+                final String type = getAssetType(uri);
+                metrics.record(ProviderMetrics.OP_GET_TYPE, getAssetMetricsKind(uri), System.nanoTime() - start);
+                return type;
+            case DEBUG_METRICS_CODE:
+                return "vnd.android.cursor.dir/vnd." + BuildConfig.CONTENT_PROVIDER_AUTHORITY + ".metrics";
             default:
                 throw new IllegalArgumentException("Unknown URI: " + uri);
         }
     }
 
-    private synchronized void readContentFile(@NonNull Context context) {
-        stickerPackList = StickerPacksManager.getStickerPacks(context);
+    /**
+     * Devuelve el catálogo derivado de la instantánea actual de StickerPacksRepository, que es la única caché del
+     * catálogo en este proceso: la recarga cuando otro proceso lo cambia y ya refleja las escrituras del proveedor.
+     * Los hilos de binder concurrentes comparten la misma instancia inmutable. Los paquetes incluidos en el apk no
+     * necesitan permiso de almacenamiento, así que se sirven aunque falte.
+     */
+    @NonNull
+    private StickerCatalog getCatalog() {
+        final Context context = Objects.requireNonNull(getContext());
+        if (!RequestPermissionsHelper.verifyPermissions(context)) {
+            return getBundledCatalog(context);
+        }
+        return getCatalog(context, StickerPacksRepository.getInstance(context).getSnapshot());
     }
 
-    public List<StickerPack> getStickerPackList() {
-        readContentFile(Objects.requireNonNull(getContext()));
-        return stickerPackList;
+    @NonNull
+    private StickerCatalog getCatalog(@NonNull Context context, @NonNull StickerPacksRepository.Snapshot snapshot) {
+        StickerCatalog current = catalog;
+        if (current.getVersion() >= snapshot.getVersion()) {
+            metrics.recordCatalogHit();
+            return current;
+        }
+        synchronized (catalogLock) {
+            current = catalog;
+            if (current.getVersion() < snapshot.getVersion()) {
+                current = current.withStickerPacks(mergeBundledStickerPacks(context, snapshot.getStickerPacks()), snapshot.getVersion());
+                catalog = current;
+                metrics.recordCatalogReload();
+            } else {
+                metrics.recordCatalogHit();
+            }
+        }
+        return current;
     }
 
-    private Cursor getPackForAllStickerPacks(@NonNull Uri uri) {
-        return getStickerPackInfo(uri, getStickerPackList());
+    /**
+     * Catálogo para una operación sobre un solo paquete (consultas, openFile, openAssetFile y getType). Usa la
+     * instantánea que haya sin esperar: el proveedor es quien escribe el catálogo, así que ya refleja sus cambios, y
+     * si hace falta recargarla el repositorio lo hace una sola vez en segundo plano. Solo en el arranque en frío, hasta
+     * que termine esa primera carga, se busca con SQLite únicamente este paquete por índice.
+     */
+    @NonNull
+    private StickerCatalog getCatalog(@NonNull String identifier) {
+        final Context context = Objects.requireNonNull(getContext());
+        if (!Constants.SQLITE_CATALOG || BundledStickerPacks.isBundled(context, identifier) || !RequestPermissionsHelper.verifyPermissions(context)) {
+            return getCatalog();
+        }
+        final StickerPacksRepository.Snapshot snapshot = StickerPacksRepository.getInstance(context).getCurrentSnapshot();
+        if (snapshot != null) {
+            return getCatalog(context, snapshot);
+        }
+        final StickerPack stickerPack = StickerPacksManager.getStickerPack(context, identifier);
+        return StickerCatalog.create(stickerPack == null ? Collections.emptyList() : Collections.singletonList(stickerPack), -1);
     }
 
-    private Cursor getCursorForSingleStickerPack(@NonNull Uri uri) {
-        final String identifier = uri.getLastPathSegment();
-        for (StickerPack stickerPack : getStickerPackList()) {
-            if (identifier.equals(stickerPack.identifier)) {
-                return getStickerPackInfo(uri, Collections.singletonList(stickerPack));
-            }
+    @NonNull
+    private StickerCatalog getBundledCatalog(@NonNull Context context) {
+        StickerCatalog current = bundledCatalog;
+        if (current == null) {
+            current = StickerCatalog.create(BundledStickerPacks.getStickerPacks(context), -1);
+            bundledCatalog = current;
         }
-
-        return getStickerPackInfo(uri, new ArrayList<>());
+        return current;
     }
 
+    /**
+     * Los paquetes incluidos van primero; un paquete del usuario con el mismo identificador se ignora.
+     */
     @NonNull
-    private Cursor getStickerPackInfo(@NonNull Uri uri, @NonNull List<StickerPack> stickerPackList) {
-        MatrixCursor cursor = new MatrixCursor(
-                new String[]{
-                        STICKER_PACK_IDENTIFIER_IN_QUERY,
-                        STICKER_PACK_NAME_IN_QUERY,
-                        STICKER_PACK_PUBLISHER_IN_QUERY,
-                        STICKER_PACK_ICON_IN_QUERY,
-                        ANDROID_APP_DOWNLOAD_LINK_IN_QUERY,
-                        IOS_APP_DOWNLOAD_LINK_IN_QUERY,
-                        PUBLISHER_EMAIL,
-                        PUBLISHER_WEBSITE,
-                        PRIVACY_POLICY_WEBSITE,
-                        LICENSE_AGREENMENT_WEBSITE
-                });
-        for (StickerPack stickerPack : stickerPackList) {
-            MatrixCursor.RowBuilder builder = cursor.newRow();
-            builder.add(stickerPack.identifier);
-            builder.add(stickerPack.name);
-            builder.add(stickerPack.publisher);
-            builder.add(stickerPack.trayImageFile);
-            builder.add(stickerPack.androidPlayStoreLink);
-            builder.add(stickerPack.iosAppStoreLink);
-            builder.add(stickerPack.publisherEmail);
-            builder.add(stickerPack.publisherWebsite);
-            builder.add(stickerPack.privacyPolicyWebsite);
-            builder.add(stickerPack.licenseAgreementWebsite);
+    private static List<StickerPack> mergeBundledStickerPacks(@NonNull Context context, @NonNull List<StickerPack> userStickerPacks) {
+        final List<StickerPack> bundled = BundledStickerPacks.getStickerPacks(context);
+        if (bundled.isEmpty()) {
+            return userStickerPacks;
         }
-        cursor.setNotificationUri(Objects.requireNonNull(getContext()).getContentResolver(), uri);
-        return cursor;
+        final List<StickerPack> merged = new ArrayList<>(bundled.size() + userStickerPacks.size());
+        merged.addAll(bundled);
+        for (StickerPack stickerPack : userStickerPacks) {
+            if (!BundledStickerPacks.isBundled(context, stickerPack.identifier)) {
+                merged.add(stickerPack);
+            }
+        }
+        return merged;
+    }
+
+    public List<StickerPack> getStickerPackList() {
+        return getCatalog().getStickerPacks();
+    }
+
+    private Cursor getPackForAllStickerPacks(@NonNull Uri uri, @Nullable String[] projection) {
+        return buildCursor(uri, projection, PACK_COLUMNS, getCatalog().getMetadataRows());
+    }
+
+    private Cursor getCursorForSingleStickerPack(@NonNull Uri uri, @Nullable String[] projection) {
+        final String identifier = uri.getLastPathSegment();
+        final Object[] row = identifier == null ? null : getCatalog(identifier).getMetadataRow(identifier);
+        final List<Object[]> rows = row == null ? Collections.emptyList() : Collections.singletonList(row);
+        return buildCursor(uri, projection, PACK_COLUMNS, rows);
     }
 
     @NonNull
-    private Cursor getStickersForAStickerPack(@NonNull Uri uri) {
+    private Cursor getStickersForAStickerPack(@NonNull Uri uri, @Nullable String[] projection) {
         final String identifier = uri.getLastPathSegment();
-        MatrixCursor cursor = new MatrixCursor(new String[]{STICKER_FILE_NAME_IN_QUERY, STICKER_FILE_EMOJI_IN_QUERY});
-        for (StickerPack stickerPack : getStickerPackList()) {
-            if (identifier.equals(stickerPack.identifier)) {
+        final StickerCatalog current = identifier == null ? StickerCatalog.EMPTY : getCatalog(identifier);
+        final List<Object[]> rows = identifier == null ? Collections.emptyList() : current.getStickerRows(identifier);
+        final StickerPack stickerPack = identifier == null ? null : current.getStickerPack(identifier);
+        if (stickerPack != null && !rows.isEmpty() && !BundledStickerPacks.isBundled(Objects.requireNonNull(getContext()), identifier)) {
+            //WhatsApp abrirá a continuación todos los stickers del paquete, así que se leen por adelantado: de un paquete
+            //con blob, la porción que ocupan sus archivos; si no, los archivos sueltos.
+            final PackBlobStore.Index index = current.getBlobIndex(identifier);
+            if (index != null) {
+                prefetcher.prefetch(identifier, PackBlobStore.getBlobFile(identifier), index.getStartOffset(), index.getEndOffset() - index.getStartOffset());
+            } else {
+                final List<File> files = new ArrayList<>(stickerPack.getStickers().size());
                 for (Sticker sticker : stickerPack.getStickers()) {
-                    cursor.addRow(new Object[]{sticker.imageFileName, TextUtils.join(",", sticker.emojis)});
+                    files.add(fetchFile(sticker.imageFileName, identifier));
                 }
+                prefetcher.prefetch(identifier, files);
+            }
+        }
+        return buildCursor(uri, projection, STICKER_COLUMNS, rows);
+    }
+
+    /**
+     * Copia las filas precalculadas al cursor, materializando solo las columnas pedidas en la proyección.
+     */
+    @NonNull
+    private Cursor buildCursor(@NonNull Uri uri, @Nullable String[] projection, @NonNull String[] columns, @NonNull List<Object[]> rows) {
+        final MatrixCursor cursor;
+        if (projection == null) {
+            cursor = new MatrixCursor(columns, rows.size());
+            for (Object[] row : rows) {
+                cursor.addRow(row);
+            }
+        } else {
+            final int[] columnIndexes = new int[projection.length];
+            for (int i = 0; i < projection.length; i++) {
+                columnIndexes[i] = indexOf(columns, projection[i]);
+                if (columnIndexes[i] < 0) {
+                    throw new IllegalArgumentException("columna desconocida: " + projection[i] + ", uri: " + uri);
+                }
+            }
+            cursor = new MatrixCursor(projection, rows.size());
+            for (Object[] row : rows) {
+                final Object[] projected = new Object[columnIndexes.length];
+                for (int i = 0; i < columnIndexes.length; i++) {
+                    projected[i] = row[columnIndexes[i]];
+                }
+                cursor.addRow(projected);
             }
         }
         cursor.setNotificationUri(Objects.requireNonNull(getContext()).getContentResolver(), uri);
         return cursor;
     }
 
+    private static int indexOf(@NonNull String[] columns, @NonNull String column) {
+        for (int i = 0; i < columns.length; i++) {
+            if (columns[i].equals(column)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    @NonNull
+    private String getAssetType(@NonNull Uri uri) {
+        final List<String> pathSegments = uri.getPathSegments();
+        if (pathSegments.size() == 3) {
+            final int assetType = getCatalog(pathSegments.get(1)).resolveAsset(pathSegments.get(1), pathSegments.get(2));
+            if (assetType == StickerCatalog.ASSET_STICKER) {
+                return "image/webp";
+            } else if (assetType == StickerCatalog.ASSET_TRAY_ICON) {
+                return "image/png";
+            }
+        }
+        throw new IllegalArgumentException("Unknown URI: " + uri);
+    }
+
+    /**
+     * Los iconos de bandeja son png y los stickers webp, así que basta con el nombre; consultar el catálogo aquí
+     * contaría un acierto de caché más en cada métrica.
+     */
+    private static int getAssetMetricsKind(@NonNull Uri uri) {
+        final String fileName = uri.getLastPathSegment();
+        if (fileName != null && fileName.endsWith(".png")) {
+            return ProviderMetrics.KIND_TRAY_ICON;
+        }
+        return ProviderMetrics.KIND_STICKER_ASSET;
+    }
+
+    @NonNull
+    private Cursor getMetricsCursor(@NonNull Uri uri) {
+        if (uri.getBooleanQueryParameter(DEBUG_METRICS_DUMP_PARAM, false)) {
+            final File file = new File(Objects.requireNonNull(getContext()).getFilesDir(), DEBUG_METRICS_FILE_NAME);
+            try {
+                metrics.dump(file);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        return metrics.toCursor();
+    }
+
     private File getImageAsset(Uri uri) throws IllegalArgumentException {
         final List<String> pathSegments = uri.getPathSegments();
         if (pathSegments.size() != 3) {
@@ -233,49 +496,240 @@ public class StickerContentProvider extends ContentProvider {
             throw new IllegalArgumentException("nombre del archivo está vacío, uri: " + uri);
         }
         //making sure the file that is trying to be fetched is in the list of stickers.
-        for (StickerPack stickerPack : getStickerPackList()) {
-            if (identifier.equals(stickerPack.identifier)) {
-                if (fileName.equals(stickerPack.trayImageFile)) {
-                    return fetchFile(fileName, identifier);
-                } else {
-                    for (Sticker sticker : stickerPack.getStickers()) {
-                        if (fileName.equals(sticker.imageFileName)) {
-                            return fetchFile(fileName, identifier);
-                        }
-                    }
+        if (getCatalog(identifier).resolveAsset(identifier, fileName) != StickerCatalog.ASSET_NONE) {
+            return fetchFile(fileName, identifier);
+        }
+        return null;
+    }
+
+    /**
+     * Sin el webp en disco, se intenta generarlo a partir del original sin pérdida del sticker (KEEP_LOSSLESS_MASTERS).
+     */
+    @Nullable
+    private ParcelFileDescriptor openTranscodedAsset(@NonNull Uri uri) {
+        final List<String> pathSegments = uri.getPathSegments();
+        final String fileName = pathSegments.get(2);
+        final StickerPack stickerPack = getCatalog(pathSegments.get(1)).getStickerPack(pathSegments.get(1));
+        if (stickerPack == null || fileName.equals(stickerPack.trayImageFile)) {
+            return null;
+        }
+        try {
+            return getTranscoder().open(stickerPack, fileName);
+        } catch (FileNotFoundException e) {
+            return null;
+        }
+    }
+
+    @NonNull
+    private StickerTranscoder getTranscoder() {
+        StickerTranscoder current = transcoder;
+        if (current == null) {
+            synchronized (this) {
+                current = transcoder;
+                if (current == null) {
+                    current = new StickerTranscoder(new File(Objects.requireNonNull(getContext()).getCacheDir(), DERIVED_CACHE_DIRECTORY_NAME));
+                    transcoder = current;
                 }
             }
         }
-        return null;
+        return current;
     }
 
     private File fetchFile(@NonNull String fileName, @NonNull String identifier) {
-        return new File(Constants.STICKERS_DIRECTORY_PATH + identifier + "/" + fileName);
+        return StickerPacksManager.getStickerFile(identifier, fileName);
     }
 
+    /**
+     * Borra un paquete (metadata/identificador) junto con sus archivos.
+     */
     @Override
     public int delete(@NonNull Uri uri, @Nullable String selection, String[] selectionArgs) {
-        throw new UnsupportedOperationException("no soportado");
+        enforceWriteAccess();
+        if (MATCHER.match(uri) != METADATA_CODE_FOR_SINGLE_PACK) {
+            throw new IllegalArgumentException("URI desconocida: " + uri);
+        }
+        final String identifier = uri.getLastPathSegment();
+        enforceWritablePack(identifier);
+        if (StickerPacksManager.deleteStickerPack(Objects.requireNonNull(getContext()), identifier) == null) {
+            return 0;
+        }
+        persistAndNotify(getStickerPackUri(identifier));
+        return 1;
     }
 
+    /**
+     * Añade un paquete nuevo. El valor "stickerPack" de values contiene el paquete serializado en json.
+     */
     @Override
     public Uri insert(@NonNull Uri uri, ContentValues values) {
-        final String authority = BuildConfig.CONTENT_PROVIDER_AUTHORITY;
-        if (!authority.startsWith(Objects.requireNonNull(getContext()).getPackageName())) {
-            throw new IllegalStateException("tu autoridad (" + authority + ") \n" +
-                    "para el proveedor de contenido debe comenzar con el nombre de su paquete: " + getContext().getPackageName());
+        enforceWriteAccess();
+        if (MATCHER.match(uri) != METADATA_CODE) {
+            throw new IllegalArgumentException("URI desconocida: " + uri);
+        }
+        final StickerPack stickerPack = readStickerPack(values);
+        insertStickerPacks(Collections.singletonList(stickerPack));
+        final Uri stickerPackUri = getStickerPackUri(stickerPack.identifier);
+        persistAndNotify(stickerPackUri);
+        return stickerPackUri;
+    }
+
+    /**
+     * Importa varios paquetes con una sola escritura del catálogo y una sola notificación.
+     */
+    @Override
+    public int bulkInsert(@NonNull Uri uri, @NonNull ContentValues[] values) {
+        enforceWriteAccess();
+        if (MATCHER.match(uri) != METADATA_CODE) {
+            throw new IllegalArgumentException("URI desconocida: " + uri);
+        }
+        final List<StickerPack> stickerPacks = new ArrayList<>(values.length);
+        for (ContentValues contentValues : values) {
+            stickerPacks.add(readStickerPack(contentValues));
         }
-        StickerPack stickerPack = new Gson().fromJson((String) values.get("stickerPack"), StickerPack.class);
-        MATCHER.addURI(authority, STICKERS_ASSET + "/" + stickerPack.identifier + "/" + stickerPack.trayImageFile, STICKER_PACK_TRAY_ICON_CODE);
-        for (Sticker sticker : stickerPack.getStickers()) {
-            MATCHER.addURI(authority, STICKERS_ASSET + "/" + stickerPack.identifier + "/" + sticker.imageFileName, STICKERS_ASSET_CODE);
+        if (stickerPacks.isEmpty()) {
+            return 0;
         }
-        return uri;
+        insertStickerPacks(stickerPacks);
+        persistAndNotify(AUTHORITY_URI);
+        return stickerPacks.size();
     }
 
+    /**
+     * Reemplaza los datos de un paquete existente (metadata/identificador).
+     */
     @Override
     public int update(@NonNull Uri uri, ContentValues values, String selection,
                       String[] selectionArgs) {
-        throw new UnsupportedOperationException("no soportado");
+        enforceWriteAccess();
+        if (MATCHER.match(uri) != METADATA_CODE_FOR_SINGLE_PACK) {
+            throw new IllegalArgumentException("URI desconocida: " + uri);
+        }
+        final StickerPack stickerPack = readStickerPack(values);
+        if (!stickerPack.identifier.equals(uri.getLastPathSegment())) {
+            throw new IllegalArgumentException("el identificador del paquete no coincide con la uri: " + uri);
+        }
+        enforceWritablePack(stickerPack.identifier);
+        if (!StickerPacksManager.updateStickerPack(Objects.requireNonNull(getContext()), stickerPack)) {
+            return 0;
+        }
+        persistAndNotify(uri);
+        return 1;
+    }
+
+    /**
+     * Cambios del catálogo que dependen de los archivos de los paquetes. Se calculan aquí, sobre la instantánea del
+     * proceso que escribe, para que el de la aplicación no escriba nunca el catálogo.
+     */
+    @Nullable
+    @Override
+    public Bundle call(@NonNull String method, @Nullable String arg, @Nullable Bundle extras) {
+        enforceWriteAccess();
+        final Context context = Objects.requireNonNull(getContext());
+        final Bundle result = new Bundle();
+        final boolean changed;
+        final Uri uri;
+        if (METHOD_RECONCILE_FILES.equals(method)) {
+            final List<String> fileNames = extras == null ? null : extras.getStringArrayList(EXTRA_FILE_NAMES);
+            if (TextUtils.isEmpty(arg) || fileNames == null) {
+                throw new IllegalArgumentException("faltan el paquete o los archivos de " + method);
+            }
+            enforceWritablePack(arg);
+            StickerVerifier.markSuspect(context, arg);
+            changed = StickerPacksManager.reconcileStickerPackFiles(context, arg, new HashSet<>(fileNames));
+            uri = getStickerPackUri(arg);
+        } else if (METHOD_MEASURE_MISSING_SIZES.equals(method)) {
+            changed = StickerPacksManager.measureMissingSizes(context);
+            uri = AUTHORITY_URI;
+        } else if (METHOD_IMPORT_CATALOG.equals(method)) {
+            //Quien lo pide lee la base de datos en cuanto vuelve; no hay ningún cambio que avisar.
+            result.putBoolean(EXTRA_IMPORTED, StickerPacksManager.importJsonCatalog(context));
+            changed = false;
+            uri = AUTHORITY_URI;
+        } else if (METHOD_CLONE_PACK.equals(method)) {
+            final String name = extras == null ? null : extras.getString(EXTRA_NAME);
+            if (TextUtils.isEmpty(arg) || TextUtils.isEmpty(name)) {
+                throw new IllegalArgumentException("faltan el paquete o el nombre de " + method);
+            }
+            final StickerPack clone;
+            try {
+                clone = StickerPacksManager.cloneStickerPack(context, arg, name);
+            } catch (IOException e) {
+                throw new IllegalStateException("no se pudo copiar el paquete " + arg, e);
+            }
+            changed = clone != null;
+            uri = AUTHORITY_URI;
+            if (clone != null) {
+                result.putString(EXTRA_IDENTIFIER, clone.identifier);
+            }
+        } else {
+            throw new IllegalArgumentException("método desconocido: " + method);
+        }
+        if (changed) {
+            persistAndNotify(uri);
+        }
+        result.putBoolean(EXTRA_CHANGED, changed);
+        return result;
+    }
+
+    public static Uri getStickerPackUri(@NonNull String identifier) {
+        return AUTHORITY_URI.buildUpon().appendPath(identifier).build();
+    }
+
+    private void insertStickerPacks(@NonNull List<StickerPack> stickerPacks) {
+        for (StickerPack stickerPack : stickerPacks) {
+            enforceWritablePack(stickerPack.identifier);
+        }
+        StickerPacksManager.addStickerPacks(Objects.requireNonNull(getContext()), stickerPacks);
+    }
+
+    /**
+     * Guarda la escritura antes de responder y después avisa del cambio. Android no avisa al proveedor antes de matar
+     * su proceso (shutdown() solo se llama en pruebas), así que no hay otro momento fiable para hacerlo; además, los
+     * otros procesos recargan al ver la versión nueva y avisar antes les haría leer el catálogo anterior.
+     *
+     * @throws IllegalStateException si no se ha podido guardar; el cambio queda pendiente y se reintenta
+     */
+    private void persistAndNotify(@NonNull Uri uri) {
+        metrics.recordCatalogMutation();
+        if (!StickerPacksManager.flush()) {
+            throw new IllegalStateException("no se pudo guardar el catálogo");
+        }
+        Objects.requireNonNull(getContext()).getContentResolver().notifyChange(uri, null);
+    }
+
+    @NonNull
+    private static StickerPack readStickerPack(@Nullable ContentValues values) {
+        final String json = values == null ? null : values.getAsString(STICKER_PACK_IN_VALUES);
+        if (TextUtils.isEmpty(json)) {
+            throw new IllegalArgumentException("falta el valor " + STICKER_PACK_IN_VALUES);
+        }
+        final StickerPack stickerPack = StickerPackJson.GSON.fromJson(json, StickerPack.class);
+        if (stickerPack == null || TextUtils.isEmpty(stickerPack.identifier) || stickerPack.identifier.contains("..") || stickerPack.identifier.contains("/")) {
+            throw new IllegalArgumentException("paquete de stickers no válido");
+        }
+        return stickerPack;
+    }
+
+    /**
+     * Los paquetes incluidos en el apk son de solo lectura.
+     */
+    private void enforceWritablePack(@Nullable String identifier) {
+        if (BundledStickerPacks.isBundled(Objects.requireNonNull(getContext()), identifier)) {
+            throw new IllegalArgumentException("el paquete " + identifier + " es de solo lectura");
+        }
+    }
+
+    /**
+     * Solo la propia aplicación puede modificar el catálogo a través del proveedor.
+     */
+    private void enforceWriteAccess() {
+        final String authority = BuildConfig.CONTENT_PROVIDER_AUTHORITY;
+        if (!authority.startsWith(Objects.requireNonNull(getContext()).getPackageName())) {
+            throw new IllegalStateException("tu autoridad (" + authority + ") \n" +
+                    "para el proveedor de contenido debe comenzar con el nombre de su paquete: " + getContext().getPackageName());
+        }
+        if (Binder.getCallingUid() != Process.myUid()) {
+            throw new SecurityException("solo la aplicación puede modificar los paquetes de stickers");
+        }
     }
 }
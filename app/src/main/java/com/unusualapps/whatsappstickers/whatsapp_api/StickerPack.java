@@ -26,8 +26,16 @@ public class StickerPack implements Parcelable {
     String iosAppStoreLink;
     private List<Sticker> stickers;
     private long totalSize;
+    long trayImageFileSize;
+    long trayImageFileChecksum;
+    //StickerVerifier encontró el icono de la bandeja dañado o ausente
+    boolean trayImageFileBroken;
     String androidPlayStoreLink;
     private boolean isWhitelisted;
+    String imageDataVersion = DEFAULT_IMAGE_DATA_VERSION;
+    boolean avoidCache;
+
+    static final String DEFAULT_IMAGE_DATA_VERSION = "1";
 
     public StickerPack(String identifier, String name, String publisher, String trayImageFile, String publisherEmail, String publisherWebsite, String privacyPolicyWebsite, String licenseAgreementWebsite) {
         this.identifier = identifier;
@@ -40,6 +48,24 @@ public class StickerPack implements Parcelable {
         this.licenseAgreementWebsite = licenseAgreementWebsite;
     }
 
+    /**
+     * Copia superficial, para cambiar un paquete sin tocar la instancia que comparten las instantáneas del catálogo.
+     */
+    public StickerPack copy() {
+        StickerPack copy = new StickerPack(identifier, name, publisher, trayImageFile, publisherEmail, publisherWebsite, privacyPolicyWebsite, licenseAgreementWebsite);
+        copy.iosAppStoreLink = iosAppStoreLink;
+        copy.androidPlayStoreLink = androidPlayStoreLink;
+        copy.stickers = stickers;
+        copy.totalSize = totalSize;
+        copy.trayImageFileSize = trayImageFileSize;
+        copy.trayImageFileChecksum = trayImageFileChecksum;
+        copy.trayImageFileBroken = trayImageFileBroken;
+        copy.isWhitelisted = isWhitelisted;
+        copy.imageDataVersion = imageDataVersion;
+        copy.avoidCache = avoidCache;
+        return copy;
+    }
+
     void setIsWhitelisted(boolean isWhitelisted) {
         this.isWhitelisted = isWhitelisted;
     }
@@ -62,6 +88,11 @@ public class StickerPack implements Parcelable {
         totalSize = in.readLong();
         androidPlayStoreLink = in.readString();
         isWhitelisted = in.readByte() != 0;
+        imageDataVersion = in.readString();
+        avoidCache = in.readByte() != 0;
+        trayImageFileSize = in.readLong();
+        trayImageFileChecksum = in.readLong();
+        trayImageFileBroken = in.readByte() != 0;
     }
 
     public static final Creator<StickerPack> CREATOR = new Creator<StickerPack>() {
@@ -78,10 +109,32 @@ public class StickerPack implements Parcelable {
 
     public void setStickers(List<Sticker> stickers) {
         this.stickers = stickers;
-        totalSize = 0;
+        //Una lista perezosa se decodificaría solo para sumar tamaños; se calcula al pedirlo.
+        totalSize = stickers instanceof LazyStickerList ? -1 : sumSizes(stickers);
+    }
+
+    /**
+     * Para el modo perezoso de ContentFileParser: el total guardado en el json evita decodificar la lista para sumarlo.
+     */
+    void setStickers(List<Sticker> stickers, long totalSize) {
+        this.stickers = stickers;
+        this.totalSize = totalSize;
+    }
+
+    private static long sumSizes(List<Sticker> stickers) {
+        long size = 0;
         for (Sticker sticker : stickers) {
-            totalSize += sticker.size;
+            size += sticker.size;
         }
+        return size;
+    }
+
+    public String getAndroidPlayStoreLink() {
+        return androidPlayStoreLink;
+    }
+
+    public String getIosAppStoreLink() {
+        return iosAppStoreLink;
     }
 
     public void setAndroidPlayStoreLink(String androidPlayStoreLink) {
@@ -92,11 +145,90 @@ public class StickerPack implements Parcelable {
         this.iosAppStoreLink = iosAppStoreLink;
     }
 
+    public String getImageDataVersion() {
+        return imageDataVersion == null ? DEFAULT_IMAGE_DATA_VERSION : imageDataVersion;
+    }
+
+    public void setImageDataVersion(String imageDataVersion) {
+        this.imageDataVersion = imageDataVersion;
+    }
+
+    /**
+     * Debe llamarse cada vez que se reescribe un sticker o el icono de la bandeja del paquete,
+     * para que WhatsApp descarte las imágenes que tenga en caché.
+     */
+    public void bumpImageDataVersion() {
+        try {
+            imageDataVersion = String.valueOf(Long.parseLong(getImageDataVersion()) + 1);
+        } catch (NumberFormatException e) {
+            imageDataVersion = DEFAULT_IMAGE_DATA_VERSION;
+        }
+    }
+
+    public boolean isAvoidCache() {
+        return avoidCache;
+    }
+
+    public void setAvoidCache(boolean avoidCache) {
+        this.avoidCache = avoidCache;
+    }
+
     public List<Sticker> getStickers() {
         return stickers;
     }
 
+    public long getTrayImageFileSize() {
+        return trayImageFileSize;
+    }
+
+    public void setTrayImageFileSize(long trayImageFileSize) {
+        this.trayImageFileSize = trayImageFileSize;
+    }
+
+    public long getTrayImageFileChecksum() {
+        return trayImageFileChecksum;
+    }
+
+    public void setTrayImageFileChecksum(long trayImageFileChecksum) {
+        this.trayImageFileChecksum = trayImageFileChecksum;
+    }
+
+    public boolean isTrayImageFileBroken() {
+        return trayImageFileBroken;
+    }
+
+    public void setTrayImageFileBroken(boolean trayImageFileBroken) {
+        this.trayImageFileBroken = trayImageFileBroken;
+    }
+
+    /**
+     * Indica si hay algo dañado en el paquete: el icono de la bandeja o alguno de los stickers.
+     */
+    public boolean hasBrokenFiles() {
+        if (trayImageFileBroken) {
+            return true;
+        }
+        if (stickers != null) {
+            for (Sticker sticker : stickers) {
+                if (sticker.broken) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Bytes que ocupa el paquete en disco: los stickers más el icono de la bandeja, según los tamaños guardados en el catálogo.
+     */
+    public long getStorageSize() {
+        return getTotalSize() + trayImageFileSize;
+    }
+
     public long getTotalSize() {
+        if (totalSize < 0) {
+            totalSize = sumSizes(stickers);
+        }
         return totalSize;
     }
 
@@ -117,8 +249,13 @@ public class StickerPack implements Parcelable {
         dest.writeString(licenseAgreementWebsite);
         dest.writeString(iosAppStoreLink);
         dest.writeTypedList(stickers);
-        dest.writeLong(totalSize);
+        dest.writeLong(getTotalSize());
         dest.writeString(androidPlayStoreLink);
         dest.writeByte((byte) (isWhitelisted ? 1 : 0));
+        dest.writeString(imageDataVersion);
+        dest.writeByte((byte) (avoidCache ? 1 : 0));
+        dest.writeLong(trayImageFileSize);
+        dest.writeLong(trayImageFileChecksum);
+        dest.writeByte((byte) (trayImageFileBroken ? 1 : 0));
     }
 }
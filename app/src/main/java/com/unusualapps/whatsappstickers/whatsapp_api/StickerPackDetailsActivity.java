@@ -23,7 +23,6 @@ import android.view.ViewTreeObserver;
 import android.widget.ImageView;
 import android.widget.TextView;
 import com.unusualapps.whatsappstickers.R;
-import com.unusualapps.whatsappstickers.constants.Constants;
 import com.unusualapps.whatsappstickers.utils.FileUtils;
 import com.unusualapps.whatsappstickers.utils.ImageUtils;
 
@@ -80,8 +79,8 @@ public class StickerPackDetailsActivity extends AddStickerPackActivity {
         }
         packNameTextView.setText(stickerPack.name);
         packPublisherTextView.setText(stickerPack.publisher);
-        packTrayIcon.setImageURI(ImageUtils.getStickerImageAsset(stickerPack.identifier, stickerPack.trayImageFile));
-        packSizeTextView.setText(FileUtils.getFolderSizeLabel(Constants.STICKERS_DIRECTORY_PATH + stickerPack.identifier));
+        packTrayIcon.setImageURI(ImageUtils.getStickerImageAsset(this, stickerPack.identifier, stickerPack.trayImageFile));
+        packSizeTextView.setText(FileUtils.getStickerPackSizeLabel(this, stickerPack));
         addButton.setOnClickListener(v -> addStickerPackToWhatsApp(stickerPack.identifier, stickerPack.name));
         if (getSupportActionBar() != null) {
             getSupportActionBar().setDisplayHomeAsUpEnabled(showUpButton);
@@ -111,7 +110,7 @@ public class StickerPackDetailsActivity extends AddStickerPackActivity {
             final String publisherWebsite = stickerPack.publisherWebsite;
             final String publisherEmail = stickerPack.publisherEmail;
             final String privacyPolicyWebsite = stickerPack.privacyPolicyWebsite;
-            Uri trayIconUri = ImageUtils.getStickerImageAsset(stickerPack.identifier, stickerPack.trayImageFile);
+            Uri trayIconUri = ImageUtils.getStickerImageAsset(this, stickerPack.identifier, stickerPack.trayImageFile);
             launchInfoActivity(publisherWebsite, publisherEmail, privacyPolicyWebsite, trayIconUri.toString());
             return true;
         }
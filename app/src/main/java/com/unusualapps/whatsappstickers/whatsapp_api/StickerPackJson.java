@@ -0,0 +1,288 @@
+package com.unusualapps.whatsappstickers.whatsapp_api;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+import com.unusualapps.whatsappstickers.identities.StickerPacksContainer;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Instancia de Gson compartida para el catálogo. StickerPack, Sticker y StickerPacksContainer se escriben y leen
+ * con adaptadores hechos a mano, sin reflexión, con los mismos nombres de campo que generaba Gson; el resultado
+ * lo puede leer ContentFileParser. Los valores null no se escriben, igual que antes.
+ */
+public final class StickerPackJson {
+
+    public static final Gson GSON = new GsonBuilder()
+            .registerTypeAdapter(Sticker.class, new StickerAdapter().nullSafe())
+            .registerTypeAdapter(StickerPack.class, new StickerPackAdapter().nullSafe())
+            .registerTypeAdapter(StickerPacksContainer.class, new StickerPacksContainerAdapter().nullSafe())
+            .create();
+
+    private StickerPackJson() {
+    }
+
+    static final class StickerAdapter extends TypeAdapter<Sticker> {
+        @Override
+        public void write(JsonWriter out, Sticker sticker) throws IOException {
+            out.beginObject();
+            out.name("imageFileName").value(sticker.imageFileName);
+            if (sticker.emojis != null) {
+                out.name("emojis").beginArray();
+                for (String emoji : sticker.emojis) {
+                    out.value(emoji);
+                }
+                out.endArray();
+            }
+            out.name("size").value(sticker.size);
+            out.name("checksum").value(sticker.checksum);
+            out.name("broken").value(sticker.broken);
+            out.endObject();
+        }
+
+        @Override
+        public Sticker read(JsonReader in) throws IOException {
+            String imageFileName = null;
+            List<String> emojis = null;
+            long size = 0;
+            long checksum = 0;
+            boolean broken = false;
+            in.beginObject();
+            while (in.hasNext()) {
+                switch (in.nextName()) {
+                    case "imageFileName":
+                        imageFileName = nextStringOrNull(in);
+                        break;
+                    case "emojis":
+                        emojis = readStrings(in);
+                        break;
+                    case "size":
+                        size = in.nextLong();
+                        break;
+                    case "checksum":
+                        checksum = in.nextLong();
+                        break;
+                    case "broken":
+                        broken = in.nextBoolean();
+                        break;
+                    default:
+                        in.skipValue();
+                }
+            }
+            in.endObject();
+            Sticker sticker = new Sticker(imageFileName, emojis);
+            sticker.size = size;
+            sticker.checksum = checksum;
+            sticker.broken = broken;
+            return sticker;
+        }
+    }
+
+    static final class StickerPackAdapter extends TypeAdapter<StickerPack> {
+        private final StickerAdapter stickerAdapter = new StickerAdapter();
+
+        @Override
+        public void write(JsonWriter out, StickerPack pack) throws IOException {
+            out.beginObject();
+            out.name("identifier").value(pack.identifier);
+            out.name("name").value(pack.name);
+            out.name("publisher").value(pack.publisher);
+            out.name("trayImageFile").value(pack.trayImageFile);
+            out.name("trayImageFileSize").value(pack.trayImageFileSize);
+            out.name("trayImageFileChecksum").value(pack.trayImageFileChecksum);
+            out.name("trayImageFileBroken").value(pack.trayImageFileBroken);
+            out.name("publisherEmail").value(pack.publisherEmail);
+            out.name("publisherWebsite").value(pack.publisherWebsite);
+            out.name("privacyPolicyWebsite").value(pack.privacyPolicyWebsite);
+            out.name("licenseAgreementWebsite").value(pack.licenseAgreementWebsite);
+            out.name("iosAppStoreLink").value(pack.iosAppStoreLink);
+            List<Sticker> stickers = pack.getStickers();
+            if (stickers != null) {
+                out.name("stickers").beginArray();
+                for (Sticker sticker : stickers) {
+                    stickerAdapter.write(out, sticker);
+                }
+                out.endArray();
+                out.name("totalSize").value(pack.getTotalSize());
+            }
+            out.name("androidPlayStoreLink").value(pack.androidPlayStoreLink);
+            out.name("isWhitelisted").value(pack.getIsWhitelisted());
+            out.name("imageDataVersion").value(pack.imageDataVersion);
+            out.name("avoidCache").value(pack.avoidCache);
+            out.endObject();
+        }
+
+        @Override
+        public StickerPack read(JsonReader in) throws IOException {
+            String identifier = null;
+            String name = null;
+            String publisher = null;
+            String trayImageFile = null;
+            String publisherEmail = null;
+            String publisherWebsite = null;
+            String privacyPolicyWebsite = null;
+            String licenseAgreementWebsite = null;
+            String iosAppStoreLink = null;
+            String androidPlayStoreLink = null;
+            String imageDataVersion = StickerPack.DEFAULT_IMAGE_DATA_VERSION;
+            long trayImageFileSize = 0;
+            long trayImageFileChecksum = 0;
+            boolean trayImageFileBroken = false;
+            boolean isWhitelisted = false;
+            boolean avoidCache = false;
+            List<Sticker> stickers = null;
+            in.beginObject();
+            while (in.hasNext()) {
+                switch (in.nextName()) {
+                    case "identifier":
+                        identifier = nextStringOrNull(in);
+                        break;
+                    case "name":
+                        name = nextStringOrNull(in);
+                        break;
+                    case "publisher":
+                        publisher = nextStringOrNull(in);
+                        break;
+                    case "trayImageFile":
+                        trayImageFile = nextStringOrNull(in);
+                        break;
+                    case "trayImageFileSize":
+                        trayImageFileSize = in.nextLong();
+                        break;
+                    case "trayImageFileChecksum":
+                        trayImageFileChecksum = in.nextLong();
+                        break;
+                    case "trayImageFileBroken":
+                        trayImageFileBroken = in.nextBoolean();
+                        break;
+                    case "publisherEmail":
+                        publisherEmail = nextStringOrNull(in);
+                        break;
+                    case "publisherWebsite":
+                        publisherWebsite = nextStringOrNull(in);
+                        break;
+                    case "privacyPolicyWebsite":
+                        privacyPolicyWebsite = nextStringOrNull(in);
+                        break;
+                    case "licenseAgreementWebsite":
+                        licenseAgreementWebsite = nextStringOrNull(in);
+                        break;
+                    case "iosAppStoreLink":
+                        iosAppStoreLink = nextStringOrNull(in);
+                        break;
+                    case "androidPlayStoreLink":
+                        androidPlayStoreLink = nextStringOrNull(in);
+                        break;
+                    case "imageDataVersion":
+                        imageDataVersion = nextStringOrNull(in);
+                        break;
+                    case "isWhitelisted":
+                        isWhitelisted = in.nextBoolean();
+                        break;
+                    case "avoidCache":
+                        avoidCache = in.nextBoolean();
+                        break;
+                    case "stickers":
+                        stickers = new ArrayList<>();
+                        in.beginArray();
+                        while (in.hasNext()) {
+                            stickers.add(stickerAdapter.read(in));
+                        }
+                        in.endArray();
+                        break;
+                    default:
+                        //totalSize se vuelve a calcular a partir de los stickers.
+                        in.skipValue();
+                }
+            }
+            in.endObject();
+            StickerPack pack = new StickerPack(identifier, name, publisher, trayImageFile, publisherEmail, publisherWebsite, privacyPolicyWebsite, licenseAgreementWebsite);
+            pack.iosAppStoreLink = iosAppStoreLink;
+            pack.androidPlayStoreLink = androidPlayStoreLink;
+            pack.imageDataVersion = imageDataVersion;
+            pack.trayImageFileSize = trayImageFileSize;
+            pack.trayImageFileChecksum = trayImageFileChecksum;
+            pack.trayImageFileBroken = trayImageFileBroken;
+            pack.setIsWhitelisted(isWhitelisted);
+            pack.avoidCache = avoidCache;
+            if (stickers != null) {
+                pack.setStickers(stickers);
+            }
+            return pack;
+        }
+    }
+
+    static final class StickerPacksContainerAdapter extends TypeAdapter<StickerPacksContainer> {
+        private final StickerPackAdapter stickerPackAdapter = new StickerPackAdapter();
+
+        @Override
+        public void write(JsonWriter out, StickerPacksContainer container) throws IOException {
+            out.beginObject();
+            out.name("androidPlayStoreLink").value(container.getAndroidPlayStoreLink());
+            out.name("iosAppStoreLink").value(container.getIosAppStoreLink());
+            if (container.getStickerPacks() != null) {
+                out.name("stickerPacks").beginArray();
+                for (StickerPack pack : container.getStickerPacks()) {
+                    stickerPackAdapter.write(out, pack);
+                }
+                out.endArray();
+            }
+            out.endObject();
+        }
+
+        @Override
+        public StickerPacksContainer read(JsonReader in) throws IOException {
+            StickerPacksContainer container = new StickerPacksContainer();
+            in.beginObject();
+            while (in.hasNext()) {
+                switch (in.nextName()) {
+                    case "androidPlayStoreLink":
+                        container.setAndroidPlayStoreLink(nextStringOrNull(in));
+                        break;
+                    case "iosAppStoreLink":
+                        container.setIosAppStoreLink(nextStringOrNull(in));
+                        break;
+                    case "stickerPacks":
+                        in.beginArray();
+                        while (in.hasNext()) {
+                            container.addStickerPack(stickerPackAdapter.read(in));
+                        }
+                        in.endArray();
+                        break;
+                    default:
+                        in.skipValue();
+                }
+            }
+            in.endObject();
+            return container;
+        }
+    }
+
+    private static String nextStringOrNull(JsonReader in) throws IOException {
+        if (in.peek() == JsonToken.NULL) {
+            in.nextNull();
+            return null;
+        }
+        return in.nextString();
+    }
+
+    private static List<String> readStrings(JsonReader in) throws IOException {
+        if (in.peek() == JsonToken.NULL) {
+            in.nextNull();
+            return null;
+        }
+        List<String> values = new ArrayList<>(2);
+        in.beginArray();
+        while (in.hasNext()) {
+            values.add(in.nextString());
+        }
+        in.endArray();
+        return values;
+    }
+}
@@ -9,11 +9,20 @@
 package com.unusualapps.whatsappstickers.whatsapp_api;
 
 import android.app.AlertDialog;
+import android.content.ContentResolver;
 import android.content.Context;
 import android.content.Intent;
+import android.os.AsyncTask;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
 import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.support.v7.recyclerview.extensions.AsyncListDiffer;
+import android.support.v7.util.DiffUtil;
 import android.support.v7.widget.PopupMenu;
 import android.support.v7.widget.RecyclerView;
+import android.text.TextUtils;
 import android.util.TypedValue;
 import android.view.LayoutInflater;
 import android.view.View;
@@ -24,25 +33,80 @@ import android.widget.Toast;
 import com.facebook.drawee.view.SimpleDraweeView;
 import com.unusualapps.whatsappstickers.R;
 import com.unusualapps.whatsappstickers.activities.MyStickersFragment;
-import com.unusualapps.whatsappstickers.constants.Constants;
+import com.unusualapps.whatsappstickers.utils.BundledStickerPacks;
 import com.unusualapps.whatsappstickers.utils.FileUtils;
 import com.unusualapps.whatsappstickers.utils.ImageUtils;
-import com.unusualapps.whatsappstickers.utils.StickerPacksManager;
+import com.unusualapps.whatsappstickers.utils.StickerPacksRepository;
 
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 public class StickerPackListAdapter extends RecyclerView.Adapter<StickerPackListItemViewHolder> {
+    //Carga de notifyItemChanged cuando solo cambia el número de stickers de la vista previa
+    private static final Object PAYLOAD_PREVIEW_COLUMNS = new Object();
+    //Máximo de stickers en la vista previa de una fila
+    public static final int STICKER_PREVIEW_DISPLAY_LIMIT = 5;
+
+    /**
+     * Dos paquetes son la misma fila si tienen el mismo identificador, y no hace falta volver a enlazarla si no ha
+     * cambiado nada de lo que se muestra, incluidos los archivos de la vista previa. Se ejecuta en el hilo de
+     * AsyncListDiffer, no en el principal.
+     */
+    private static final DiffUtil.ItemCallback<StickerPack> DIFF_CALLBACK = new DiffUtil.ItemCallback<StickerPack>() {
+        @Override
+        public boolean areItemsTheSame(@NonNull StickerPack oldItem, @NonNull StickerPack newItem) {
+            return oldItem.identifier.equals(newItem.identifier);
+        }
+
+        @Override
+        public boolean areContentsTheSame(@NonNull StickerPack oldItem, @NonNull StickerPack newItem) {
+            if (oldItem == newItem) {
+                return true;
+            }
+            return TextUtils.equals(oldItem.name, newItem.name)
+                    && TextUtils.equals(oldItem.publisher, newItem.publisher)
+                    && TextUtils.equals(oldItem.trayImageFile, newItem.trayImageFile)
+                    && TextUtils.equals(oldItem.getImageDataVersion(), newItem.getImageDataVersion())
+                    && oldItem.getIsWhitelisted() == newItem.getIsWhitelisted()
+                    && oldItem.getStickers().size() == newItem.getStickers().size()
+                    && oldItem.hasBrokenFiles() == newItem.hasBrokenFiles()
+                    && haveSamePreview(oldItem.getStickers(), newItem.getStickers());
+        }
+
+        /**
+         * Compara los archivos de los stickers que pueden verse en la vista previa; las listas tienen el mismo tamaño.
+         */
+        private boolean haveSamePreview(List<Sticker> oldStickers, List<Sticker> newStickers) {
+            final int count = Math.min(STICKER_PREVIEW_DISPLAY_LIMIT, oldStickers.size());
+            for (int i = 0; i < count; i++) {
+                if (!TextUtils.equals(oldStickers.get(i).imageFileName, newStickers.get(i).imageFileName)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    };
+
     @NonNull
-    private List<StickerPack> stickerPacks;
+    private final AsyncListDiffer<StickerPack> differ = new AsyncListDiffer<>(this, DIFF_CALLBACK);
+    //Identificador del paquete -> id estable de su fila
+    private final Map<String, Long> itemIds = new HashMap<>();
+    //Versión de la última instantánea enviada, para descartar las que lleguen fuera de orden
+    private long snapshotVersion = -1;
+    @Nullable
+    private StickerPacksRepository.Snapshot snapshot;
     @NonNull
     private final OnAddButtonClickedListener onAddButtonClickedListener;
     private int maxNumberOfStickersInARow;
+    @Nullable
     private MyStickersFragment parent;
 
-    public StickerPackListAdapter(@NonNull List<StickerPack> stickerPacks, @NonNull OnAddButtonClickedListener onAddButtonClickedListener, MyStickersFragment parent) {
-        this.stickerPacks = stickerPacks;
+    public StickerPackListAdapter(@NonNull List<StickerPack> stickerPacks, @NonNull OnAddButtonClickedListener onAddButtonClickedListener, @Nullable MyStickersFragment parent) {
         this.onAddButtonClickedListener = onAddButtonClickedListener;
         this.parent = parent;
+        setHasStableIds(true);
+        differ.submitList(stickerPacks);
     }
 
     @NonNull
@@ -54,12 +118,32 @@ public class StickerPackListAdapter extends RecyclerView.Adapter<StickerPackList
         return new StickerPackListItemViewHolder(stickerPackRow);
     }
 
+    @Override
+    public void onBindViewHolder(@NonNull final StickerPackListItemViewHolder viewHolder, final int index, @NonNull List<Object> payloads) {
+        if (!payloads.isEmpty() && onlyPreviewColumnsChanged(payloads)) {
+            bindPreviewRow(viewHolder, differ.getCurrentList().get(index));
+        } else {
+            onBindViewHolder(viewHolder, index);
+        }
+    }
+
+    private static boolean onlyPreviewColumnsChanged(List<Object> payloads) {
+        for (Object payload : payloads) {
+            if (payload != PAYLOAD_PREVIEW_COLUMNS) {
+                return false;
+            }
+        }
+        return true;
+    }
+
     @Override
     public void onBindViewHolder(@NonNull final StickerPackListItemViewHolder viewHolder, final int index) {
-        StickerPack pack = stickerPacks.get(index);
+        StickerPack pack = differ.getCurrentList().get(index);
         final Context context = viewHolder.publisherView.getContext();
         viewHolder.publisherView.setText(pack.publisher);
-        viewHolder.filesizeView.setText(FileUtils.getFolderSizeLabel(Constants.STICKERS_DIRECTORY_PATH + pack.identifier));
+        String sizeLabel = FileUtils.getStickerPackSizeLabel(context, pack);
+        //StickerVerifier ha encontrado archivos dañados; esos stickers no se envían a WhatsApp.
+        viewHolder.filesizeView.setText(pack.hasBrokenFiles() ? sizeLabel + " · archivos dañados" : sizeLabel);
 
         viewHolder.titleView.setText(pack.name);
         viewHolder.container.setOnClickListener(view -> {
@@ -69,21 +153,14 @@ public class StickerPackListAdapter extends RecyclerView.Adapter<StickerPackList
             view.getContext().startActivity(intent);
         });
         viewHolder.imageRowView.removeAllViews();
-        //Si este paquete de stickers contiene menos stickers que el máximo, tome el tamaño más pequeño.
-        int actualNumberOfStickersToShow = Math.min(maxNumberOfStickersInARow, pack.getStickers().size());
-        for (int i = 0; i < actualNumberOfStickersToShow; i++) {
-            final SimpleDraweeView rowImage = (SimpleDraweeView) LayoutInflater.from(context).inflate(R.layout.sticker_pack_list_item_image, viewHolder.imageRowView, false);
-            rowImage.setImageURI(ImageUtils.getStickerImageAsset(pack.identifier, pack.getStickers().get(i).imageFileName));
-            final LinearLayout.LayoutParams lp = (LinearLayout.LayoutParams) rowImage.getLayoutParams();
-            final int marginBetweenImages = (viewHolder.imageRowView.getMeasuredWidth() - maxNumberOfStickersInARow * viewHolder.imageRowView.getContext().getResources().getDimensionPixelSize(R.dimen.sticker_pack_list_item_preview_image_size)) / (maxNumberOfStickersInARow - 1) - lp.leftMargin - lp.rightMargin;
-            if (i != actualNumberOfStickersToShow - 1 && marginBetweenImages > 0) { //do not set the margin for the last image
-                lp.setMargins(lp.leftMargin, lp.topMargin, lp.rightMargin + marginBetweenImages, lp.bottomMargin);
-                rowImage.setLayoutParams(lp);
-            }
-            viewHolder.imageRowView.addView(rowImage);
-        }
+        bindPreviewRow(viewHolder, pack);
         setAddButtonAppearance(viewHolder.addButton, pack);
 
+        if (BundledStickerPacks.isBundled(context, pack.identifier)) {
+            //Los paquetes incluidos en el apk no se pueden editar ni borrar.
+            viewHolder.container.setOnLongClickListener(null);
+            return;
+        }
         viewHolder.container.setOnLongClickListener(view -> {
             PopupMenu popupMenu = new PopupMenu(context, viewHolder.addButton);
             popupMenu.inflate(R.menu.sticker_option_menu);
@@ -98,9 +175,16 @@ public class StickerPackListAdapter extends RecyclerView.Adapter<StickerPackList
                                 .setTitle("Borrando")
                                 .setMessage("¿Estás seguro de que quieres borrar este pack de stickers?")
                                 .setPositiveButton("Yes", (dialog, which) -> {
-                                    removeStickerPack(index);
+                                    //Durante una animación o una diferencia la fila puede no tener posición.
+                                    final int position = viewHolder.getAdapterPosition();
+                                    if (position == RecyclerView.NO_POSITION) {
+                                        return;
+                                    }
+                                    removeStickerPack(context, differ.getCurrentList().get(position));
                                     Toast.makeText(context, "Borrado", Toast.LENGTH_SHORT).show();
-                                    parent.verifyStickersCount();
+                                    if (parent != null) {
+                                        parent.verifyStickersCount();
+                                    }
                                 })
                                 .setNegativeButton("No", null)
                                 .show();
@@ -109,6 +193,9 @@ public class StickerPackListAdapter extends RecyclerView.Adapter<StickerPackList
 
                         Toast.makeText(context, "Editado", Toast.LENGTH_LONG).show();
                         break;
+                    case R.id.sticker_duplicate:
+                        cloneStickerPack(context, pack);
+                        break;
                     case R.id.sticker_save_gallery:
                         Toast.makeText(context, "Guardado", Toast.LENGTH_LONG).show();
                         break;
@@ -122,11 +209,68 @@ public class StickerPackListAdapter extends RecyclerView.Adapter<StickerPackList
         });
     }
 
-    private void removeStickerPack(int index) {
-        stickerPacks.remove(index);
-        notifyItemRemoved(index);
-        notifyItemRangeChanged(index, stickerPacks.size());
-        StickerPacksManager.deleteStickerPack(index);
+    /**
+     * Ajusta la fila de vista previa al número de columnas actual. Las imágenes que ya están puestas se conservan,
+     * así que cambiar de columnas solo infla (y carga) las que faltan.
+     */
+    private void bindPreviewRow(StickerPackListItemViewHolder viewHolder, StickerPack pack) {
+        final LinearLayout imageRowView = viewHolder.imageRowView;
+        final Context context = imageRowView.getContext();
+        //Si este paquete de stickers contiene menos stickers que el máximo, tome el tamaño más pequeño.
+        int actualNumberOfStickersToShow = Math.min(maxNumberOfStickersInARow, pack.getStickers().size());
+        final boolean servedByProvider = snapshot != null ? snapshot.isServedByProvider(pack.identifier) : ImageUtils.isServedByProvider(context, pack.identifier);
+        if (imageRowView.getChildCount() > actualNumberOfStickersToShow) {
+            imageRowView.removeViews(actualNumberOfStickersToShow, imageRowView.getChildCount() - actualNumberOfStickersToShow);
+        }
+        for (int i = imageRowView.getChildCount(); i < actualNumberOfStickersToShow; i++) {
+            final SimpleDraweeView rowImage = (SimpleDraweeView) LayoutInflater.from(context).inflate(R.layout.sticker_pack_list_item_image, imageRowView, false);
+            rowImage.setImageURI(ImageUtils.getStickerImageAsset(pack.identifier, pack.getStickers().get(i).imageFileName, servedByProvider));
+            rowImage.setTag(((LinearLayout.LayoutParams) rowImage.getLayoutParams()).rightMargin);
+            imageRowView.addView(rowImage);
+        }
+        for (int i = 0; i < actualNumberOfStickersToShow; i++) {
+            final View rowImage = imageRowView.getChildAt(i);
+            final LinearLayout.LayoutParams lp = (LinearLayout.LayoutParams) rowImage.getLayoutParams();
+            final int baseRightMargin = (Integer) rowImage.getTag();
+            final int marginBetweenImages = (imageRowView.getMeasuredWidth() - maxNumberOfStickersInARow * context.getResources().getDimensionPixelSize(R.dimen.sticker_pack_list_item_preview_image_size)) / Math.max(maxNumberOfStickersInARow - 1, 1) - lp.leftMargin - baseRightMargin;
+            int rightMargin = baseRightMargin;
+            if (i != actualNumberOfStickersToShow - 1 && marginBetweenImages > 0) { //do not set the margin for the last image
+                rightMargin += marginBetweenImages;
+            }
+            if (lp.rightMargin != rightMargin) {
+                lp.setMargins(lp.leftMargin, lp.topMargin, rightMargin, lp.bottomMargin);
+                rowImage.setLayoutParams(lp);
+            }
+        }
+    }
+
+    private void removeStickerPack(Context context, StickerPack pack) {
+        //El proveedor borra el paquete y notifica el cambio; MyStickersFragment aplica la diferencia.
+        //La llamada cruza al proceso del proveedor y escribe en disco, así que no se hace en el hilo principal.
+        final ContentResolver contentResolver = context.getContentResolver();
+        AsyncTask.THREAD_POOL_EXECUTOR.execute(() -> contentResolver.delete(StickerContentProvider.getStickerPackUri(pack.identifier), null, null));
+    }
+
+    /**
+     * Pide al proveedor una copia del paquete. Si sus stickers ya están en el almacén por contenido, la copia solo
+     * añade referencias; la lista la recibe con la notificación del cambio, como el resto.
+     */
+    private void cloneStickerPack(Context context, StickerPack pack) {
+        final ContentResolver contentResolver = context.getContentResolver();
+        final Bundle extras = new Bundle();
+        extras.putString(StickerContentProvider.EXTRA_NAME, pack.name + " (copia)");
+        final Handler mainHandler = new Handler(Looper.getMainLooper());
+        AsyncTask.THREAD_POOL_EXECUTOR.execute(() -> {
+            String message;
+            try {
+                contentResolver.call(StickerContentProvider.AUTHORITY_URI, StickerContentProvider.METHOD_CLONE_PACK, pack.identifier, extras);
+                message = "Duplicado";
+            } catch (IllegalArgumentException | IllegalStateException e) {
+                message = "No se pudo duplicar el paquete de stickers";
+            }
+            final String text = message;
+            mainHandler.post(() -> Toast.makeText(context, text, Toast.LENGTH_SHORT).show());
+        });
     }
 
     private void setAddButtonAppearance(ImageView addButton, StickerPack pack) {
@@ -150,19 +294,38 @@ public class StickerPackListAdapter extends RecyclerView.Adapter<StickerPackList
 
     @Override
     public int getItemCount() {
-        return stickerPacks.size();
+        return differ.getCurrentList().size();
+    }
+
+    @Override
+    public long getItemId(int position) {
+        String identifier = differ.getCurrentList().get(position).identifier;
+        Long itemId = itemIds.get(identifier);
+        if (itemId == null) {
+            itemId = (long) itemIds.size();
+            itemIds.put(identifier, itemId);
+        }
+        return itemId;
     }
 
     public void setMaxNumberOfStickersInARow(int maxNumberOfStickersInARow) {
         if (this.maxNumberOfStickersInARow != maxNumberOfStickersInARow) {
             this.maxNumberOfStickersInARow = maxNumberOfStickersInARow;
-            notifyDataSetChanged();
+            notifyItemRangeChanged(0, getItemCount(), PAYLOAD_PREVIEW_COLUMNS);
         }
     }
 
-    public void setStickerPackList(List<StickerPack> stickerPackList) {
-        this.stickerPacks = stickerPackList;
-        notifyDataSetChanged();
+    /**
+     * Muestra una instantánea del catálogo. La diferencia con la lista actual se calcula fuera del hilo principal y
+     * solo se vuelven a enlazar las filas insertadas, borradas o cambiadas. Debe llamarse en el hilo principal.
+     */
+    public void submitSnapshot(StickerPacksRepository.Snapshot snapshot) {
+        if (snapshot.getVersion() <= snapshotVersion) {
+            return;
+        }
+        snapshotVersion = snapshot.getVersion();
+        this.snapshot = snapshot;
+        differ.submitList(snapshot.getStickerPacks());
     }
 
     public interface OnAddButtonClickedListener {
@@ -33,7 +33,7 @@ public class StickerPackValidator {
     private static final int EMOJI_LIMIT = 3;
     private static final int IMAGE_HEIGHT = 512;
     private static final int IMAGE_WIDTH = 512;
-    private static final int STICKER_SIZE_MIN = 3;
+    public static final int STICKER_SIZE_MIN = 3;
     private static final int STICKER_SIZE_MAX = 30;
     private static final int CHAR_COUNT_MAX = 128;
     private static final long ONE_KIBIBYTE = 8 * 1024;
@@ -102,7 +102,7 @@ public class StickerPackValidator {
                     "El correo electrónico del editor no parece válido, el correo electrónico es: " + stickerPack.publisherEmail);
         }
         try {
-            InputStream iStream = context.getContentResolver().openInputStream(ImageUtils.getStickerImageAsset(stickerPack.identifier, stickerPack.trayImageFile));
+            InputStream iStream = context.getContentResolver().openInputStream(ImageUtils.getStickerImageAsset(context, stickerPack.identifier, stickerPack.trayImageFile));
             final byte[] bytes = FileUtils.getBytes(Objects.requireNonNull(iStream));
             if (bytes.length > TRAY_IMAGE_FILE_SIZE_MAX_KB * ONE_KIBIBYTE) {
                 throw new IllegalStateException("\n" +
@@ -146,7 +146,7 @@ public class StickerPackValidator {
 
     private static void validateStickerFile(@NonNull Context context, @NonNull String identifier, @NonNull final String fileName) throws IllegalStateException {
         try {
-            InputStream iStream = context.getContentResolver().openInputStream(ImageUtils.getStickerImageAsset(identifier, fileName));
+            InputStream iStream = context.getContentResolver().openInputStream(ImageUtils.getStickerImageAsset(context, identifier, fileName));
             final byte[] bytes = FileUtils.getBytes(Objects.requireNonNull(iStream));
             if (bytes.length > STICKER_FILE_SIZE_LIMIT_KB * ONE_KIBIBYTE) {
                 throw new IllegalStateException("Sticker debe de ser menor que " + STICKER_FILE_SIZE_LIMIT_KB + "KB, sticker pack identificador:" + identifier + ", \n" +
@@ -0,0 +1,98 @@
+package com.unusualapps.whatsappstickers.whatsapp_api;
+
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Lee por adelantado los webp de un paquete cuando WhatsApp pide su lista de stickers, para que los archivos
+ * ya estén en la caché de páginas cuando llegue la ráfaga de openFile. De un paquete guardado en un blob se lee
+ * la porción que ocupan sus archivos.
+ */
+final class StickerPrefetcher {
+
+    private static final String TAG = "StickerPrefetcher";
+    private static final int MAX_CONCURRENT_PACKS = 2;
+    private static final int MAX_QUEUED_PACKS = 8;
+    private static final long PREFETCH_VALIDITY_MS = 30_000;
+    private static final int BUFFER_SIZE = 16 * 1024;
+
+    private final ThreadPoolExecutor executor = new ThreadPoolExecutor(MAX_CONCURRENT_PACKS, MAX_CONCURRENT_PACKS,
+            10, TimeUnit.SECONDS, new LinkedBlockingQueue<>(MAX_QUEUED_PACKS), runnable -> {
+        Thread thread = new Thread(runnable, TAG);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        return thread;
+    });
+
+    //Identificador del paquete -> momento en que se encoló su lectura, para no repetirla en consultas seguidas
+    private final ConcurrentHashMap<String, Long> recentPrefetches = new ConcurrentHashMap<>();
+
+    StickerPrefetcher() {
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    void prefetch(@NonNull String identifier, @NonNull List<File> files) {
+        execute(identifier, () -> {
+            final byte[] buffer = new byte[BUFFER_SIZE];
+            for (File file : files) {
+                readFully(file, buffer);
+            }
+        });
+    }
+
+    void prefetch(@NonNull String identifier, @NonNull File blob, long offset, long length) {
+        execute(identifier, () -> readRange(blob, offset, length, new byte[BUFFER_SIZE]));
+    }
+
+    private void execute(@NonNull String identifier, @NonNull Runnable read) {
+        final long now = SystemClock.elapsedRealtime();
+        final Long previous = recentPrefetches.get(identifier);
+        if (previous != null && now - previous < PREFETCH_VALIDITY_MS) {
+            return;
+        }
+        if (previous == null ? recentPrefetches.putIfAbsent(identifier, now) != null : !recentPrefetches.replace(identifier, previous, now)) {
+            return;
+        }
+        try {
+            executor.execute(read);
+        } catch (RejectedExecutionException e) {
+            //Con la cola llena la lectura se descarta; la siguiente consulta del paquete podrá encolarla.
+            recentPrefetches.remove(identifier, now);
+        }
+    }
+
+    private static void readRange(@NonNull File file, long offset, long length, @NonNull byte[] buffer) {
+        try (RandomAccessFile input = new RandomAccessFile(file, "r")) {
+            input.seek(offset);
+            long remaining = length;
+            int read;
+            while (remaining > 0 && (read = input.read(buffer, 0, (int) Math.min(buffer.length, remaining))) != -1) {
+                remaining -= read;
+            }
+        } catch (IOException e) {
+            Log.d(TAG, "no se pudo leer " + file + ": " + e.getMessage());
+        }
+    }
+
+    private static void readFully(@NonNull File file, @NonNull byte[] buffer) {
+        try (InputStream inputStream = new FileInputStream(file)) {
+            //noinspection StatementWithEmptyBody
+            while (inputStream.read(buffer) != -1) {
+            }
+        } catch (IOException e) {
+            Log.d(TAG, "no se pudo leer " + file + ": " + e.getMessage());
+        }
+    }
+}
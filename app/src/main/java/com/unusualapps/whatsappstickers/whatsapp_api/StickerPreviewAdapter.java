@@ -25,6 +25,8 @@ public class StickerPreviewAdapter extends RecyclerView.Adapter<StickerPreviewVi
     private int cellLimit;
     private int cellPadding;
     private final int errorResource;
+    //Se resuelve una vez para todo el paquete, no en cada onBindViewHolder
+    private final boolean servedByProvider;
 
     private final LayoutInflater layoutInflater;
 
@@ -40,6 +42,7 @@ public class StickerPreviewAdapter extends RecyclerView.Adapter<StickerPreviewVi
         this.layoutInflater = layoutInflater;
         this.errorResource = errorResource;
         this.stickerPack = stickerPack;
+        this.servedByProvider = ImageUtils.isServedByProvider(layoutInflater.getContext(), stickerPack.identifier);
     }
 
     @NonNull
@@ -59,8 +62,13 @@ public class StickerPreviewAdapter extends RecyclerView.Adapter<StickerPreviewVi
 
     @Override
     public void onBindViewHolder(@NonNull final StickerPreviewViewHolder stickerPreviewViewHolder, final int i) {
+        final Sticker sticker = stickerPack.getStickers().get(i);
         stickerPreviewViewHolder.stickerPreviewView.setImageResource(errorResource);
-        stickerPreviewViewHolder.stickerPreviewView.setImageURI(ImageUtils.getStickerImageAsset(stickerPack.identifier, stickerPack.getStickers().get(i).imageFileName));
+        //Un sticker dañado no se puede leer; se deja la imagen de error y se atenúa.
+        stickerPreviewViewHolder.stickerPreviewView.setAlpha(sticker.isBroken() ? 0.4f : 1f);
+        if (!sticker.isBroken()) {
+            stickerPreviewViewHolder.stickerPreviewView.setImageURI(ImageUtils.getStickerImageAsset(stickerPack.identifier, sticker.imageFileName, servedByProvider));
+        }
     }
 
     @Override
@@ -0,0 +1,102 @@
+package com.unusualapps.whatsappstickers.whatsapp_api;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.ParcelFileDescriptor;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+import com.unusualapps.whatsappstickers.utils.StickerPacksManager;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Genera bajo demanda el webp de 512x512 que espera WhatsApp a partir del original sin pérdida del sticker.
+ * El resultado se envía por una tubería en la primera petición y se guarda en DerivedAssetCache para las siguientes.
+ */
+final class StickerTranscoder {
+
+    private static final String TAG = "StickerTranscoder";
+    static final int STICKER_SIZE = 512;
+    static final int WEBP_QUALITY = 70;
+    private static final long MAX_CACHE_BYTES = 32 * 1024 * 1024;
+
+    private final DerivedAssetCache cache;
+    private final ExecutorService executor = Executors.newFixedThreadPool(2, runnable -> new Thread(runnable, TAG));
+
+    StickerTranscoder(@NonNull File cacheDirectory) {
+        this.cache = new DerivedAssetCache(cacheDirectory, MAX_CACHE_BYTES);
+    }
+
+    /**
+     * Devuelve el webp del sticker o null si el paquete no guarda un original para ese archivo.
+     * La versión de imágenes forma parte de la clave, así que al reescribir un original se invalida su derivado.
+     * Si la conversión falla, la tubería se cierra con error para que WhatsApp no lo confunda con un archivo vacío.
+     */
+    @Nullable
+    ParcelFileDescriptor open(@NonNull StickerPack stickerPack, @NonNull String fileName) throws FileNotFoundException {
+        final File master = StickerPacksManager.getMasterFile(stickerPack.identifier, fileName);
+        if (!master.exists()) {
+            return null;
+        }
+        final String key = stickerPack.identifier + "_" + stickerPack.getImageDataVersion() + "_" + fileName;
+        final ParcelFileDescriptor cached = cache.get(key);
+        if (cached != null) {
+            return cached;
+        }
+        final ParcelFileDescriptor[] pipe;
+        try {
+            pipe = ParcelFileDescriptor.createReliablePipe();
+        } catch (IOException e) {
+            throw new FileNotFoundException("no se pudo crear la tubería: " + e.getMessage());
+        }
+        executor.execute(() -> {
+            final byte[] bytes;
+            try {
+                bytes = transcode(master);
+            } catch (IOException | RuntimeException e) {
+                Log.e(TAG, "no se pudo generar " + fileName + " del paquete " + stickerPack.identifier, e);
+                closeWithError(pipe[1], "no se pudo generar " + fileName);
+                return;
+            }
+            cache.put(key, bytes);
+            try (OutputStream output = new ParcelFileDescriptor.AutoCloseOutputStream(pipe[1])) {
+                output.write(bytes);
+            } catch (IOException e) {
+                Log.w(TAG, "no se pudo enviar " + fileName + " del paquete " + stickerPack.identifier, e);
+            }
+        });
+        return pipe[0];
+    }
+
+    private static void closeWithError(@NonNull ParcelFileDescriptor writeSide, @NonNull String message) {
+        try {
+            writeSide.closeWithError(message);
+        } catch (IOException e) {
+            Log.w(TAG, "no se pudo cerrar la tubería", e);
+        }
+    }
+
+    @NonNull
+    private static byte[] transcode(@NonNull File master) throws IOException {
+        Bitmap bitmap = BitmapFactory.decodeFile(master.getPath());
+        if (bitmap == null) {
+            throw new IOException("no se pudo decodificar " + master);
+        }
+        if (bitmap.getWidth() != STICKER_SIZE || bitmap.getHeight() != STICKER_SIZE) {
+            final Bitmap scaled = Bitmap.createScaledBitmap(bitmap, STICKER_SIZE, STICKER_SIZE, true);
+            bitmap.recycle();
+            bitmap = scaled;
+        }
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        bitmap.compress(Bitmap.CompressFormat.WEBP, WEBP_QUALITY, output);
+        bitmap.recycle();
+        return output.toByteArray();
+    }
+}
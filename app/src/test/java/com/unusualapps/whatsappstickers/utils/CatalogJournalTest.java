@@ -0,0 +1,164 @@
+package com.unusualapps.whatsappstickers.utils;
+
+import com.unusualapps.whatsappstickers.whatsapp_api.Sticker;
+import com.unusualapps.whatsappstickers.whatsapp_api.StickerPack;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Reproducción y compactación de CatalogJournal sobre archivos temporales, sin tocar el diario de la aplicación.
+ */
+public class CatalogJournalTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File journal;
+
+    @Before
+    public void setUp() {
+        journal = new File(folder.getRoot(), "contents.journal");
+    }
+
+    @Test
+    public void replaysRecordsInOrder() throws IOException {
+        StickerPack a = createStickerPack("a", 3);
+        StickerPack b = createStickerPack("b", 3);
+        StickerPack withSticker = a.copy();
+        List<Sticker> stickers = new ArrayList<>(a.getStickers());
+        stickers.add(createSticker("a", 3));
+        withSticker.setStickers(stickers);
+        withSticker.bumpImageDataVersion();
+        CatalogJournal.append(journal, Arrays.asList(CatalogJournal.addPack(a), CatalogJournal.addPack(b)));
+        CatalogJournal.append(journal, CatalogJournal.describeUpdate(a, withSticker));
+        CatalogJournal.append(journal, Collections.singletonList(CatalogJournal.removePack("b")));
+
+        List<StickerPack> stickerPacks = new ArrayList<>();
+        CatalogJournal.replay(journal, stickerPacks);
+        assertEquals(1, stickerPacks.size());
+        StickerPack replayed = stickerPacks.get(0);
+        assertEquals("a", replayed.identifier);
+        assertEquals("2", replayed.getImageDataVersion());
+        assertEquals(4, replayed.getStickers().size());
+        assertEquals("a_3.webp", replayed.getStickers().get(3).imageFileName);
+        assertEquals(100 + 101 + 102 + 103, replayed.getTotalSize());
+    }
+
+    @Test
+    public void describesAppendedStickersAndReordersWithoutThePack() {
+        StickerPack previous = createStickerPack("a", 3);
+        StickerPack appended = previous.copy();
+        List<Sticker> stickers = new ArrayList<>(previous.getStickers());
+        stickers.add(createSticker("a", 3));
+        stickers.add(createSticker("a", 4));
+        appended.setStickers(stickers);
+        List<CatalogJournal.Record> records = CatalogJournal.describeUpdate(previous, appended);
+        assertEquals(2, records.size());
+        assertEquals(CatalogJournal.OP_ADD_STICKER, records.get(0).op);
+        assertNull(records.get(0).stickerPack);
+        assertEquals("a_4.webp", records.get(1).sticker.imageFileName);
+
+        StickerPack reordered = previous.copy();
+        List<Sticker> reversed = new ArrayList<>(previous.getStickers());
+        Collections.reverse(reversed);
+        reordered.setStickers(reversed);
+        records = CatalogJournal.describeUpdate(previous, reordered);
+        assertEquals(1, records.size());
+        assertEquals(CatalogJournal.OP_REORDER, records.get(0).op);
+        assertEquals(Arrays.asList("a_2.webp", "a_1.webp", "a_0.webp"), records.get(0).fileNames);
+        List<StickerPack> stickerPacks = new ArrayList<>(Collections.singletonList(previous));
+        CatalogJournal.apply(stickerPacks, records.get(0));
+        assertEquals("a_2.webp", stickerPacks.get(0).getStickers().get(0).imageFileName);
+        //El paquete de la instantánea no se modifica.
+        assertEquals("a_0.webp", previous.getStickers().get(0).imageFileName);
+
+        StickerPack renamed = previous.copy();
+        renamed.name = "Otro";
+        records = CatalogJournal.describeUpdate(previous, renamed);
+        assertEquals(1, records.size());
+        assertEquals(CatalogJournal.OP_UPDATE_PACK, records.get(0).op);
+    }
+
+    @Test
+    public void ignoresTruncatedTailAndRecordsWithoutPayload() throws IOException {
+        CatalogJournal.append(journal, Collections.singletonList(CatalogJournal.addPack(createStickerPack("a", 3))));
+        try (OutputStream output = new FileOutputStream(journal, true)) {
+            output.write("{\"op\":\"add_pack\"}\n{\"op\":\"remove_pack\"}\n{\"op\":\"add_sticker\",\"identifier\":\"a\"}\n".getBytes(StandardCharsets.UTF_8));
+            output.write("{\"op\":\"remove_pack\",\"identif".getBytes(StandardCharsets.UTF_8));
+        }
+        //Lo que se anexa después de una cola cortada queda en su propia línea.
+        CatalogJournal.append(journal, Collections.singletonList(CatalogJournal.addPack(createStickerPack("b", 3))));
+
+        List<StickerPack> stickerPacks = new ArrayList<>();
+        CatalogJournal.replay(journal, stickerPacks);
+        assertEquals(2, stickerPacks.size());
+        assertEquals("a", stickerPacks.get(0).identifier);
+        assertEquals(3, stickerPacks.get(0).getStickers().size());
+        assertEquals("b", stickerPacks.get(1).identifier);
+    }
+
+    @Test
+    public void replayingACompactedJournalAgainGivesTheSameCatalog() throws IOException {
+        File snapshot = new File(folder.getRoot(), "contents.json");
+        try (OutputStream output = new FileOutputStream(snapshot)) {
+            output.write(new byte[1024]);
+        }
+        StickerPack stickerPack = createStickerPack("a", 3);
+        List<CatalogJournal.Record> records = new ArrayList<>();
+        for (int i = 0; i < 500; i++) {
+            StickerPack renamed = stickerPack.copy();
+            renamed.name = "Paquete " + i;
+            records.add(CatalogJournal.updatePack(renamed));
+        }
+        CatalogJournal.append(journal, Collections.singletonList(CatalogJournal.addPack(stickerPack)));
+        CatalogJournal.append(journal, records);
+        assertTrue(CatalogJournal.needsCompaction(journal, snapshot));
+
+        List<StickerPack> compacted = new ArrayList<>();
+        CatalogJournal.replay(journal, compacted);
+        assertEquals(1, compacted.size());
+        assertEquals("Paquete 499", compacted.get(0).name);
+
+        //Si el proceso muere entre publicar la instantánea y vaciar el diario, se reproduce sobre ella otra vez.
+        List<StickerPack> replayedTwice = new ArrayList<>(compacted);
+        CatalogJournal.replay(journal, replayedTwice);
+        assertEquals(1, replayedTwice.size());
+        assertEquals("Paquete 499", replayedTwice.get(0).name);
+        assertEquals(3, replayedTwice.get(0).getStickers().size());
+
+        CatalogJournal.reset(journal);
+        assertFalse(journal.exists());
+        assertFalse(CatalogJournal.needsCompaction(journal, snapshot));
+    }
+
+    private static StickerPack createStickerPack(String identifier, int stickerCount) {
+        StickerPack stickerPack = new StickerPack(identifier, "Paquete " + identifier, "Autor", "tray.png", "", "", "", "");
+        List<Sticker> stickers = new ArrayList<>();
+        for (int i = 0; i < stickerCount; i++) {
+            stickers.add(createSticker(identifier, i));
+        }
+        stickerPack.setStickers(stickers);
+        return stickerPack;
+    }
+
+    private static Sticker createSticker(String identifier, int index) {
+        Sticker sticker = new Sticker(identifier + "_" + index + ".webp", Arrays.asList("😀", "🎉"));
+        sticker.setSize(100 + index);
+        sticker.setChecksum(1000 + index);
+        return sticker;
+    }
+}
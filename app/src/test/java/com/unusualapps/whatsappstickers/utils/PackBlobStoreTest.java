@@ -0,0 +1,140 @@
+package com.unusualapps.whatsappstickers.utils;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.zip.CRC32;
+
+import static org.junit.Assert.*;
+
+/**
+ * Formato de stickers.blob y stickers.idx: desplazamientos, longitudes y CRC32 de cada archivo, también al anexar
+ * y al leer un índice del formato anterior.
+ */
+public class PackBlobStoreTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void indexesEachFileAsASliceOfTheBlob() throws IOException {
+        File directory = folder.newFolder("pack");
+        byte[] sticker = createBytes(3000, 1);
+        byte[] tray = createBytes(500, 7);
+        writeFile(new File(directory, "a.webp"), sticker);
+        writeFile(new File(directory, "tray.png"), tray);
+
+        PackBlobStore.packDirectory(directory);
+        File blobFile = new File(directory, PackBlobStore.BLOB_FILE_NAME);
+        assertFalse(new File(directory, "a.webp").exists());
+        assertFalse(new File(directory, "tray.png").exists());
+        assertEquals(sticker.length + tray.length, blobFile.length());
+
+        PackBlobStore.Index index = readIndex(directory);
+        assertSlice(blobFile, index.getEntry("a.webp"), sticker);
+        assertSlice(blobFile, index.getEntry("tray.png"), tray);
+        assertNull(index.getEntry("b.webp"));
+        assertEquals(sticker.length + tray.length, index.getTotalSize());
+        assertEquals(0, index.getStartOffset());
+        assertEquals(blobFile.length(), index.getEndOffset());
+    }
+
+    @Test
+    public void appendsNewFilesAfterTheExistingOnes() throws IOException {
+        File directory = folder.newFolder("pack");
+        byte[] first = createBytes(1200, 3);
+        byte[] replaced = createBytes(800, 5);
+        byte[] second = createBytes(2000, 11);
+        writeFile(new File(directory, "a.webp"), first);
+        PackBlobStore.packDirectory(directory);
+        writeFile(new File(directory, "a.webp"), replaced);
+        writeFile(new File(directory, "b.webp"), second);
+        PackBlobStore.packDirectory(directory);
+
+        File blobFile = new File(directory, PackBlobStore.BLOB_FILE_NAME);
+        assertEquals(first.length + replaced.length + second.length, blobFile.length());
+        PackBlobStore.Index index = readIndex(directory);
+        PackBlobStore.Entry entry = index.getEntry("a.webp");
+        //La copia anterior se queda en el blob, pero el índice apunta a la nueva.
+        assertTrue(entry.offset >= first.length);
+        assertSlice(blobFile, entry, replaced);
+        assertSlice(blobFile, index.getEntry("b.webp"), second);
+        assertEquals(first.length, index.getStartOffset());
+        assertEquals(blobFile.length(), index.getEndOffset());
+        assertEquals(replaced.length + second.length, index.getTotalSize());
+    }
+
+    @Test
+    public void readsIndexesWithoutChecksums() throws IOException {
+        File indexFile = folder.newFile(PackBlobStore.INDEX_FILE_NAME);
+        try (DataOutputStream output = new DataOutputStream(new FileOutputStream(indexFile))) {
+            output.writeInt(0x53504b31);
+            output.writeInt(2);
+            output.writeUTF("a.webp");
+            output.writeLong(0);
+            output.writeLong(1000);
+            output.writeUTF("tray.png");
+            output.writeLong(1000);
+            output.writeLong(250);
+        }
+        PackBlobStore.Index index = PackBlobStore.readIndex(indexFile, indexFile.lastModified());
+        PackBlobStore.Entry sticker = index.getEntry("a.webp");
+        assertEquals(0, sticker.offset);
+        assertEquals(1000, sticker.length);
+        assertEquals(0, sticker.crc32);
+        PackBlobStore.Entry tray = index.getEntry("tray.png");
+        assertEquals(1000, tray.offset);
+        assertEquals(250, tray.length);
+        assertEquals(0, tray.crc32);
+        assertEquals(1250, index.getEndOffset());
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsUnknownIndexFormats() throws IOException {
+        File indexFile = folder.newFile(PackBlobStore.INDEX_FILE_NAME);
+        try (DataOutputStream output = new DataOutputStream(new FileOutputStream(indexFile))) {
+            output.writeInt(0x53504b39);
+            output.writeInt(0);
+        }
+        PackBlobStore.readIndex(indexFile, indexFile.lastModified());
+    }
+
+    private static PackBlobStore.Index readIndex(File directory) throws IOException {
+        File indexFile = new File(directory, PackBlobStore.INDEX_FILE_NAME);
+        return PackBlobStore.readIndex(indexFile, indexFile.lastModified());
+    }
+
+    private static void assertSlice(File blobFile, PackBlobStore.Entry entry, byte[] expected) throws IOException {
+        assertNotNull(entry);
+        assertEquals(expected.length, entry.length);
+        CRC32 crc = new CRC32();
+        crc.update(expected);
+        assertEquals(crc.getValue(), entry.crc32);
+        byte[] data = new byte[(int) entry.length];
+        try (RandomAccessFile blob = new RandomAccessFile(blobFile, "r")) {
+            blob.seek(entry.offset);
+            blob.readFully(data);
+        }
+        assertArrayEquals(expected, data);
+    }
+
+    private static byte[] createBytes(int length, int seed) {
+        byte[] data = new byte[length];
+        for (int i = 0; i < length; i++) {
+            data[i] = (byte) (i * seed + seed);
+        }
+        return data;
+    }
+
+    private static void writeFile(File file, byte[] data) throws IOException {
+        try (FileOutputStream output = new FileOutputStream(file)) {
+            output.write(data);
+        }
+    }
+}